@@ -5,18 +5,23 @@ import android.content.Context;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v7.widget.AppCompatImageView;
 import android.util.AttributeSet;
+import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * @author zhangzhiquan
@@ -26,14 +31,45 @@ import java.util.List;
 public class AnimationImageView extends AppCompatImageView {
     private static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
     private static final List<String> SUPPORTED_RESOURCE_TYPE_NAMES = Arrays.asList("raw", "drawable", "mipmap");
+    private static final int LOAD_THREAD_COUNT = 2;
+    /**
+     * srcType of GIFs decoded by {@link GifSequence} instead of Fresco
+     */
+    private static final int SRC_TYPE_JAVA_GIF = 4;
+    /**
+     * srcType of animated PNGs, decoded by {@link ApngSequence}
+     */
+    private static final int SRC_TYPE_APNG = 8;
+    /**
+     * srcType picking the decoder from the file's header, the default, see
+     * {@link SniffingSequenceFactory}
+     */
+    private static final int SRC_TYPE_AUTO = 16;
+    private static final Object S_LOCK = new Object();
+    private static final Handler S_MAIN_HANDLER = new Handler(Looper.getMainLooper());
+    private static Executor sLoadExecutor;
 
     private int mLoopCount = 1;
     private int mLoopBehavior = AnimationSequenceDrawable.LOOP_DEFAULT;
     private AnimationSequenceDrawable mAnimatedSrcDrawable;
     private AnimationSequenceDrawable mAnimatedBgDrawable;
     private OnFinishedListener mFinishedListener;
-    private BaseSequenceFactory mSequenceFactory;
+    private BaseSequenceFactory mSequenceFactory =
+            CachingSequenceFactory.getShared(SniffingSequenceFactory.getDefault());
+    private AnimationSequenceDrawable.BitmapProvider mBitmapProvider = PoolingBitmapProvider.getDefault();
+    private FrameCache mFrameCache;
+    private AnimationPreloader mPreloader = AnimationPreloader.getDefault();
     private AnimationSequenceDrawable.OnFinishedListener mDrawableFinishedListener;
+    private Drawable mPlaceholder;
+    private LoadRequest mPendingLoad;
+    private boolean mDownsample = true;
+    private int mAnimationPriority;
+    /**
+     * Pixels of the view on screen, -1 while not attached
+     */
+    private long mVisibleArea = -1;
+    private final Rect mVisibleRect = new Rect();
+    private final VisibilityListener mVisibilityListener = new VisibilityListener();
 
     public interface OnFinishedListener {
         /**
@@ -100,8 +136,10 @@ public class AnimationImageView extends AppCompatImageView {
                 //not set loop count so loop mode is set value default LOOP_DEFAULT
                 mLoopBehavior = attributes.getInt(R.styleable.AnimationImageView_loopBehavior, AnimationSequenceDrawable.LOOP_DEFAULT);
             }
-            int srcType = attributes.getInt(R.styleable.AnimationImageView_srcType,1);
-            mSequenceFactory = FrescoSequence.getSequenceFactory(srcType);
+            int srcType = attributes.getInt(R.styleable.AnimationImageView_srcType, SRC_TYPE_AUTO);
+            mSequenceFactory = CachingSequenceFactory.getShared(getSequenceFactory(srcType));
+            mDownsample = attributes.getBoolean(R.styleable.AnimationImageView_downsample, true);
+            mAnimationPriority = attributes.getInt(R.styleable.AnimationImageView_animationPriority, 0);
             attributes.recycle();
 
             int srcId = attrs.getAttributeResourceValue(ANDROID_NS, "src", 0);
@@ -129,36 +167,48 @@ public class AnimationImageView extends AppCompatImageView {
     private boolean setAnimatedResource(boolean isSrc, int resId) {
         Resources res = getResources();
         if (res != null) {
-            try {
-                InputStream inputStream = getInputStreamByResource(res, resId);
-                AnimationSequenceDrawable drawable = createDrawable(inputStream);
-                if (isSrc) {
-                    setImageDrawable(drawable);
-                    if (mAnimatedSrcDrawable != null) {
-                        mAnimatedSrcDrawable.destroy();
-                    }
-                    mAnimatedSrcDrawable = drawable;
-                } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-                    setBackground(drawable);
-                    if (mAnimatedBgDrawable != null) {
-                        mAnimatedBgDrawable.destroy();
-                    }
-                    mAnimatedBgDrawable = drawable;
-                } else {
-                    setBackgroundDrawable(drawable);
-                    if (mAnimatedBgDrawable != null) {
-                        mAnimatedBgDrawable.destroy();
-                    }
-                    mAnimatedBgDrawable = drawable;
-                }
-                return true;
-            } catch (Exception e) {
-                //ignored
-            }
+            return setAnimatedSource(isSrc, SequenceSource.fromResource(res, resId));
+        }
+        return false;
+    }
+
+    private boolean setAnimatedSource(boolean isSrc, SequenceSource source) {
+        if (isSrc) {
+            cancelPendingLoad();
+        }
+        try {
+            AnimationSequenceDrawable preloaded = takePreloaded(isSrc, source);
+            applyAnimatedDrawable(isSrc, preloaded != null
+                    ? configureDrawable(preloaded) : createDrawable(isSrc, source));
+            return true;
+        } catch (Exception e) {
+            //ignored
         }
         return false;
     }
 
+    private void applyAnimatedDrawable(boolean isSrc, AnimationSequenceDrawable drawable) {
+        if (isSrc) {
+            setImageDrawable(drawable);
+            if (mAnimatedSrcDrawable != null) {
+                mAnimatedSrcDrawable.destroy();
+            }
+            mAnimatedSrcDrawable = drawable;
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setBackground(drawable);
+            if (mAnimatedBgDrawable != null) {
+                mAnimatedBgDrawable.destroy();
+            }
+            mAnimatedBgDrawable = drawable;
+        } else {
+            setBackgroundDrawable(drawable);
+            if (mAnimatedBgDrawable != null) {
+                mAnimatedBgDrawable.destroy();
+            }
+            mAnimatedBgDrawable = drawable;
+        }
+    }
+
     /**
      * Sets the content of this AnimatedImageView to the specified Uri.
      * If uri destination is not a Animated then {@link ImageView#setImageURI(Uri)}
@@ -181,6 +231,173 @@ public class AnimationImageView extends AppCompatImageView {
         }
     }
 
+    /**
+     * Cancels a pending async load, whose result would otherwise replace this drawable
+     */
+    @Override
+    public void setImageDrawable(Drawable drawable) {
+        cancelPendingLoad();
+        super.setImageDrawable(drawable);
+    }
+
+    @Override
+    public void setImageBitmap(Bitmap bm) {
+        cancelPendingLoad();
+        super.setImageBitmap(bm);
+    }
+
+    /**
+     * Like {@link #setImageURI(Uri)}, but reads, parses and renders the first frame on a
+     * background thread, showing the placeholder meanwhile. Setting another image before
+     * loading finishes cancels this one.
+     *
+     * @param uri The Uri of an image
+     * @see #setPlaceholder(Drawable)
+     */
+    public void setImageURIAsync(final Uri uri) {
+        if (uri == null) {
+            setImageURI(null);
+            return;
+        }
+        loadAsync(SequenceSource.fromUri(getContext(), uri), new Runnable() {
+            @Override
+            public void run() {
+                AnimationImageView.super.setImageURI(uri);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #setImageResource(int)}, but loads on a background thread.
+     *
+     * @see #setImageURIAsync(Uri)
+     */
+    public void setImageResourceAsync(final int resId) {
+        loadAsync(SequenceSource.fromResource(getResources(), resId), new Runnable() {
+            @Override
+            public void run() {
+                AnimationImageView.super.setImageResource(resId);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #setImageResourceFromAssets(String)}, but loads on a background thread.
+     *
+     * @see #setImageURIAsync(Uri)
+     */
+    public void setImageResourceFromAssetsAsync(String path) {
+        loadAsync(SequenceSource.fromAsset(getContext().getResources().getAssets(), path), null);
+    }
+
+    /**
+     * Set the drawable shown while an image set with one of the async setters loads.
+     *
+     * @param placeholder the placeholder, or null to keep showing the previous image
+     */
+    public void setPlaceholder(Drawable placeholder) {
+        mPlaceholder = placeholder;
+    }
+
+    /**
+     * Set the executor async loads run on. Defaults to a small pool of background threads.
+     */
+    public static void setLoadExecutor(Executor executor) {
+        synchronized (S_LOCK) {
+            sLoadExecutor = executor;
+        }
+    }
+
+    private static Executor getLoadExecutor() {
+        synchronized (S_LOCK) {
+            if (sLoadExecutor == null) {
+                sLoadExecutor = DecodeExecutors.newPool("AnimationImageView loading thread", LOAD_THREAD_COUNT);
+            }
+            return sLoadExecutor;
+        }
+    }
+
+    private void loadAsync(SequenceSource source, Runnable fallback) {
+        cancelPendingLoad();
+        AnimationSequenceDrawable preloaded = takePreloaded(true, source);
+        if (preloaded != null) {
+            applyAnimatedDrawable(true, configureDrawable(preloaded));
+            return;
+        }
+        if (mPlaceholder != null) {
+            setImageDrawable(mPlaceholder);
+            if (mAnimatedSrcDrawable != null) {
+                mAnimatedSrcDrawable.destroy();
+                mAnimatedSrcDrawable = null;
+            }
+        }
+        mPendingLoad = new LoadRequest(source, fallback, getTargetWidth(true), getTargetHeight(true));
+        getLoadExecutor().execute(mPendingLoad);
+    }
+
+    private void cancelPendingLoad() {
+        if (mPendingLoad != null) {
+            mPendingLoad.mCancelled = true;
+            mPendingLoad = null;
+        }
+    }
+
+    /**
+     * Runs on the main thread once a load finished, drawable is null if it failed
+     */
+    private void onLoadFinished(LoadRequest request, AnimationSequenceDrawable drawable) {
+        if (request != mPendingLoad) {
+            // cancelled, the view shows something else by now
+            if (drawable != null) {
+                drawable.destroy();
+            }
+            return;
+        }
+        mPendingLoad = null;
+        if (drawable != null) {
+            applyAnimatedDrawable(true, configureDrawable(drawable));
+        } else if (request.mFallback != null) {
+            request.mFallback.run();
+        }
+    }
+
+    private class LoadRequest implements Runnable {
+        private final SequenceSource mSource;
+        private final Runnable mFallback;
+        private final BaseSequenceFactory mFactory = mSequenceFactory;
+        private final AnimationSequenceDrawable.BitmapProvider mProvider = mBitmapProvider;
+        private final int mTargetWidth;
+        private final int mTargetHeight;
+        private volatile boolean mCancelled;
+
+        LoadRequest(SequenceSource source, Runnable fallback, int targetWidth, int targetHeight) {
+            mSource = source;
+            mFallback = fallback;
+            mTargetWidth = targetWidth;
+            mTargetHeight = targetHeight;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            AnimationSequenceDrawable drawable = null;
+            try {
+                drawable = decodeDrawable(mFactory, mProvider, mSource, mTargetWidth, mTargetHeight);
+            } catch (Exception e) {
+                //falls back on the main thread
+            }
+            final AnimationSequenceDrawable loaded = drawable;
+            S_MAIN_HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    onLoadFinished(LoadRequest.this, loaded);
+                }
+            });
+        }
+    }
+
     @Override
     public void setBackgroundResource(int resId) {
         if (!setAnimatedResource(false, resId)) {
@@ -196,59 +413,82 @@ public class AnimationImageView extends AppCompatImageView {
      */
     public boolean setImageResourceFromAssets(String path) {
         AssetManager am = getContext().getResources().getAssets();
-        try {
-            InputStream inputStream = am.open(path);
-            AnimationSequenceDrawable drawable = createDrawable(inputStream);
-            setImageDrawable(drawable);
-            if (mAnimatedSrcDrawable != null) {
-                mAnimatedSrcDrawable.destroy();
-            }
-            mAnimatedSrcDrawable = drawable;
-            return true;
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return false;
+        return setAnimatedSource(true, SequenceSource.fromAsset(am, path));
     }
 
     private boolean setAnimatedImageUri(ImageView imageView, Uri uri) {
         if (uri != null) {
-            try {
-                InputStream inputStream = getInputStreamByUri(imageView.getContext(), uri);
-                AnimationSequenceDrawable frameSequenceDrawable = createDrawable(inputStream);
-                imageView.setImageDrawable(frameSequenceDrawable);
-                if (mAnimatedSrcDrawable != null) {
-                    mAnimatedSrcDrawable.destroy();
-                }
-                mAnimatedSrcDrawable = frameSequenceDrawable;
-                return true;
-            } catch (Exception e) {
-                //ignored
-            }
+            return setAnimatedSource(true, SequenceSource.fromUri(imageView.getContext(), uri));
         }
+        cancelPendingLoad();
         return false;
     }
 
-    private AnimationSequenceDrawable createDrawable(InputStream inputStream) {
-        AnimationSequenceDrawable frameSequenceDrawable = new AnimationSequenceDrawable(mSequenceFactory.createSequence(inputStream));
+    private AnimationSequenceDrawable createDrawable(boolean isSrc, SequenceSource source) throws IOException {
+        return configureDrawable(decodeDrawable(mSequenceFactory, mBitmapProvider, source,
+                getTargetWidth(isSrc), getTargetHeight(isSrc)));
+    }
+
+    /**
+     * Take the drawable the preloader prepared for source with this view's factory and
+     * bitmap provider, resized to this view if it's laid out
+     *
+     * @return the drawable, or null if none matching is prepared
+     */
+    private AnimationSequenceDrawable takePreloaded(boolean isSrc, SequenceSource source) {
+        if (mPreloader == null) {
+            return null;
+        }
+        AnimationSequenceDrawable drawable = mPreloader.take(source, mSequenceFactory,
+                mBitmapProvider);
+        if (drawable != null && getWidth() > 0 && getHeight() > 0) {
+            drawable.setTargetSize(getTargetWidth(isSrc), getTargetHeight(isSrc));
+        }
+        return drawable;
+    }
+
+    /**
+     * Parse the source and render its first frame, safe to call off the main thread
+     */
+    static AnimationSequenceDrawable decodeDrawable(BaseSequenceFactory factory,
+            AnimationSequenceDrawable.BitmapProvider bitmapProvider, SequenceSource source,
+            int targetWidth, int targetHeight) throws IOException {
+        BaseAnimationSequence sequence = factory.createSequence(source);
+        if (sequence == null) {
+            throw new IOException("Failed to decode " + source);
+        }
+        AnimationSequenceDrawable frameSequenceDrawable;
+        try {
+            frameSequenceDrawable = new AnimationSequenceDrawable(sequence, bitmapProvider,
+                    targetWidth, targetHeight);
+        } catch (RuntimeException e) {
+            sequence.destroy();
+            throw e;
+        }
+        return frameSequenceDrawable;
+    }
+
+    private AnimationSequenceDrawable configureDrawable(AnimationSequenceDrawable frameSequenceDrawable) {
+        frameSequenceDrawable.setFrameCache(mFrameCache);
         frameSequenceDrawable.setLoopCount(mLoopCount);
         frameSequenceDrawable.setLoopBehavior(mLoopBehavior);
         frameSequenceDrawable.setOnFinishedListener(mDrawableFinishedListener);
+        frameSequenceDrawable.setPriority(mAnimationPriority);
+        frameSequenceDrawable.setVisibleArea(mVisibleArea);
         return frameSequenceDrawable;
     }
 
-    private InputStream getInputStreamByResource(Resources resources, int resId) {
-        return resources.openRawResource(resId);
-    }
-
-    private InputStream getInputStreamByUri(Context context, Uri uri) throws IOException {
-        //workaround for #128
-        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
-            return new FileInputStream(new File(uri.getPath()));
-        } else {
-            return context.getResources().getAssets().open(uri.getPath());
+    private static BaseSequenceFactory getSequenceFactory(int srcType) {
+        if (srcType == SRC_TYPE_JAVA_GIF) {
+            return GifSequence.getSequenceFactory();
+        }
+        if (srcType == SRC_TYPE_APNG) {
+            return ApngSequence.getSequenceFactory();
         }
+        if (srcType == SRC_TYPE_AUTO) {
+            return SniffingSequenceFactory.getDefault();
+        }
+        return FrescoSequence.getSequenceFactory(srcType);
     }
 
     public void setLoopCount(int count) {
@@ -284,20 +524,204 @@ public class AnimationImageView extends AppCompatImageView {
         mFinishedListener = listener;
     }
 
+    /**
+     * Set the factory sequences are created with. Sequences of the same source are parsed once
+     * and shared with other views using the same factory.
+     */
     public void setSequenceFactory(BaseSequenceFactory factory) {
         if (factory != null) {
-            mSequenceFactory = factory;
+            mSequenceFactory = CachingSequenceFactory.getShared(factory);
+        }
+    }
+
+    /**
+     * Set the provider frame buffers of animations set afterwards come from.
+     * Defaults to the shared {@link PoolingBitmapProvider#getDefault()}; pass
+     * {@link FrameAtlas#getDefault()} to pack small animations, e.g. in sticker grids, into
+     * shared bitmaps.
+     */
+    public void setBitmapProvider(AnimationSequenceDrawable.BitmapProvider provider) {
+        if (provider != null) {
+            mBitmapProvider = provider;
+        }
+    }
+
+    /**
+     * Set the preloader animations set afterwards are taken from when it prepared them.
+     * Defaults to {@link AnimationPreloader#getDefault()}.
+     *
+     * @param preloader the preloader, or null to always decode
+     */
+    public void setPreloader(AnimationPreloader preloader) {
+        mPreloader = preloader;
+    }
+
+    /**
+     * Share decoded frames of animations set afterwards with other views using the same cache,
+     * so repeated copies of one animation are decoded about once. Off by default.
+     *
+     * @param frameCache the cache, or null to stop sharing
+     */
+    public void setFrameCache(FrameCache frameCache) {
+        mFrameCache = frameCache;
+    }
+
+    /**
+     * Decode animations at the size they're shown at rather than their own, when smaller.
+     * On by default, also settable with the downsample attribute.
+     */
+    public void setDownsampleEnabled(boolean downsample) {
+        mDownsample = downsample;
+        updateTargetSizes();
+    }
+
+    @Override
+    public void setScaleType(ScaleType scaleType) {
+        super.setScaleType(scaleType);
+        updateTargetSizes();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateTargetSizes();
+    }
+
+    private void updateTargetSizes() {
+        if (mAnimatedSrcDrawable != null) {
+            mAnimatedSrcDrawable.setTargetSize(getTargetWidth(true), getTargetHeight(true));
+        }
+        if (mAnimatedBgDrawable != null) {
+            mAnimatedBgDrawable.setTargetSize(getTargetWidth(false), getTargetHeight(false));
+        }
+    }
+
+    /**
+     * The width an animation is shown at, or 0 to decode at full size, e.g. before layout or
+     * for scale types that don't scale the image down
+     */
+    private int getTargetWidth(boolean isSrc) {
+        if (!canDownsample(isSrc)) {
+            return 0;
+        }
+        return isSrc ? getWidth() - getPaddingLeft() - getPaddingRight() : getWidth();
+    }
+
+    private int getTargetHeight(boolean isSrc) {
+        if (!canDownsample(isSrc)) {
+            return 0;
+        }
+        return isSrc ? getHeight() - getPaddingTop() - getPaddingBottom() : getHeight();
+    }
+
+    private boolean canDownsample(boolean isSrc) {
+        if (!mDownsample) {
+            return false;
+        }
+        // the background always fills the view, the image is only fitted by these
+        ScaleType scaleType = getScaleType();
+        return !isSrc || (scaleType != ScaleType.CENTER && scaleType != ScaleType.MATRIX);
+    }
+
+    /**
+     * Set how important this view's animations are, see
+     * {@link AnimationSequenceDrawable#setPriority(int)}. Also settable with the
+     * animationPriority attribute.
+     */
+    public void setAnimationPriority(int priority) {
+        mAnimationPriority = priority;
+        if (mAnimatedSrcDrawable != null) {
+            mAnimatedSrcDrawable.setPriority(priority);
         }
+        if (mAnimatedBgDrawable != null) {
+            mAnimatedBgDrawable.setPriority(priority);
+        }
+    }
+
+    public int getAnimationPriority() {
+        return mAnimationPriority;
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateVisibleArea();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateVisibleArea();
+    }
+
+    /**
+     * Report the part of the view on screen to the animations, so the
+     * {@link AnimationScheduler} favours the larger ones and pauses those scrolled away
+     */
+    private void updateVisibleArea() {
+        long area = -1;
+        if (mVisibilityListener.mAttached) {
+            area = isShown() && getWindowVisibility() == VISIBLE && getGlobalVisibleRect(mVisibleRect)
+                    ? (long) mVisibleRect.width() * mVisibleRect.height() : 0;
+        }
+        if (area == mVisibleArea) {
+            return;
+        }
+        mVisibleArea = area;
+        if (mAnimatedSrcDrawable != null) {
+            mAnimatedSrcDrawable.setVisibleArea(area);
+        }
+        if (mAnimatedBgDrawable != null) {
+            mAnimatedBgDrawable.setVisibleArea(area);
+        }
+    }
+
+    private class VisibilityListener implements ViewTreeObserver.OnScrollChangedListener,
+            ViewTreeObserver.OnGlobalLayoutListener {
+        private boolean mAttached;
+
+        @Override
+        public void onScrollChanged() {
+            updateVisibleArea();
+        }
+
+        @Override
+        public void onGlobalLayout() {
+            updateVisibleArea();
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        ViewTreeObserver observer = getViewTreeObserver();
+        observer.addOnScrollChangedListener(mVisibilityListener);
+        observer.addOnGlobalLayoutListener(mVisibilityListener);
+        mVisibilityListener.mAttached = true;
+        updateVisibleArea();
     }
 
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
+        ViewTreeObserver observer = getViewTreeObserver();
+        observer.removeOnScrollChangedListener(mVisibilityListener);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            observer.removeOnGlobalLayoutListener(mVisibilityListener);
+        } else {
+            observer.removeGlobalOnLayoutListener(mVisibilityListener);
+        }
+        mVisibilityListener.mAttached = false;
+        mVisibleArea = -1;
+        cancelPendingLoad();
+        // forgotten once destroyed, so a later image doesn't destroy them again
         if (mAnimatedBgDrawable != null) {
             mAnimatedBgDrawable.destroy();
+            mAnimatedBgDrawable = null;
         }
         if (mAnimatedSrcDrawable != null) {
             mAnimatedSrcDrawable.destroy();
+            mAnimatedSrcDrawable = null;
         }
     }
 }
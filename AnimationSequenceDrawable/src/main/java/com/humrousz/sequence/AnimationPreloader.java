@@ -0,0 +1,350 @@
+package com.humrousz.sequence;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Prepares drawables of animations about to be shown, e.g. rows a RecyclerView is about to
+ * bind, on a background thread: the source is read and parsed and its first frame rendered,
+ * optionally along with the frames after it. {@link AnimationImageView} takes a prepared
+ * drawable when it's set to the same resource, uri or asset, instead of decoding it again,
+ * as long as it was prepared with the view's factory and bitmap provider.
+ * <p>
+ * Requests are keyed by their source's {@link SequenceSource#getKey() key} and run highest
+ * priority first. At most a fixed number wait; a request beyond that displaces the lowest
+ * priority one, or is dropped if none is lower. Prepared drawables nobody took are destroyed,
+ * oldest first, once too many are kept.
+ */
+
+public class AnimationPreloader {
+    private static final int DEFAULT_MAX_QUEUED = 32;
+    private static final int DEFAULT_MAX_READY = 8;
+    private static final int THREAD_COUNT = 1;
+    private static final Object S_LOCK = new Object();
+    private static AnimationPreloader sDefault;
+
+    private final int mMaxQueued;
+    private final int mMaxReady;
+    private Executor mExecutor;
+    private BaseSequenceFactory mSequenceFactory =
+            CachingSequenceFactory.getShared(SniffingSequenceFactory.getDefault());
+    private AnimationSequenceDrawable.BitmapProvider mBitmapProvider = PoolingBitmapProvider.getDefault();
+    private int mPrefetchFrames;
+    /**
+     * Requests waiting to run, unordered; the queue is short enough to scan
+     */
+    private final List<Request> mQueue = new ArrayList<Request>();
+    /**
+     * Requests waiting or running, by key
+     */
+    private final Map<Object, Request> mRequests = new HashMap<Object, Request>();
+    /**
+     * Requests whose drawable is prepared, least recently prepared first
+     */
+    private final LinkedHashMap<Object, Request> mReady = new LinkedHashMap<Object, Request>();
+    private long mRequestCount;
+    /**
+     * Loads handed to the executor that haven't started, at most one per waiting request
+     */
+    private int mScheduledCount;
+
+    private final Runnable mLoadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            loadNext();
+        }
+    };
+
+    private static class Request {
+        final SequenceSource source;
+        final BaseSequenceFactory factory;
+        final AnimationSequenceDrawable.BitmapProvider bitmapProvider;
+        final int targetWidth;
+        final int targetHeight;
+        final int prefetchFrames;
+        final long order;
+        int priority;
+        boolean cancelled;
+        AnimationSequenceDrawable drawable;
+
+        Request(SequenceSource source, BaseSequenceFactory factory,
+                AnimationSequenceDrawable.BitmapProvider bitmapProvider, int targetWidth,
+                int targetHeight, int prefetchFrames, long order, int priority) {
+            this.source = source;
+            this.factory = factory;
+            this.bitmapProvider = bitmapProvider;
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+            this.prefetchFrames = prefetchFrames;
+            this.order = order;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Get the process wide preloader, which {@link AnimationImageView}s take from by default
+     */
+    public static AnimationPreloader getDefault() {
+        synchronized (S_LOCK) {
+            if (sDefault == null) {
+                sDefault = new AnimationPreloader(DEFAULT_MAX_QUEUED, DEFAULT_MAX_READY);
+            }
+            return sDefault;
+        }
+    }
+
+    /**
+     * @param maxQueued how many requests may wait
+     * @param maxReady how many prepared drawables are kept until taken
+     */
+    public AnimationPreloader(int maxQueued, int maxReady) {
+        if (maxQueued < 1 || maxReady < 1) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        mMaxQueued = maxQueued;
+        mMaxReady = maxReady;
+    }
+
+    /**
+     * Set the factory later requests are parsed with. Defaults to the shared caching
+     * {@link SniffingSequenceFactory#getDefault()}, as {@link AnimationImageView} uses.
+     */
+    public synchronized void setSequenceFactory(BaseSequenceFactory factory) {
+        if (factory != null) {
+            mSequenceFactory = CachingSequenceFactory.getShared(factory);
+        }
+    }
+
+    /**
+     * Set the provider frame buffers of later requests come from. Defaults to the shared
+     * {@link PoolingBitmapProvider#getDefault()}.
+     */
+    public synchronized void setBitmapProvider(AnimationSequenceDrawable.BitmapProvider provider) {
+        if (provider != null) {
+            mBitmapProvider = provider;
+        }
+    }
+
+    /**
+     * Set how many frames after the first later requests decode ahead, so playback starts
+     * without waiting for the decoder. The drawable buffers at least that many frames while
+     * playing. Defaults to 0.
+     */
+    public synchronized void setPrefetchFrames(int count) {
+        mPrefetchFrames = Math.max(0, count);
+    }
+
+    /**
+     * Set the executor requests run on. Defaults to a background thread of its own.
+     */
+    public synchronized void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    public boolean preloadResource(Resources resources, int resId, int priority) {
+        return preload(SequenceSource.fromResource(resources, resId), priority, 0, 0);
+    }
+
+    public boolean preloadUri(Context context, Uri uri, int priority) {
+        return preload(SequenceSource.fromUri(context, uri), priority, 0, 0);
+    }
+
+    /**
+     * Prepare a drawable of source. A source already waiting gets the higher of the two
+     * priorities; one already running or prepared is left as it is.
+     *
+     * @param priority higher runs first
+     * @param targetWidth the width it will be shown at, or 0 to decode at full size
+     * @param targetHeight the height it will be shown at, or 0 to decode at full size
+     * @return false if the request was dropped for lower priority than all waiting ones
+     */
+    public boolean preload(SequenceSource source, int priority, int targetWidth, int targetHeight) {
+        return preload(source, null, null, priority, targetWidth, targetHeight);
+    }
+
+    /**
+     * Prepare a drawable of source as a view with the given factory and provider would
+     * create it, see {@link #preload(SequenceSource, int, int, int)}
+     *
+     * @param factory the factory to parse with, or null for the preloader's
+     * @param provider the provider of frame buffers, or null for the preloader's
+     */
+    public boolean preload(SequenceSource source, BaseSequenceFactory factory,
+                           AnimationSequenceDrawable.BitmapProvider provider, int priority,
+                           int targetWidth, int targetHeight) {
+        final Object key = source.getKey();
+        Executor executor;
+        synchronized (this) {
+            if (mReady.containsKey(key)) {
+                return true;
+            }
+            Request existing = mRequests.get(key);
+            if (existing != null) {
+                existing.priority = Math.max(existing.priority, priority);
+                return true;
+            }
+            if (mQueue.size() >= mMaxQueued) {
+                Request lowest = null;
+                for (Request request : mQueue) {
+                    if (lowest == null || request.priority < lowest.priority
+                            || (request.priority == lowest.priority && request.order > lowest.order)) {
+                        lowest = request;
+                    }
+                }
+                if (lowest.priority >= priority) {
+                    return false;
+                }
+                mQueue.remove(lowest);
+                mRequests.remove(lowest.source.getKey());
+            }
+            Request request = new Request(source,
+                    factory != null ? CachingSequenceFactory.getShared(factory) : mSequenceFactory,
+                    provider != null ? provider : mBitmapProvider,
+                    targetWidth, targetHeight, mPrefetchFrames, mRequestCount++, priority);
+            mQueue.add(request);
+            mRequests.put(key, request);
+            if (mScheduledCount >= mQueue.size()) {
+                return true;
+            }
+            mScheduledCount++;
+            if (mExecutor == null) {
+                mExecutor = DecodeExecutors.newPool("AnimationPreloader thread", THREAD_COUNT);
+            }
+            executor = mExecutor;
+        }
+        executor.execute(mLoadRunnable);
+        return true;
+    }
+
+    /**
+     * Take the drawable prepared for source, if any. The caller owns it from then on, and
+     * must destroy it once done.
+     *
+     * @return the drawable, or null if it isn't prepared (yet)
+     */
+    public synchronized AnimationSequenceDrawable take(SequenceSource source) {
+        Request request = mReady.remove(source.getKey());
+        return request != null ? request.drawable : null;
+    }
+
+    /**
+     * Take the drawable prepared for source if it was parsed with factory and buffers frames
+     * from provider, see {@link #take(SequenceSource)}. One prepared otherwise is kept for
+     * another caller.
+     *
+     * @return the drawable, or null if none matching is prepared (yet)
+     */
+    public synchronized AnimationSequenceDrawable take(SequenceSource source,
+            BaseSequenceFactory factory, AnimationSequenceDrawable.BitmapProvider provider) {
+        final Object key = source.getKey();
+        Request request = mReady.get(key);
+        if (request == null || request.factory != CachingSequenceFactory.getShared(factory)
+                || request.bitmapProvider != provider) {
+            return null;
+        }
+        mReady.remove(key);
+        return request.drawable;
+    }
+
+    /**
+     * Drop the request for source, or the drawable prepared for it
+     */
+    public void cancel(SequenceSource source) {
+        final Object key = source.getKey();
+        AnimationSequenceDrawable drawable;
+        synchronized (this) {
+            Request request = mRequests.remove(key);
+            if (request != null) {
+                // a running request is dropped once it's done
+                request.cancelled = true;
+                mQueue.remove(request);
+            }
+            Request ready = mReady.remove(key);
+            drawable = ready != null ? ready.drawable : null;
+        }
+        if (drawable != null) {
+            drawable.destroy();
+        }
+    }
+
+    /**
+     * Drop all requests and prepared drawables, e.g. when leaving a screen
+     */
+    public void cancelAll() {
+        List<AnimationSequenceDrawable> drawables;
+        synchronized (this) {
+            for (Request request : mRequests.values()) {
+                request.cancelled = true;
+            }
+            mRequests.clear();
+            mQueue.clear();
+            drawables = new ArrayList<AnimationSequenceDrawable>(mReady.size());
+            for (Request ready : mReady.values()) {
+                drawables.add(ready.drawable);
+            }
+            mReady.clear();
+        }
+        for (AnimationSequenceDrawable drawable : drawables) {
+            drawable.destroy();
+        }
+    }
+
+    private void loadNext() {
+        Request request = null;
+        synchronized (this) {
+            mScheduledCount--;
+            for (Request candidate : mQueue) {
+                if (request == null || candidate.priority > request.priority
+                        || (candidate.priority == request.priority && candidate.order < request.order)) {
+                    request = candidate;
+                }
+            }
+            if (request == null) {
+                return;
+            }
+            mQueue.remove(request);
+        }
+        AnimationSequenceDrawable drawable = null;
+        try {
+            drawable = AnimationImageView.decodeDrawable(request.factory, request.bitmapProvider,
+                    request.source, request.targetWidth, request.targetHeight);
+            if (request.prefetchFrames > 0) {
+                drawable.prefetchFrames(request.prefetchFrames);
+            }
+        } catch (Exception e) {
+            // not an animation or unreadable, views fall back as they would without preloading
+        }
+        List<AnimationSequenceDrawable> toDestroy = new ArrayList<AnimationSequenceDrawable>();
+        synchronized (this) {
+            final Object key = request.source.getKey();
+            if (mRequests.get(key) == request) {
+                mRequests.remove(key);
+            }
+            if (request.cancelled) {
+                if (drawable != null) {
+                    toDestroy.add(drawable);
+                }
+            } else if (drawable != null) {
+                request.drawable = drawable;
+                mReady.put(key, request);
+                Iterator<Request> oldest = mReady.values().iterator();
+                while (mReady.size() > mMaxReady) {
+                    toDestroy.add(oldest.next().drawable);
+                    oldest.remove();
+                }
+            }
+        }
+        for (AnimationSequenceDrawable stale : toDestroy) {
+            stale.destroy();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.humrousz.sequence;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * Decides which started {@link AnimationSequenceDrawable}s may animate at once. Drawables are
+ * ranked by their {@link AnimationSequenceDrawable#setPriority(int) priority}, then by their
+ * {@link AnimationSequenceDrawable#setVisibleArea(long) visible area}, then by when they were
+ * started; the first {@link #setMaxRunning(int) maxRunning} of them animate and the others
+ * are paused on the frame they show, resuming from it once they rank high enough again.
+ * Drawables known to be entirely off screen never animate.
+ * <p>
+ * Drawables are called back on the thread that changed the ranking, outside of the
+ * scheduler's lock.
+ * <p>
+ * Started drawables are only held weakly, so one dropped without being stopped can still be
+ * collected; the place it held goes to the next drawable once the ranking changes again.
+ */
+
+public final class AnimationScheduler {
+    private static final Object S_LOCK = new Object();
+    private static AnimationScheduler sDefault;
+
+    private final Comparator<Request> mComparator = new Comparator<Request>() {
+        @Override
+        public int compare(Request a, Request b) {
+            if (a.priority != b.priority) {
+                return a.priority > b.priority ? -1 : 1;
+            }
+            if (a.visibleArea != b.visibleArea) {
+                return a.visibleArea > b.visibleArea ? -1 : 1;
+            }
+            return a.order < b.order ? -1 : a.order == b.order ? 0 : 1;
+        }
+    };
+    /**
+     * Requests of started drawables, by drawable
+     */
+    private final WeakHashMap<AnimationSequenceDrawable, Request> mRequests =
+            new WeakHashMap<AnimationSequenceDrawable, Request>();
+    /**
+     * The same requests, highest ranked first unless {@link #mRankingChanged}
+     */
+    private final ArrayList<Request> mRanking = new ArrayList<Request>();
+    private boolean mRankingChanged;
+    private int mMaxRunning = Integer.MAX_VALUE;
+    private long mNextOrder;
+
+    /**
+     * Get the scheduler all drawables report to.
+     */
+    public static AnimationScheduler getDefault() {
+        synchronized (S_LOCK) {
+            if (sDefault == null) {
+                sDefault = new AnimationScheduler();
+            }
+            return sDefault;
+        }
+    }
+
+    private AnimationScheduler() {
+    }
+
+    /**
+     * Set how many drawables may animate at once. Defaults to no limit, so only drawables
+     * known to be off screen are paused.
+     */
+    public void setMaxRunning(int maxRunning) {
+        if (maxRunning < 1) {
+            throw new IllegalArgumentException("maxRunning must be positive");
+        }
+        synchronized (this) {
+            mMaxRunning = maxRunning;
+        }
+        rebalance();
+    }
+
+    public synchronized int getMaxRunning() {
+        return mMaxRunning;
+    }
+
+    /**
+     * @return how many started drawables are allowed to animate
+     */
+    public synchronized int getRunningCount() {
+        int running = 0;
+        for (Request request : mRequests.values()) {
+            if (request.granted) {
+                running++;
+            }
+        }
+        return running;
+    }
+
+    /**
+     * @return how many started drawables are paused, waiting to rank high enough
+     */
+    public synchronized int getWaitingCount() {
+        return mRequests.size() - getRunningCount();
+    }
+
+    synchronized boolean isGranted(AnimationSequenceDrawable drawable) {
+        Request request = mRequests.get(drawable);
+        return request != null && request.granted;
+    }
+
+    /**
+     * The drawable was started, and animates as soon as it's granted
+     */
+    void request(AnimationSequenceDrawable drawable) {
+        synchronized (this) {
+            if (mRequests.containsKey(drawable)) {
+                return;
+            }
+            Request request = new Request(drawable, mNextOrder++);
+            mRequests.put(drawable, request);
+            mRanking.add(request);
+            mRankingChanged = true;
+        }
+        rebalance();
+    }
+
+    /**
+     * The drawable was stopped, finished or destroyed. It isn't called back.
+     */
+    void cancel(AnimationSequenceDrawable drawable) {
+        synchronized (this) {
+            Request request = mRequests.remove(drawable);
+            if (request == null) {
+                return;
+            }
+            // the others keep their order
+            mRanking.remove(request);
+        }
+        rebalance();
+    }
+
+    /**
+     * The drawable's priority or visible area changed
+     */
+    void update(AnimationSequenceDrawable drawable) {
+        synchronized (this) {
+            Request request = mRequests.get(drawable);
+            if (request == null) {
+                return;
+            }
+            final int priority = drawable.getPriority();
+            final long visibleArea = drawable.getVisibleArea();
+            if (priority == request.priority && visibleArea == request.visibleArea) {
+                return;
+            }
+            request.priority = priority;
+            request.visibleArea = visibleArea;
+            mRankingChanged = true;
+        }
+        rebalance();
+    }
+
+    private void rebalance() {
+        List<AnimationSequenceDrawable> revoked = null;
+        List<AnimationSequenceDrawable> granted = null;
+        synchronized (this) {
+            if (mRankingChanged) {
+                Collections.sort(mRanking, mComparator);
+                mRankingChanged = false;
+            }
+            int running = 0;
+            for (Iterator<Request> iterator = mRanking.iterator(); iterator.hasNext(); ) {
+                final Request request = iterator.next();
+                final AnimationSequenceDrawable drawable = request.drawable.get();
+                if (drawable == null) {
+                    // collected without being stopped
+                    iterator.remove();
+                    continue;
+                }
+                final boolean grant = running < mMaxRunning && request.visibleArea != 0;
+                if (grant) {
+                    running++;
+                }
+                if (grant == request.granted) {
+                    continue;
+                }
+                request.granted = grant;
+                if (grant) {
+                    if (granted == null) {
+                        granted = new ArrayList<AnimationSequenceDrawable>();
+                    }
+                    granted.add(drawable);
+                } else {
+                    if (revoked == null) {
+                        revoked = new ArrayList<AnimationSequenceDrawable>();
+                    }
+                    revoked.add(drawable);
+                }
+            }
+        }
+        // pause first, so fewer than maxRunning decode at any time
+        if (revoked != null) {
+            for (AnimationSequenceDrawable drawable : revoked) {
+                drawable.onSchedulingChanged();
+            }
+        }
+        if (granted != null) {
+            for (AnimationSequenceDrawable drawable : granted) {
+                drawable.onSchedulingChanged();
+            }
+        }
+    }
+
+    private static class Request {
+        /**
+         * Weak, so the map's value doesn't keep its key reachable
+         */
+        final WeakReference<AnimationSequenceDrawable> drawable;
+        final long order;
+        int priority;
+        long visibleArea;
+        boolean granted;
+
+        Request(AnimationSequenceDrawable drawable, long order) {
+            this.drawable = new WeakReference<AnimationSequenceDrawable>(drawable);
+            this.order = order;
+            priority = drawable.getPriority();
+            visibleArea = drawable.getVisibleArea();
+        }
+    }
+}
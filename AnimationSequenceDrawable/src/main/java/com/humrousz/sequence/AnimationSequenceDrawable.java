@@ -4,8 +4,11 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PixelFormat;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Shader;
@@ -21,6 +24,7 @@ import android.util.Log;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.Executor;
 
 /**
  * @author zhangzhiquan
@@ -40,6 +44,11 @@ public class AnimationSequenceDrawable extends Drawable implements Animatable, R
     private static final Object S_LOCK = new Object();
     private static HandlerThread sDecodingThread;
     private static Handler sDecodingThreadHandler;
+    private static Executor sDecodeExecutor;
+    private static volatile PlaybackMetrics.Listener sMetricsListener;
+    private static volatile boolean sUseFrameTicker;
+    private static final int DEFAULT_RESIDENT_MAX_BYTES = 512 * 1024;
+    private static volatile int sResidentMaxBytes = DEFAULT_RESIDENT_MAX_BYTES;
 
     private static void initializeDecodingThread() {
         synchronized (S_LOCK) {
@@ -53,6 +62,84 @@ public class AnimationSequenceDrawable extends Drawable implements Animatable, R
         }
     }
 
+    private static Executor getDecodeExecutor() {
+        synchronized (S_LOCK) {
+            if (sDecodeExecutor == null) {
+                initializeDecodingThread();
+                sDecodeExecutor = new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        sDecodingThreadHandler.post(command);
+                    }
+                };
+            }
+            return sDecodeExecutor;
+        }
+    }
+
+    /**
+     * Set the executor frames are decoded on. Defaults to a single background thread.
+     * <p>
+     * Each drawable still decodes its own frames one at a time and in order, but different
+     * drawables may decode in parallel on a multi-threaded executor. Only drawables created
+     * after this call use the new executor.
+     * <p>
+     * The adaptive {@link FrameRateLimiter} measures load against the executor's pool size,
+     * or one thread per core if it has none; call
+     * {@link FrameRateLimiter#setDecodeThreadCount(int)} afterwards if that's wrong.
+     *
+     * @param executor the executor, or null to restore the single decoding thread
+     * @see DecodeExecutors#newDecodePool()
+     */
+    public static void setDecodeExecutor(Executor executor) {
+        synchronized (S_LOCK) {
+            sDecodeExecutor = executor;
+        }
+        FrameRateLimiter.getDefault().setDecodeThreadCount(DecodeExecutors.getThreadCount(executor));
+    }
+
+    /**
+     * Decode frames on a pool of threadCount background threads, or on the single
+     * decoding thread if threadCount is 1. The threads of a pool replaced by a later call exit
+     * once the drawables still using it are idle.
+     *
+     * @see #setDecodeExecutor(Executor)
+     */
+    public static void setDecodeThreadCount(int threadCount) {
+        setDecodeExecutor(threadCount > 1 ? DecodeExecutors.newDecodePool(threadCount) : null);
+        FrameRateLimiter.getDefault().setDecodeThreadCount(threadCount);
+    }
+
+    /**
+     * Swap frames of drawables created afterwards from the shared vsync-driven
+     * {@link FrameTicker#getDefault()} rather than from their own handler messages.
+     * Off by default.
+     *
+     * @see #setFrameTicker(FrameTicker)
+     */
+    public static void setFrameTickerEnabled(boolean enabled) {
+        sUseFrameTicker = enabled;
+    }
+
+    /**
+     * Keep all frames of looping sequences whose frames take at most maxBytes in total in
+     * memory once decoded, so later loops are replayed by copying them instead of decoding.
+     * Frames are compressed where that makes them smaller. Defaults to 512KB.
+     * <p>
+     * Sequences from a {@link CachingSequenceFactory} keep one copy for all drawables showing
+     * them, applying the limit when they're parsed; other sequences keep one per drawable,
+     * applying it when the drawable is created.
+     *
+     * @param maxBytes the limit, or 0 to always decode
+     */
+    public static void setResidentFramesMaxBytes(int maxBytes) {
+        sResidentMaxBytes = Math.max(0, maxBytes);
+    }
+
+    static int getResidentFramesMaxBytes() {
+        return sResidentMaxBytes;
+    }
+
     public interface OnFinishedListener {
         /**
          * Called when a FrameSequenceDrawable has finished looping.
@@ -83,12 +170,29 @@ public class AnimationSequenceDrawable extends Drawable implements Animatable, R
          void releaseBitmap(Bitmap bitmap);
     }
 
-    private static BitmapProvider sAllocatingBitmapProvider = new BitmapProvider() {
+    /**
+     * A BitmapProvider that can also supply bitmaps of other configs, so sequences that are
+     * opaque can be buffered in RGB_565 at half the memory.
+     */
+    public interface ConfigurableBitmapProvider extends BitmapProvider {
+        /**
+         * Called by FrameSequenceDrawable to aquire a Bitmap of config with minimum dimensions.
+         * @param config ARGB_8888 or RGB_565
+         */
+        Bitmap acquireBitmap(int minWidth, int minHeight, Bitmap.Config config);
+    }
+
+    private static BitmapProvider sAllocatingBitmapProvider = new ConfigurableBitmapProvider() {
         @Override
         public Bitmap acquireBitmap(int minWidth, int minHeight) {
             return Bitmap.createBitmap(minWidth, minHeight, Bitmap.Config.ARGB_8888);
         }
 
+        @Override
+        public Bitmap acquireBitmap(int minWidth, int minHeight, Bitmap.Config config) {
+            return Bitmap.createBitmap(minWidth, minHeight, config);
+        }
+
         @Override
         public void releaseBitmap(Bitmap bitmap) {
         }
@@ -135,95 +239,528 @@ public class AnimationSequenceDrawable extends Drawable implements Animatable, R
     public void setLoopCount(int loopCount) {
         mLoopCount = loopCount;
     }
+
+    /**
+     * Show every frame, each for its duration from the time it was actually swapped in. A
+     * late swap or slow decode delays the rest of the animation.
+     */
+    public static final int PLAYBACK_SEQUENTIAL = 0;
+    /**
+     * Keep to the timeline anchored at start(): frames are due at the sum of the preceding
+     * durations, and frames whose successor is already due are skipped so a slow decoder
+     * catches up. Frames that depend on skipped ones are composited by the sequence, which
+     * is always told what the output buffer holds.
+     */
+    public static final int PLAYBACK_CATCH_UP = 1;
+
+    @IntDef({PLAYBACK_SEQUENTIAL, PLAYBACK_CATCH_UP})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface PlaybackMode {}
+
+    /**
+     * Set how playback keeps time, applies from the next start(). Defaults to
+     * PLAYBACK_SEQUENTIAL.
+     */
+    public void setPlaybackMode(@PlaybackMode int playbackMode) {
+        synchronized (mLock) {
+            mPlaybackMode = playbackMode;
+        }
+    }
+
+    /**
+     * Show at most maxFps frames per second. Runs of frames shorter than that are merged into
+     * their last frame, shown for their total duration, so the animation keeps its speed. The
+     * stricter of this and the process-wide {@link FrameRateLimiter} applies. Only sequences
+     * that know their {@link BaseAnimationSequence#getFrameDuration(int) frame durations}
+     * are limited.
+     *
+     * @param maxFps the limit, or 0 for none, the default
+     */
+    public void setMaxFps(int maxFps) {
+        if (maxFps < 0) {
+            throw new IllegalArgumentException("maxFps must not be negative");
+        }
+        synchronized (mLock) {
+            mMaxFps = maxFps;
+        }
+    }
+
+    public int getMaxFps() {
+        synchronized (mLock) {
+            return mMaxFps;
+        }
+    }
+
+    /**
+     * @return how many frames were skipped to catch up, see {@link #PLAYBACK_CATCH_UP}
+     */
+    public int getDroppedFrameCount() {
+        synchronized (mLock) {
+            return mMetrics.droppedFrames;
+        }
+    }
+
+    /**
+     * @return how many frames were swapped in noticeably after they were due
+     */
+    public int getLateFrameCount() {
+        synchronized (mLock) {
+            return mMetrics.lateFrames;
+        }
+    }
+
+    /**
+     * Copy this drawable's playback metrics into out.
+     * @param out reused to avoid allocating, may be null
+     * @return out, or a new object if out was null
+     */
+    public PlaybackMetrics getMetrics(PlaybackMetrics out) {
+        if (out == null) {
+            out = new PlaybackMetrics();
+        }
+        synchronized (mLock) {
+            long bytes = mFrontBitmap != null ? PoolingBitmapProvider.getSize(mFrontBitmap) : 0;
+            for (Bitmap bitmap : mBackBitmaps) {
+                if (bitmap != null) {
+                    bytes += PoolingBitmapProvider.getSize(bitmap);
+                }
+            }
+            mMetrics.bitmapBytes = bytes;
+            out.set(mMetrics);
+        }
+        return out;
+    }
+
+    public void resetMetrics() {
+        synchronized (mLock) {
+            mMetrics.reset();
+        }
+    }
+
+    /**
+     * Set a listener receiving the measurements of every drawable in the process, or null.
+     * It's called on decoding threads and the UI thread, and should return quickly.
+     */
+    public static void setMetricsListener(PlaybackMetrics.Listener listener) {
+        sMetricsListener = listener;
+    }
+
+    /**
+     * Set how important this animation is to the app. When more drawables are started than
+     * {@link AnimationScheduler#setMaxRunning(int) may run}, those of higher priority animate
+     * and the others pause on their current frame. Defaults to 0.
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+        AnimationScheduler.getDefault().update(this);
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Report how many pixels of the drawable are on screen, which ranks drawables of the same
+     * priority. A drawable with no visible pixels is paused until it becomes visible again.
+     *
+     * @param visibleArea the visible area in pixels, or -1 if unknown, the default
+     */
+    public void setVisibleArea(long visibleArea) {
+        mVisibleArea = visibleArea < 0 ? -1 : visibleArea;
+        AnimationScheduler.getDefault().update(this);
+    }
+
+    public long getVisibleArea() {
+        return mVisibleArea;
+    }
+
+    /**
+     * @return whether start() was called and the animation is paused by the
+     * {@link AnimationScheduler}, waiting to rank high enough
+     */
+    public boolean isWaiting() {
+        synchronized (mLock) {
+            return mStartRequested && !mPlaybackState.isRunning() && !mPlaybackState.isDestroyed();
+        }
+    }
     private final BaseAnimationSequence mAnimationSequence;
+    /**
+     * Whether the sequence is a {@link CachingSequenceFactory} handle, which the drawable
+     * releases once destroyed. Other sequences belong to whoever created the drawable.
+     */
+    private final boolean mOwnsSequence;
     private final Paint mPaint;
     private BitmapShader mFrontBitmapShader;
-    private BitmapShader mBackBitmapShader;
+    /**
+     * The part of mFrontBitmap holding the frame, its decoded size
+     */
     private final Rect mSrcRect;
+    /**
+     * Where frames are packed when the provider is an atlas they fit, otherwise null
+     */
+    private final FrameAtlas mFrameAtlas;
+    private final Matrix mShaderMatrix = new Matrix();
+    private int mDecodeWidth;
+    private int mDecodeHeight;
+    /**
+     * Size of the ring's bitmaps, lags mDecodeWidth/Height while the decoder owns a slot
+     */
+    private int mRingWidth;
+    private int mRingHeight;
+    /**
+     * A front bitmap replaced outside of a swap, released on the next draw
+     */
+    private Bitmap mRetiredBitmap;
+    private final Rect mRetiredRegion = new Rect();
     private boolean mCircleMaskEnabled;
     /**
      * Protects the fields below
      */
     private final Object mLock = new Object();
     private final BitmapProvider mBitmapProvider;
-    private boolean mDestroyed = false;
+    private final Bitmap.Config mBitmapConfig;
+    private final Executor mDecodeExecutor;
     private Bitmap mFrontBitmap;
-    private Bitmap mBackBitmap;
-    private static final int STATE_SCHEDULED = 1;
-    private static final int STATE_DECODING = 2;
-    private static final int STATE_WAITING_TO_SWAP = 3;
-    private static final int STATE_READY_TO_SWAP = 4;
-    private int mState;
+    private int mFrontFrame;
+    /**
+     * Ring of back buffers. mDecodedCount frames starting at mRingHead are decoded and wait
+     * to be swapped in, the remaining slots are free and get filled by the decoder in order.
+     * mBackFrames holds the frame each slot contains, or -1 if unknown.
+     */
+    private Bitmap[] mBackBitmaps;
+    private BitmapShader[] mBackBitmapShaders;
+    /**
+     * The part of each back bitmap a frame goes into, all of it unless packed in an atlas
+     */
+    private Rect[] mBackRegions;
+    private int[] mBackFrames;
+    private long[] mBackDelays;
+    private long[] mBackSwapTimes;
+    private int mRingHead;
+    private int mDecodedCount;
+    private int mDecodingSlot = -1;
+    private int mPrefetchDepth = 1;
+    /**
+     * Swap state and running/destroyed flags, read and advanced without the lock by the UI
+     * thread. Changed under the lock too, except by stopping and marking a frame ready.
+     */
+    private final PlaybackState mPlaybackState = new PlaybackState();
+    /**
+     * Decoder states, kept apart from the swap state since the decoder may keep filling the ring
+     * while a decoded frame waits to be swapped.
+     */
+    private static final int DECODER_IDLE = 0;
+    private static final int DECODER_SCHEDULED = 1;
+    private static final int DECODER_DECODING = 2;
+    private int mDecoderState = DECODER_IDLE;
+    /**
+     * Bumped on start, so frames decoded for an earlier run are not queued for this one
+     */
+    private int mGeneration;
     private int mCurrentLoop;
     private int mLoopBehavior = LOOP_DEFAULT;
     private int mLoopCount = 1;
     private long mLastSwap;
-    private long mNextSwap;
+    /**
+     * Written under the lock, read without it by draw
+     */
+    private volatile long mNextSwap;
+    private int mPlaybackMode = PLAYBACK_SEQUENTIAL;
+    private int mMaxFps;
+    private int mRunPlaybackMode = PLAYBACK_SEQUENTIAL;
+    /**
+     * When the last frame decoded or skipped is due, on the timeline anchored at start()
+     */
+    private long mTimeline;
+    private final PlaybackMetrics mMetrics = new PlaybackMetrics();
+    /**
+     * When the decoder was last handed to the executor, in System.nanoTime()
+     */
+    private long mDecodeScheduledNanos;
+    /**
+     * The decoder's position, only meaningful while running
+     */
     private int mNextFrameToDecode;
     private OnFinishedListener mOnFinishedListener;
+    private volatile int mPriority;
+    private volatile long mVisibleArea = -1;
+    /**
+     * Set from start() until stop() or finishing, whether or not the scheduler lets it run
+     */
+    private boolean mStartRequested;
+    /**
+     * Paused by the scheduler rather than stopped, so it resumes from the frame on screen
+     */
+    private boolean mPausedByScheduler;
+    /**
+     * Seeked while not running, so the next start resumes from the frame on screen
+     */
+    private boolean mSeekPending;
+    /**
+     * The ring holds the frames after the first, decoded before the first start
+     */
+    private boolean mPrefetched;
+    /**
+     * Built on first use
+     */
+    private SequenceIndex mSequenceIndex;
     private RectF mTempRectF = new RectF();
+    private FrameCache mFrameCache;
+    /**
+     * Swaps frames in and keeps time when set, otherwise scheduleSelf and SystemClock do
+     */
+    private volatile FrameTicker mFrameTicker;
+    /**
+     * Only used on the decoding thread
+     */
+    private final FrameCache.FrameKey mFrameKey = new FrameCache.FrameKey();
+    private final Rect mDecodeRegion = new Rect();
+    /**
+     * Only used under the lock
+     */
+    private final Rect mTempRegion = new Rect();
+    private Canvas mCacheCanvas;
+    private Paint mCachePaint;
 
     /**
-     * Runs on decoding thread, only modifies mBackBitmap's pixels
+     * Runs on decoding thread, fills free slots of the ring while there are any
      */
     private Runnable mDecodeRunnable = new Runnable() {
         @Override
         public void run() {
-            int nextFrame;
-            Bitmap bitmap;
-            synchronized (mLock) {
-                if (mDestroyed) {
-                    return;
+            boolean more = true;
+            while (more) {
+                more = decodeNextFrame();
+            }
+        }
+    };
+
+    /**
+     * Decodes the next frame into the first free slot of the ring, only modifies that
+     * slot's pixels.
+     *
+     * @return true if another free slot should be filled right away
+     */
+    private boolean decodeNextFrame() {
+        int nextFrame;
+        int slot;
+        int lastFrame;
+        int generation;
+        Bitmap bitmap;
+        FrameCache frameCache;
+        int width;
+        int height;
+        long queueWaitNanos = 0;
+        int droppedFrames;
+        long mergedDelay;
+        synchronized (mLock) {
+            nextFrame = mNextFrameToDecode;
+            if (!mPlaybackState.isRunning() || mDecodedCount == mBackBitmaps.length) {
+                mDecoderState = DECODER_IDLE;
+                return false;
+            }
+            if (mDecoderState == DECODER_SCHEDULED) {
+                queueWaitNanos = System.nanoTime() - mDecodeScheduledNanos;
+                mMetrics.recordQueueWait(queueWaitNanos);
+            }
+            droppedFrames = mMetrics.droppedFrames;
+            if (mRunPlaybackMode == PLAYBACK_CATCH_UP) {
+                nextFrame = skipOverdueFramesLocked(nextFrame);
+            }
+            droppedFrames = mMetrics.droppedFrames - droppedFrames;
+            mergedDelay = mergeShortFramesLocked(nextFrame);
+            nextFrame = mNextFrameToDecode;
+            slot = (mRingHead + mDecodedCount) % mBackBitmaps.length;
+            bitmap = mBackBitmaps[slot];
+            mDecodeRegion.set(mBackRegions[slot]);
+            lastFrame = mBackFrames[slot];
+            mBackFrames[slot] = -1;
+            mDecodingSlot = slot;
+            generation = mGeneration;
+            frameCache = mFrameCache;
+            width = mRingWidth;
+            height = mRingHeight;
+            mDecoderState = DECODER_DECODING;
+        }
+        boolean exceptionDuringDecode = false;
+        long invalidateTimeMs = 0;
+        final long decodeStart = System.nanoTime();
+        // frames packed in an atlas are rendered at the top left of a scratch bitmap
+        final Bitmap output = mFrameAtlas != null
+                ? mFrameAtlas.lockRegion(bitmap, mDecodeRegion, lastFrame >= 0) : bitmap;
+        try {
+            Object sourceKey = frameCache != null ? mAnimationSequence.getSourceKey() : null;
+            if (sourceKey == null) {
+                invalidateTimeMs = mAnimationSequence.getFrame(nextFrame, output, lastFrame, width, height);
+            } else {
+                mFrameKey.set(sourceKey, nextFrame, width, height);
+                FrameCache.Frame cached = frameCache.get(mFrameKey);
+                if (cached != null) {
+                    copyCachedFrame(cached.bitmap, output);
+                    invalidateTimeMs = cached.delayMs;
+                } else {
+                    invalidateTimeMs = mAnimationSequence.getFrame(nextFrame, output, lastFrame, width, height);
+                    frameCache.put(mFrameKey, output, invalidateTimeMs);
                 }
-                nextFrame = mNextFrameToDecode;
-                if (nextFrame < 0) {
-                    return;
+            }
+        } catch (Exception e) {
+            // Exception during decode: continue, but delay next frame indefinitely.
+            Log.e(TAG, "exception during decode: " + e);
+            exceptionDuringDecode = true;
+        }
+        if (mFrameAtlas != null) {
+            mFrameAtlas.unlockRegion(bitmap, mDecodeRegion, output);
+        }
+        final long decodeNanos = System.nanoTime() - decodeStart;
+        FrameRateLimiter.getDefault().recordDecode(decodeNanos);
+        invalidateTimeMs = mergedDelay >= 0 ? mergedDelay : clampDelay(invalidateTimeMs);
+        boolean schedule = false;
+        boolean more = false;
+        Bitmap bitmapToRelease = null;
+        synchronized (mLock) {
+            mDecodingSlot = -1;
+            mMetrics.recordDecode(decodeNanos);
+            if (mPlaybackState.isDestroyed()) {
+                bitmapToRelease = bitmap;
+                mBackBitmaps[slot] = null;
+            } else {
+                if (!exceptionDuringDecode) {
+                    mBackFrames[slot] = nextFrame;
                 }
-                bitmap = mBackBitmap;
-                mState = STATE_DECODING;
-            }
-            int lastFrame = nextFrame - 2;
-            boolean exceptionDuringDecode = false;
-            long invalidateTimeMs = 0;
-            try {
-                invalidateTimeMs = mAnimationSequence.getFrame(nextFrame, bitmap, lastFrame);
-            } catch (Exception e) {
-                // Exception during decode: continue, but delay next frame indefinitely.
-                Log.e(TAG, "exception during decode: " + e);
-                exceptionDuringDecode = true;
-            }
-            if (invalidateTimeMs < MIN_DELAY_MS) {
-                invalidateTimeMs = DEFAULT_DELAY_MS;
-            }
-            boolean schedule = false;
-            Bitmap bitmapToRelease = null;
-            synchronized (mLock) {
-                if (mDestroyed) {
-                    bitmapToRelease = mBackBitmap;
-                    mBackBitmap = null;
-                } else if (mNextFrameToDecode >= 0 && mState == STATE_DECODING) {
-                    schedule = true;
-                    mNextSwap = exceptionDuringDecode ? Long.MAX_VALUE : invalidateTimeMs + mLastSwap;
-                    mState = STATE_WAITING_TO_SWAP;
+                final boolean current = generation == mGeneration && mPlaybackState.isRunning();
+                if (current) {
+                    mBackDelays[slot] = exceptionDuringDecode ? Long.MAX_VALUE : invalidateTimeMs;
+                    mTimeline += invalidateTimeMs;
+                    mBackSwapTimes[slot] = exceptionDuringDecode ? Long.MAX_VALUE : mTimeline;
+                    mDecodedCount++;
+                    mNextFrameToDecode = (nextFrame + 1) % mAnimationSequence.getFrameCount();
+                    if (mDecodedCount == 1 && scheduleSwapLocked(PlaybackState.SCHEDULED)) {
+                        if (mFrameTicker != null) {
+                            mFrameTicker.register(this);
+                        } else {
+                            schedule = true;
+                        }
+                    }
                 }
+                // apply a prefetch depth changed while decoding
+                resizeRingLocked();
+                more = !(current && exceptionDuringDecode) && mPlaybackState.isRunning()
+                        && mDecodedCount < mBackBitmaps.length;
             }
-            if (schedule) {
-                scheduleSelf(AnimationSequenceDrawable.this, mNextSwap);
+            mDecoderState = more ? DECODER_DECODING : DECODER_IDLE;
+        }
+        if (schedule) {
+            scheduleSelf(AnimationSequenceDrawable.this, mNextSwap);
+        }
+        PlaybackMetrics.Listener listener = sMetricsListener;
+        if (listener != null) {
+            listener.onFrameDecoded(this, nextFrame, decodeNanos, queueWaitNanos, droppedFrames);
+        }
+        if (bitmapToRelease != null) {
+            // destroy the bitmap and sequence here, since there's no safe way to get back to
+            // drawable thread - drawable is likely detached, so schedule is noop.
+            releaseBuffer(bitmapToRelease, mDecodeRegion);
+            releaseSequence();
+        }
+        return more;
+    }
+
+    /**
+     * Release the sequence once it's no longer decoded from: destroy it if the drawable owns
+     * it, otherwise only drop the frames kept resident for it
+     */
+    private void releaseSequence() {
+        if (mOwnsSequence) {
+            mAnimationSequence.destroy();
+        } else if (mAnimationSequence instanceof ResidentSequence) {
+            ((ResidentSequence) mAnimationSequence).clear();
+        }
+    }
+
+    static long clampDelay(long delayMs) {
+        return delayMs < MIN_DELAY_MS ? DEFAULT_DELAY_MS : delayMs;
+    }
+
+    /**
+     * Skip frames that would be replaced before they could be shown, i.e. whose successor
+     * is already due on the timeline. Stops at the last frame, so loops are still counted,
+     * and at frames of unknown duration.
+     *
+     * @return the frame to decode
+     */
+    private int skipOverdueFramesLocked(int frame) {
+        final int lastFrame = mAnimationSequence.getFrameCount() - 1;
+        final long now = uptimeMillis();
+        while (frame < lastFrame) {
+            long duration = mAnimationSequence.getFrameDuration(frame);
+            long nextDuration = mAnimationSequence.getFrameDuration(frame + 1);
+            if (duration < 0 || nextDuration < 0) {
+                break;
             }
-            if (bitmapToRelease != null) {
-                // destroy the bitmap here, since there's no safe way to get back to
-                // drawable thread - drawable is likely detached, so schedule is noop.
-                mBitmapProvider.releaseBitmap(bitmapToRelease);
+            long due = mTimeline + clampDelay(duration);
+            if (due + clampDelay(nextDuration) > now) {
+                break;
             }
+            mTimeline = due;
+            frame++;
+            mMetrics.droppedFrames++;
         }
-    };
+        mNextFrameToDecode = frame;
+        return frame;
+    }
+
+    /**
+     * Merge the frames from frame on that are shorter than the frame rate limit into the
+     * last of them. Stops at the last frame, so loops are still counted, and at frames of
+     * unknown duration.
+     *
+     * @return the total duration of the merged frames, or -1 if frame is shown on its own
+     */
+    private long mergeShortFramesLocked(int frame) {
+        final long minInterval = Math.max(mMaxFps > 0 ? 1000 / mMaxFps : 0,
+                FrameRateLimiter.getDefault().getMinFrameIntervalMs());
+        final long duration = minInterval > 0 ? mAnimationSequence.getFrameDuration(frame) : -1;
+        if (duration < 0) {
+            return -1;
+        }
+        final int lastFrame = mAnimationSequence.getFrameCount() - 1;
+        long total = clampDelay(duration);
+        int merged = frame;
+        while (total < minInterval && merged < lastFrame) {
+            long nextDuration = mAnimationSequence.getFrameDuration(merged + 1);
+            if (nextDuration < 0) {
+                break;
+            }
+            total += clampDelay(nextDuration);
+            merged++;
+            mMetrics.mergedFrames++;
+        }
+        if (merged == frame) {
+            return -1;
+        }
+        mNextFrameToDecode = merged;
+        return total;
+    }
+
+    private void copyCachedFrame(Bitmap frame, Bitmap output) {
+        if (mCacheCanvas == null) {
+            mCacheCanvas = new Canvas();
+            mCachePaint = new Paint();
+            mCachePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        }
+        mCacheCanvas.setBitmap(output);
+        mCacheCanvas.drawBitmap(frame, 0, 0, mCachePaint);
+        mCacheCanvas.setBitmap(null);
+    }
+
     private Runnable mFinishedCallbackRunnable = new Runnable() {
         @Override
         public void run() {
+            mPlaybackState.stop();
             synchronized (mLock) {
-                mNextFrameToDecode = -1;
-                mState = 0;
+                mStartRequested = false;
             }
+            AnimationScheduler.getDefault().cancel(AnimationSequenceDrawable.this);
             if (mOnFinishedListener != null) {
                 mOnFinishedListener.onFinished(AnimationSequenceDrawable.this);
             }
@@ -231,38 +768,583 @@ public class AnimationSequenceDrawable extends Drawable implements Animatable, R
     };
 
     private static Bitmap acquireAndValidateBitmap(BitmapProvider bitmapProvider,
-                                                   int minWidth, int minHeight) {
-        Bitmap bitmap = bitmapProvider.acquireBitmap(minWidth, minHeight);
+                                                   int minWidth, int minHeight,
+                                                   Bitmap.Config config) {
+        Bitmap bitmap = config == Bitmap.Config.ARGB_8888
+                ? bitmapProvider.acquireBitmap(minWidth, minHeight)
+                : ((ConfigurableBitmapProvider) bitmapProvider).acquireBitmap(minWidth, minHeight, config);
         if (bitmap.getWidth() < minWidth
                 || bitmap.getHeight() < minHeight
-                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                || bitmap.getConfig() != config) {
             throw new IllegalArgumentException("Invalid bitmap provided");
         }
         return bitmap;
     }
 
+    /**
+     * Buffer opaque sequences in RGB_565 when both the sequence and the provider support it
+     */
+    private static Bitmap.Config chooseBitmapConfig(BaseAnimationSequence sequence,
+                                                    BitmapProvider bitmapProvider) {
+        if (sequence.isOpaque() && bitmapProvider instanceof ConfigurableBitmapProvider
+                && sequence.canRenderInto(Bitmap.Config.RGB_565)) {
+            return Bitmap.Config.RGB_565;
+        }
+        return Bitmap.Config.ARGB_8888;
+    }
+
     public AnimationSequenceDrawable(BaseAnimationSequence sequence){
         this(sequence,sAllocatingBitmapProvider);
     }
 
     public AnimationSequenceDrawable(BaseAnimationSequence sequence, BitmapProvider bitmapProvider){
-        final int width = sequence.getWidth();
-        final int height = sequence.getHeight();
+        this(sequence, bitmapProvider, 0, 0);
+    }
+
+    /**
+     * Create a drawable that decodes at the size it's shown at, if smaller than the sequence,
+     * see {@link #setTargetSize(int, int)}
+     * @param targetWidth the width the drawable is shown at, or 0 if unknown
+     * @param targetHeight the height the drawable is shown at, or 0 if unknown
+     */
+    public AnimationSequenceDrawable(BaseAnimationSequence sequence, BitmapProvider bitmapProvider,
+                                     int targetWidth, int targetHeight){
         mBitmapProvider = bitmapProvider;
-        mFrontBitmap = acquireAndValidateBitmap(bitmapProvider, width, height);
-        mBackBitmap = acquireAndValidateBitmap(bitmapProvider, width, height);
-        mSrcRect = new Rect(0, 0, width, height);
+        mBitmapConfig = chooseBitmapConfig(sequence, bitmapProvider);
+        // shared sequences keep their frames resident once, for all their drawables
+        mOwnsSequence = CachingSequenceFactory.isShared(sequence);
+        mAnimationSequence = mOwnsSequence ? sequence
+                : ResidentSequence.wrapIfSmall(sequence, mBitmapConfig, sResidentMaxBytes);
+        // decided for the full size, which the decode size never exceeds
+        mFrameAtlas = bitmapProvider instanceof FrameAtlas
+                && ((FrameAtlas) bitmapProvider).fits(sequence.getWidth(), sequence.getHeight())
+                ? (FrameAtlas) bitmapProvider : null;
+        computeDecodeSize(targetWidth, targetHeight);
+        final int width = mDecodeWidth;
+        final int height = mDecodeHeight;
+        mSrcRect = new Rect();
+        mFrontBitmap = acquireBuffer(width, height, mSrcRect);
         mPaint = new Paint();
         mPaint.setFilterBitmap(true);
         mFrontBitmapShader
                 = new BitmapShader(mFrontBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
-        mBackBitmapShader
-                = new BitmapShader(mBackBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        resizeRingLocked();
         mLastSwap = 0;
-        mNextFrameToDecode = -1;
-        mAnimationSequence = sequence;
-        mAnimationSequence.getFrame(0, mFrontBitmap, -1);
-        initializeDecodingThread();
+        renderFrame(0, mFrontBitmap, mSrcRect);
+        mFrontFrame = 0;
+        mDecodeExecutor = DecodeExecutors.serial(getDecodeExecutor());
+        mFrameTicker = sUseFrameTicker ? FrameTicker.getDefault() : null;
+    }
+
+    /**
+     * Swap frames in from ticker, on vsync and together with the other drawables using it,
+     * and keep time by its clock. Frames already waiting stay due at the same distance from
+     * now.
+     *
+     * @param ticker the ticker, or null to schedule swaps with handler messages
+     */
+    public void setFrameTicker(FrameTicker ticker) {
+        final boolean waiting;
+        final boolean wasTicking;
+        synchronized (mLock) {
+            if (ticker == mFrameTicker) {
+                return;
+            }
+            final long delta = (ticker != null ? ticker.uptimeMillis() : SystemClock.uptimeMillis())
+                    - uptimeMillis();
+            mLastSwap += delta;
+            mTimeline += delta;
+            if (mNextSwap != Long.MAX_VALUE) {
+                mNextSwap += delta;
+            }
+            for (int i = 0; i < mBackSwapTimes.length; i++) {
+                if (mBackSwapTimes[i] != Long.MAX_VALUE) {
+                    mBackSwapTimes[i] += delta;
+                }
+            }
+            wasTicking = mFrameTicker != null;
+            if (wasTicking) {
+                mFrameTicker.unregister(this);
+            }
+            mFrameTicker = ticker;
+            waiting = mPlaybackState.isRunning()
+                    && mPlaybackState.getState() == PlaybackState.WAITING_TO_SWAP;
+            if (waiting && ticker != null) {
+                ticker.register(this);
+            }
+        }
+        if (!wasTicking) {
+            // drop the message posted for the old time base
+            super.unscheduleSelf(this);
+        }
+        if (waiting && ticker == null) {
+            scheduleSelf(this, mNextSwap);
+        }
+    }
+
+    public FrameTicker getFrameTicker() {
+        synchronized (mLock) {
+            return mFrameTicker;
+        }
+    }
+
+    /**
+     * @return the time playback keeps, safe to call without the lock
+     */
+    private long uptimeMillis() {
+        return mFrameTicker != null ? mFrameTicker.uptimeMillis() : SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Called by ticker on the main thread, marks the waiting frame ready to swap once it's due
+     *
+     * @return true if the drawable needs to be drawn
+     */
+    boolean onTick(FrameTicker ticker, long now) {
+        if (ticker == mFrameTicker && mPlaybackState.getState() == PlaybackState.WAITING_TO_SWAP
+                && mNextSwap - now > 0) {
+            return false;
+        }
+        // unregister before looking again, since moving to waiting registers after the move
+        ticker.unregister(this);
+        if (ticker != mFrameTicker || mPlaybackState.getState() != PlaybackState.WAITING_TO_SWAP) {
+            return false;
+        }
+        if (mNextSwap - now > 0) {
+            ticker.register(this);
+            return false;
+        }
+        // only draw leaves ready, on this thread, so the frame found due is the one made ready
+        return mPlaybackState.move(PlaybackState.WAITING_TO_SWAP, PlaybackState.READY_TO_SWAP);
+    }
+
+    /**
+     * Decode frames at the size the drawable is shown at, when that's smaller than the
+     * sequence and the sequence {@link BaseAnimationSequence#supportsScaling() supports
+     * scaling}. Frames are scaled uniformly so they still cover width x height, whatever the
+     * aspect ratio of the bounds. Frames decoded at the previous size are dropped; the one on
+     * screen stays until the next swap, or is decoded again right away when not running.
+     *
+     * @param width the width the drawable is shown at, or 0 to decode at full size
+     * @param height the height the drawable is shown at, or 0 to decode at full size
+     */
+    public void setTargetSize(int width, int height) {
+        synchronized (mLock) {
+            if (mPlaybackState.isDestroyed()) {
+                // only a hint, e.g. from a view laid out after it destroyed the drawable
+                return;
+            }
+            final int oldWidth = mDecodeWidth;
+            final int oldHeight = mDecodeHeight;
+            computeDecodeSize(width, height);
+            if (mDecodeWidth == oldWidth && mDecodeHeight == oldHeight) {
+                return;
+            }
+            // frames being decoded or buffered are of the old size
+            mGeneration++;
+            mDecodedCount = 0;
+            if (mPlaybackState.moveIfRunning(PlaybackState.SCHEDULED)) {
+                mNextFrameToDecode = (mFrontFrame + 1) % mAnimationSequence.getFrameCount();
+                mTimeline = mLastSwap;
+                scheduleDecodeLocked();
+                return;
+            }
+            resizeRingLocked();
+            if (mDecoderState == DECODER_IDLE) {
+                decodeFrontLocked(mFrontFrame);
+            }
+        }
+        invalidateSelf();
+    }
+
+    /**
+     * @return the width frames are decoded at
+     */
+    public int getDecodeWidth() {
+        synchronized (mLock) {
+            return mDecodeWidth;
+        }
+    }
+
+    /**
+     * @return the height frames are decoded at
+     */
+    public int getDecodeHeight() {
+        synchronized (mLock) {
+            return mDecodeHeight;
+        }
+    }
+
+    private void computeDecodeSize(int targetWidth, int targetHeight) {
+        final int width = mAnimationSequence.getWidth();
+        final int height = mAnimationSequence.getHeight();
+        mDecodeWidth = width;
+        mDecodeHeight = height;
+        if (targetWidth <= 0 || targetHeight <= 0 || !mAnimationSequence.supportsScaling()) {
+            return;
+        }
+        final float scale = Math.max((float) targetWidth / width, (float) targetHeight / height);
+        if (scale < 1) {
+            mDecodeWidth = Math.max(1, (int) Math.ceil(width * scale));
+            mDecodeHeight = Math.max(1, (int) Math.ceil(height * scale));
+        }
+    }
+
+    /**
+     * Decode frameNr into a new front bitmap at the decode size, while not playing. The old
+     * front bitmap may still be referenced by the last frame drawn, so it's released on the
+     * next draw.
+     */
+    private void decodeFrontLocked(int frameNr) {
+        Bitmap bitmap = acquireBuffer(mDecodeWidth, mDecodeHeight, mTempRegion);
+        // the new buffer holds no frame, so the sequence renders from frameNr's keyframe
+        renderFrame(frameNr, bitmap, mTempRegion);
+        mFrontFrame = frameNr;
+        if (mRetiredBitmap != null) {
+            // the front was never drawn since the last retirement
+            releaseBuffer(mFrontBitmap, mSrcRect);
+        } else {
+            mRetiredBitmap = mFrontBitmap;
+            mRetiredRegion.set(mSrcRect);
+            mPlaybackState.setRetired(true);
+        }
+        mFrontBitmap = bitmap;
+        mFrontBitmapShader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        mSrcRect.set(mTempRegion);
+    }
+
+    /**
+     * Acquire a buffer for a width x height frame, from the atlas if frames are packed
+     *
+     * @param region set to the part of the buffer the frame goes into
+     */
+    private Bitmap acquireBuffer(int width, int height, Rect region) {
+        if (mFrameAtlas != null) {
+            return mFrameAtlas.acquireRegion(width, height, mBitmapConfig, region);
+        }
+        region.set(0, 0, width, height);
+        return acquireAndValidateBitmap(mBitmapProvider, width, height, mBitmapConfig);
+    }
+
+    private void releaseBuffer(Bitmap bitmap, Rect region) {
+        if (mFrameAtlas != null) {
+            mFrameAtlas.releaseRegion(bitmap, region);
+        } else {
+            mBitmapProvider.releaseBitmap(bitmap);
+        }
+    }
+
+    /**
+     * Render frameNr from its keyframe into region of bitmap
+     *
+     * @return the delay the sequence returned
+     */
+    private long renderFrame(int frameNr, Bitmap bitmap, Rect region) {
+        final int width = region.width();
+        final int height = region.height();
+        if (mFrameAtlas == null) {
+            return mAnimationSequence.getFrame(frameNr, bitmap, -1, width, height);
+        }
+        Bitmap output = mFrameAtlas.lockRegion(bitmap, region, false);
+        final long delay = mAnimationSequence.getFrame(frameNr, output, -1, width, height);
+        mFrameAtlas.unlockRegion(bitmap, region, output);
+        return delay;
+    }
+
+    /**
+     * Decode the frames after the first into the ring before the drawable is first started,
+     * e.g. on a preloading thread, so playback starts without waiting for the decoder. They
+     * are dropped if it's resized or seeked meanwhile; starting keeps those decoded so far.
+     * <p>
+     * Acts as the drawable's decoder while it runs: each frame is rendered from the one before
+     * without holding the lock, which is only taken to claim and publish its slot.
+     *
+     * @param count how many frames, the ring is deepened to hold them if needed
+     */
+    void prefetchFrames(int count) {
+        final int generation;
+        synchronized (mLock) {
+            checkDestroyed();
+            count = Math.min(count, mAnimationSequence.getFrameCount() - 1);
+            if (count <= 0 || mStartRequested || mFrontFrame != 0 || mDecodedCount > 0
+                    || mDecoderState != DECODER_IDLE) {
+                return;
+            }
+            mPrefetchDepth = Math.max(mPrefetchDepth, count);
+            resizeRingLocked();
+            // start() leaves scheduling the decoder to us from here on
+            mDecoderState = DECODER_DECODING;
+            mPrefetched = true;
+            generation = mGeneration;
+        }
+        Bitmap previous = null;
+        final Rect previousRegion = new Rect();
+        final Rect region = new Rect();
+        Bitmap bitmapToRelease = null;
+        try {
+            for (int i = 0; i < count; i++) {
+                final int frameNr = i + 1;
+                final int slot;
+                final Bitmap bitmap;
+                synchronized (mLock) {
+                    if (mPlaybackState.isDestroyed() || generation != mGeneration) {
+                        return;
+                    }
+                    slot = (mRingHead + i) % mBackBitmaps.length;
+                    bitmap = mBackBitmaps[slot];
+                    region.set(mBackRegions[slot]);
+                    if (previous == null) {
+                        previous = mFrontBitmap;
+                        previousRegion.set(mSrcRect);
+                    }
+                    mBackFrames[slot] = -1;
+                    mDecodingSlot = slot;
+                }
+                long delay = 0;
+                boolean rendered = false;
+                try {
+                    delay = renderAfter(frameNr, previous, previousRegion, bitmap, region);
+                    rendered = true;
+                } catch (Exception e) {
+                    // left to the decoder once started
+                    Log.e(TAG, "exception during prefetch: " + e);
+                }
+                synchronized (mLock) {
+                    mDecodingSlot = -1;
+                    if (mPlaybackState.isDestroyed()) {
+                        bitmapToRelease = bitmap;
+                        mBackBitmaps[slot] = null;
+                        return;
+                    }
+                    if (!rendered || generation != mGeneration) {
+                        return;
+                    }
+                    mBackDelays[slot] = clampDelay(delay);
+                    mBackFrames[slot] = frameNr;
+                    mDecodedCount = frameNr;
+                }
+                previous = bitmap;
+                previousRegion.set(region);
+            }
+        } finally {
+            synchronized (mLock) {
+                mDecoderState = DECODER_IDLE;
+                if (!mPlaybackState.isDestroyed()) {
+                    // catch up on what was put off while the slots were ours
+                    resizeRingLocked();
+                    if (mPlaybackState.isRunning()) {
+                        scheduleDecodeLocked();
+                    } else if (mSrcRect.width() != mDecodeWidth
+                            || mSrcRect.height() != mDecodeHeight) {
+                        decodeFrontLocked(mFrontFrame);
+                    }
+                }
+            }
+            if (bitmapToRelease != null) {
+                releaseBuffer(bitmapToRelease, region);
+                releaseSequence();
+            }
+        }
+    }
+
+    /**
+     * Render frameNr into region of bitmap from frameNr - 1 in previousRegion of previous,
+     * so incremental sequences only apply one frame's changes
+     *
+     * @return the delay the sequence returned
+     */
+    private long renderAfter(int frameNr, Bitmap previous, Rect previousRegion, Bitmap bitmap,
+                             Rect region) {
+        final int width = region.width();
+        final int height = region.height();
+        if (previousRegion.width() != width || previousRegion.height() != height) {
+            return renderFrame(frameNr, bitmap, region);
+        }
+        if (mFrameAtlas == null) {
+            copyCachedFrame(previous, bitmap);
+            return mAnimationSequence.getFrame(frameNr, bitmap, frameNr - 1, width, height);
+        }
+        Bitmap output = mFrameAtlas.lockRegion(previous, previousRegion, true);
+        final long delay = mAnimationSequence.getFrame(frameNr, output, frameNr - 1, width, height);
+        mFrameAtlas.unlockRegion(bitmap, region, output);
+        return delay;
+    }
+
+    /**
+     * @return the timing and keyframes of the sequence
+     */
+    public SequenceIndex getSequenceIndex() {
+        synchronized (mLock) {
+            if (mSequenceIndex == null) {
+                mSequenceIndex = new SequenceIndex(mAnimationSequence);
+            }
+            return mSequenceIndex;
+        }
+    }
+
+    /**
+     * @return how long one loop of the animation takes in milliseconds
+     */
+    public long getDuration() {
+        return getSequenceIndex().getDuration();
+    }
+
+    /**
+     * Show frameNr. Only the frames from its closest {@link SequenceIndex#getKeyFrame(int)
+     * keyframe} on are decoded, or from the frame a buffer already holds if that's closer.
+     * While running, frames buffered ahead are dropped and playback carries on from frameNr as
+     * soon as it's decoded; otherwise it's decoded right away, and the next start() resumes
+     * from it.
+     *
+     * @param frameNr the frame to show
+     */
+    public void seekTo(int frameNr) {
+        if (frameNr < 0 || frameNr >= mAnimationSequence.getFrameCount()) {
+            throw new IllegalArgumentException("Frame " + frameNr + " out of range");
+        }
+        synchronized (mLock) {
+            checkDestroyed();
+            // frames being decoded or buffered follow the old position
+            mGeneration++;
+            mDecodedCount = 0;
+            if (mPlaybackState.moveIfRunning(PlaybackState.SCHEDULED)) {
+                // as if the frame before had just been swapped in, so frameNr is due now
+                final long now = uptimeMillis();
+                mLastSwap = now - getSequenceIndex().getFrameDuration(frameNr);
+                mTimeline = mLastSwap;
+                mNextFrameToDecode = frameNr;
+                scheduleDecodeLocked();
+                return;
+            }
+            mSeekPending = true;
+            decodeFrontLocked(frameNr);
+        }
+        invalidateSelf();
+    }
+
+    /**
+     * Show the frame due timeMs after the start of a loop, see {@link #seekTo(int)}.
+     *
+     * @param timeMs the time, wrapped around to the length of one loop
+     */
+    public void seekToTime(long timeMs) {
+        if (timeMs < 0) {
+            throw new IllegalArgumentException("Time must not be negative");
+        }
+        SequenceIndex index = getSequenceIndex();
+        final long duration = index.getDuration();
+        // a loop without length has nothing to wrap around
+        seekTo(duration > 0 ? index.getFrameAtTime(timeMs % duration) : 0);
+    }
+
+    /**
+     * Share decoded frames with other drawables using the same cache. Frames are only
+     * cached for sequences with a {@link BaseAnimationSequence#getSourceKey() source key}.
+     *
+     * @param frameCache the cache, or null to always decode
+     */
+    public void setFrameCache(FrameCache frameCache) {
+        synchronized (mLock) {
+            mFrameCache = frameCache;
+        }
+    }
+
+    /**
+     * Set how many decoded frames may be buffered ahead of the one on screen. A deeper ring
+     * absorbs short decoding stalls without dropping frames, at the cost of one more
+     * bitmap per frame. Defaults to 1, i.e. plain double buffering.
+     */
+    public void setPrefetchDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Prefetch depth must be positive");
+        }
+        synchronized (mLock) {
+            checkDestroyed();
+            mPrefetchDepth = depth;
+            // while a slot is being decoded the decoder applies the change once it's done
+            resizeRingLocked();
+            if (mPlaybackState.isRunning()) {
+                scheduleDecodeLocked();
+            }
+        }
+    }
+
+    /**
+     * @return the config of the frame buffers, RGB_565 for opaque sequences where supported
+     */
+    public Bitmap.Config getBitmapConfig() {
+        return mBitmapConfig;
+    }
+
+    public int getPrefetchDepth() {
+        synchronized (mLock) {
+            return mPrefetchDepth;
+        }
+    }
+
+    /**
+     * Grow or shrink the ring to mPrefetchDepth slots, keeping decoded frames in order.
+     * Does nothing while the decoder owns a slot.
+     */
+    private void resizeRingLocked() {
+        if (mDecodingSlot >= 0) {
+            return;
+        }
+        if (mBackBitmaps != null && (mRingWidth != mDecodeWidth || mRingHeight != mDecodeHeight)) {
+            // decoded at the old size, reallocate every slot
+            for (int i = 0; i < mBackBitmaps.length; i++) {
+                releaseBuffer(mBackBitmaps[i], mBackRegions[i]);
+            }
+            mBackBitmaps = null;
+            mDecodedCount = 0;
+        }
+        mRingWidth = mDecodeWidth;
+        mRingHeight = mDecodeHeight;
+        final int oldDepth = mBackBitmaps == null ? 0 : mBackBitmaps.length;
+        final int depth = mPrefetchDepth;
+        if (oldDepth == depth) {
+            return;
+        }
+        Bitmap[] bitmaps = new Bitmap[depth];
+        BitmapShader[] shaders = new BitmapShader[depth];
+        Rect[] regions = new Rect[depth];
+        int[] frames = new int[depth];
+        long[] delays = new long[depth];
+        long[] swapTimes = new long[depth];
+        for (int i = 0; i < oldDepth; i++) {
+            int from = (mRingHead + i) % oldDepth;
+            if (i < depth) {
+                bitmaps[i] = mBackBitmaps[from];
+                shaders[i] = mBackBitmapShaders[from];
+                regions[i] = mBackRegions[from];
+                frames[i] = mBackFrames[from];
+                delays[i] = mBackDelays[from];
+                swapTimes[i] = mBackSwapTimes[from];
+            } else {
+                releaseBuffer(mBackBitmaps[from], mBackRegions[from]);
+            }
+        }
+        for (int i = oldDepth; i < depth; i++) {
+            regions[i] = new Rect();
+            bitmaps[i] = acquireBuffer(mRingWidth, mRingHeight, regions[i]);
+            shaders[i] = new BitmapShader(bitmaps[i], Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            frames[i] = -1;
+        }
+        if (mDecodedCount > depth) {
+            // drop the frames decoded furthest ahead and decode them again later
+            mDecodedCount = depth;
+            if (mPlaybackState.isRunning() && frames[depth - 1] >= 0) {
+                mNextFrameToDecode = (frames[depth - 1] + 1) % mAnimationSequence.getFrameCount();
+                mTimeline = swapTimes[depth - 1];
+            }
+        }
+        mBackBitmaps = bitmaps;
+        mBackBitmapShaders = shaders;
+        mBackRegions = regions;
+        mBackFrames = frames;
+        mBackDelays = delays;
+        mBackSwapTimes = swapTimes;
+        mRingHead = 0;
     }
 
     /**
@@ -284,16 +1366,14 @@ public class AnimationSequenceDrawable extends Drawable implements Animatable, R
         return mCircleMaskEnabled;
     }
 
-    private void checkDestroyedLocked() {
-        if (mDestroyed) {
+    private void checkDestroyed() {
+        if (mPlaybackState.isDestroyed()) {
             throw new IllegalStateException("Cannot perform operation on recycled drawable");
         }
     }
 
     public boolean isDestroyed() {
-        synchronized (mLock) {
-            return mDestroyed;
-        }
+        return mPlaybackState.isDestroyed();
     }
 
     /**
@@ -301,63 +1381,172 @@ public class AnimationSequenceDrawable extends Drawable implements Animatable, R
      * Bitmaps drawable to its BitmapProvider, if attached.
      * <p>
      * If no BitmapProvider is attached to the drawable, recycle() is called on the Bitmaps.
+     * <p>
+     * Sequences created by a {@link CachingSequenceFactory} are released too, destroying the
+     * shared sequence once its last drawable is destroyed. Any other sequence is left to its
+     * creator to {@link BaseAnimationSequence#destroy() destroy}.
      */
     public void destroy() {
         if (mBitmapProvider == null) {
             throw new IllegalStateException("BitmapProvider must be non-null");
         }
         Bitmap bitmapToReleaseA;
-        Bitmap bitmapToReleaseB = null;
+        Bitmap[] bitmapsToRelease;
+        Rect[] regionsToRelease;
+        boolean destroySequence;
         synchronized (mLock) {
-            checkDestroyedLocked();
+            checkDestroyed();
             bitmapToReleaseA = mFrontBitmap;
             mFrontBitmap = null;
-            if (mState != STATE_DECODING) {
-                bitmapToReleaseB = mBackBitmap;
-                mBackBitmap = null;
+            if (mRetiredBitmap != null) {
+                releaseBuffer(mRetiredBitmap, mRetiredRegion);
+                mRetiredBitmap = null;
+                mPlaybackState.setRetired(false);
+            }
+            bitmapsToRelease = new Bitmap[mBackBitmaps.length];
+            regionsToRelease = mBackRegions;
+            for (int i = 0; i < mBackBitmaps.length; i++) {
+                // the slot being decoded is released by the decoder once it's done
+                if (i != mDecodingSlot) {
+                    bitmapsToRelease[i] = mBackBitmaps[i];
+                    mBackBitmaps[i] = null;
+                }
+            }
+            // the sequence is in use while decoding, then the decoder releases it
+            destroySequence = mDecodingSlot < 0;
+            mPlaybackState.destroy();
+            if (mFrameTicker != null) {
+                mFrameTicker.unregister(this);
             }
-            mDestroyed = true;
+            mStartRequested = false;
         }
-        // For simplicity and safety, we don't destroy the state object here
-        mBitmapProvider.releaseBitmap(bitmapToReleaseA);
-        if (bitmapToReleaseB != null) {
-            mBitmapProvider.releaseBitmap(bitmapToReleaseB);
+        AnimationScheduler.getDefault().cancel(this);
+        if (destroySequence) {
+            releaseSequence();
+        }
+        // regions are no longer changed once destroyed
+        releaseBuffer(bitmapToReleaseA, mSrcRect);
+        for (int i = 0; i < bitmapsToRelease.length; i++) {
+            if (bitmapsToRelease[i] != null) {
+                releaseBuffer(bitmapsToRelease[i], regionsToRelease[i]);
+            }
         }
     }
 
+    /**
+     * Start animating from the first frame, or the one {@link #seekTo(int) seeked} to, as
+     * soon as the {@link AnimationScheduler} lets this drawable run.
+     */
     @Override
     public void start() {
-        if (!isRunning()) {
-            synchronized (mLock) {
-                checkDestroyedLocked();
-                // already scheduled
-                if (mState == STATE_SCHEDULED){
-                    return;
-                }
-                mCurrentLoop = 0;
-                scheduleDecodeLocked();
+        synchronized (mLock) {
+            checkDestroyed();
+            // already running or waiting to
+            if (mStartRequested) {
+                return;
             }
+            mStartRequested = true;
+            mPausedByScheduler = false;
         }
+        AnimationScheduler.getDefault().request(this);
+        onSchedulingChanged();
     }
 
     @Override
     public void stop() {
+        synchronized (mLock) {
+            mStartRequested = false;
+            mPausedByScheduler = false;
+        }
+        AnimationScheduler.getDefault().cancel(this);
         if (isRunning()) {
             unscheduleSelf(this);
         }
     }
 
-    @Override
-    public boolean isRunning() {
+    /**
+     * Called by the scheduler when this drawable was granted or lost the right to run,
+     * outside of its lock. May be called more than once for one change.
+     */
+    void onSchedulingChanged() {
+        boolean pause = false;
         synchronized (mLock) {
-            return mNextFrameToDecode > -1 && !mDestroyed;
+            if (mPlaybackState.isDestroyed() || !mStartRequested) {
+                return;
+            }
+            if (AnimationScheduler.getDefault().isGranted(this)) {
+                if (!mPlaybackState.isRunning()) {
+                    startPlaybackLocked();
+                }
+            } else if (mPlaybackState.isRunning()) {
+                mPausedByScheduler = true;
+                pause = true;
+            }
+        }
+        if (pause) {
+            unscheduleSelf(this);
+        }
+    }
+
+    private void startPlaybackLocked() {
+        final long now = uptimeMillis();
+        final boolean prefetched = mPrefetched && mDecodedCount > 0
+                && !mPausedByScheduler && !mSeekPending;
+        mPrefetched = false;
+        if (mPausedByScheduler || mSeekPending) {
+            if (!mPausedByScheduler) {
+                mCurrentLoop = 0;
+            }
+            // carry on from the frame on screen, as if it had just been swapped in
+            mPausedByScheduler = false;
+            mSeekPending = false;
+            mNextFrameToDecode = (mFrontFrame + 1) % mAnimationSequence.getFrameCount();
+            mLastSwap = now;
+        } else if (prefetched) {
+            // the frames decoded ahead follow the first, as if it had just been swapped in
+            mCurrentLoop = 0;
+            mNextFrameToDecode = (mFrontFrame + 1 + mDecodedCount) % mAnimationSequence.getFrameCount();
+            mLastSwap = now;
+        } else {
+            mCurrentLoop = 0;
+            mNextFrameToDecode = 0;
+        }
+        mGeneration++;
+        if (!prefetched) {
+            mDecodedCount = 0;
+        }
+        mRunPlaybackMode = mPlaybackMode;
+        mTimeline = now;
+        mPlaybackState.start(PlaybackState.SCHEDULED);
+        if (prefetched) {
+            for (int i = 0; i < mDecodedCount; i++) {
+                final int slot = (mRingHead + i) % mBackBitmaps.length;
+                mTimeline += mBackDelays[slot];
+                mBackSwapTimes[slot] = mTimeline;
+            }
+            if (scheduleSwapLocked(PlaybackState.SCHEDULED)) {
+                if (mFrameTicker != null) {
+                    mFrameTicker.register(this);
+                } else {
+                    scheduleSelf(this, mNextSwap);
+                }
+            }
         }
+        scheduleDecodeLocked();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return mPlaybackState.isRunning();
     }
+
     @Override
     public void unscheduleSelf(Runnable what) {
-        synchronized (mLock) {
-            mNextFrameToDecode = -1;
-            mState = 0;
+        // the decoder and draw see this at their next transition, and give up
+        mPlaybackState.stop();
+        final FrameTicker ticker = mFrameTicker;
+        if (ticker != null) {
+            ticker.unregister(this);
         }
         super.unscheduleSelf(what);
     }
@@ -378,41 +1567,98 @@ public class AnimationSequenceDrawable extends Drawable implements Animatable, R
 
     @Override
     public void draw(@NonNull Canvas canvas) {
-        synchronized (mLock) {
-            checkDestroyedLocked();
-            if (mState == STATE_WAITING_TO_SWAP) {
-                // may have failed to schedule mark ready runnable,
-                // so go ahead and swap if swapping is due
-                if (mNextSwap - SystemClock.uptimeMillis() <= 0) {
-                    mState = STATE_READY_TO_SWAP;
+        int swappedFrame = -1;
+        long latenessMs = 0;
+        checkDestroyed();
+        if (mPlaybackState.getState() == PlaybackState.WAITING_TO_SWAP
+                && mNextSwap - uptimeMillis() <= 0) {
+            // may have failed to schedule mark ready runnable,
+            // so go ahead and swap if swapping is due
+            mPlaybackState.move(PlaybackState.WAITING_TO_SWAP, PlaybackState.READY_TO_SWAP);
+        }
+        // only take the lock when there's a frame to swap in or a bitmap to release
+        if (mPlaybackState.needsLockedDraw()) {
+            synchronized (mLock) {
+                checkDestroyed();
+                if (mRetiredBitmap != null) {
+                    // the last draw showed the current front, so the view no longer holds it
+                    releaseBuffer(mRetiredBitmap, mRetiredRegion);
+                    mRetiredBitmap = null;
+                    mPlaybackState.setRetired(false);
                 }
-            }
-            if (isRunning() && mState == STATE_READY_TO_SWAP) {
-                // Because draw has occurred, the view system is guaranteed to no longer hold a
-                // reference to the old mFrontBitmap, so we now use it to produce the next frame
-                Bitmap tmp = mBackBitmap;
-                mBackBitmap = mFrontBitmap;
-                mFrontBitmap = tmp;
-                BitmapShader tmpShader = mBackBitmapShader;
-                mBackBitmapShader = mFrontBitmapShader;
-                mFrontBitmapShader = tmpShader;
-                mLastSwap = SystemClock.uptimeMillis();
-                boolean continueLooping = true;
-                if (mNextFrameToDecode == mAnimationSequence.getFrameCount() - 1) {
-                    mCurrentLoop++;
-                    boolean stopLooping = (mLoopBehavior == LOOP_FINITE && mCurrentLoop == mLoopCount) ||
-                            (mLoopBehavior == LOOP_DEFAULT && mCurrentLoop == mAnimationSequence.getDefaultLoopCount());
-                    if (stopLooping) {
-                        continueLooping = false;
+                if (mPlaybackState.move(PlaybackState.READY_TO_SWAP, PlaybackState.SWAPPING)) {
+                    // Because draw has occurred, the view system is guaranteed to no longer hold a
+                    // reference to the old mFrontBitmap, so we now use it to produce a later frame
+                    final int slot = mRingHead;
+                    Bitmap tmp = mBackBitmaps[slot];
+                    BitmapShader tmpShader = mBackBitmapShaders[slot];
+                    final int frame = mBackFrames[slot];
+                    mTempRegion.set(mBackRegions[slot]);
+                    if (mSrcRect.width() == mRingWidth && mSrcRect.height() == mRingHeight) {
+                        mBackBitmaps[slot] = mFrontBitmap;
+                        mBackBitmapShaders[slot] = mFrontBitmapShader;
+                        mBackRegions[slot].set(mSrcRect);
+                        mBackFrames[slot] = mFrontFrame;
+                    } else {
+                        // decoded before the decode size changed, replace it with one that fits
+                        releaseBuffer(mFrontBitmap, mSrcRect);
+                        mBackBitmaps[slot] = acquireBuffer(mRingWidth, mRingHeight,
+                                mBackRegions[slot]);
+                        mBackBitmapShaders[slot] = new BitmapShader(mBackBitmaps[slot],
+                                Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+                        // holds no frame, so the next frame is rendered from its keyframe
+                        mBackFrames[slot] = -1;
+                    }
+                    mSrcRect.set(mTempRegion);
+                    mFrontBitmap = tmp;
+                    mFrontBitmapShader = tmpShader;
+                    mFrontFrame = frame;
+                    mRingHead = (slot + 1) % mBackBitmaps.length;
+                    mDecodedCount--;
+                    mLastSwap = uptimeMillis();
+                    // the first frame of a run has no previous swap to be late against
+                    if (mCurrentLoop > 0 || frame > 0) {
+                        latenessMs = Math.max(0, mLastSwap - mNextSwap);
+                        mMetrics.recordSwap(latenessMs);
+                        if (latenessMs > MIN_DELAY_MS) {
+                            mMetrics.lateFrames++;
+                        }
+                    }
+                    swappedFrame = frame;
+                    boolean continueLooping = true;
+                    if (frame == mAnimationSequence.getFrameCount() - 1) {
+                        mCurrentLoop++;
+                        boolean stopLooping = (mLoopBehavior == LOOP_FINITE && mCurrentLoop == mLoopCount) ||
+                                (mLoopBehavior == LOOP_DEFAULT && mCurrentLoop == mAnimationSequence.getDefaultLoopCount());
+                        if (stopLooping) {
+                            continueLooping = false;
+                        }
+                    }
+                    if (continueLooping) {
+                        if (mDecodedCount > 0) {
+                            if (scheduleSwapLocked(PlaybackState.SWAPPING)) {
+                                if (mFrameTicker != null) {
+                                    mFrameTicker.register(this);
+                                } else {
+                                    scheduleSelf(this, mNextSwap);
+                                }
+                            }
+                        } else {
+                            mPlaybackState.move(PlaybackState.SWAPPING, PlaybackState.SCHEDULED);
+                        }
+                        scheduleDecodeLocked();
+                    } else {
+                        // still running until the finished callback
+                        mPlaybackState.move(PlaybackState.SWAPPING, PlaybackState.IDLE);
+                        scheduleSelf(mFinishedCallbackRunnable, 0);
                     }
-                }
-                if (continueLooping) {
-                    scheduleDecodeLocked();
-                } else {
-                    scheduleSelf(mFinishedCallbackRunnable, 0);
                 }
             }
         }
+        PlaybackMetrics.Listener listener = sMetricsListener;
+        if (listener != null && swappedFrame >= 0) {
+            listener.onFrameSwapped(this, swappedFrame, latenessMs);
+        }
         if (mCircleMaskEnabled) {
             final Rect bounds = getBounds();
             final int bitmapWidth = getIntrinsicWidth();
@@ -433,6 +1679,11 @@ public class AnimationSequenceDrawable extends Drawable implements Animatable, R
                     (bitmapHeight - scaledDiameterY) / 2.0f,
                     (bitmapWidth + scaledDiameterX) / 2.0f,
                     (bitmapHeight + scaledDiameterY) / 2.0f);
+            // the shader maps the decoded frame onto the intrinsic size
+            mShaderMatrix.setScale(1.0f * bitmapWidth / mSrcRect.width(),
+                    1.0f * bitmapHeight / mSrcRect.height());
+            mShaderMatrix.preTranslate(-mSrcRect.left, -mSrcRect.top);
+            mFrontBitmapShader.setLocalMatrix(mShaderMatrix);
             mPaint.setShader(mFrontBitmapShader);
             canvas.drawOval(mTempRectF, mPaint);
             canvas.restore();
@@ -444,9 +1695,30 @@ public class AnimationSequenceDrawable extends Drawable implements Animatable, R
     }
 
     private void scheduleDecodeLocked() {
-        mState = STATE_SCHEDULED;
-        mNextFrameToDecode = (mNextFrameToDecode + 1) % mAnimationSequence.getFrameCount();
-        sDecodingThreadHandler.post(mDecodeRunnable);
+        resizeRingLocked();
+        if (mDecoderState != DECODER_IDLE || mDecodedCount == mBackBitmaps.length) {
+            return;
+        }
+        mDecoderState = DECODER_SCHEDULED;
+        mDecodeScheduledNanos = System.nanoTime();
+        mDecodeExecutor.execute(mDecodeRunnable);
+    }
+
+    /**
+     * The head of the ring has been decoded, work out when to swap it in
+     *
+     * @param from the swap state expected, the move fails if stopped meanwhile
+     * @return whether it now waits to swap
+     */
+    private boolean scheduleSwapLocked(int from) {
+        // set before the move, so whoever sees the state waiting reads the right time
+        if (mRunPlaybackMode == PLAYBACK_CATCH_UP) {
+            mNextSwap = mBackSwapTimes[mRingHead];
+        } else {
+            long delay = mBackDelays[mRingHead];
+            mNextSwap = delay == Long.MAX_VALUE ? Long.MAX_VALUE : delay + mLastSwap;
+        }
+        return mPlaybackState.move(from, PlaybackState.WAITING_TO_SWAP);
     }
 
     /**
@@ -486,14 +1758,7 @@ public class AnimationSequenceDrawable extends Drawable implements Animatable, R
     @Override
     public void run() {
         // set ready to swap as necessary
-        boolean invalidate = false;
-        synchronized (mLock) {
-            if (mNextFrameToDecode >= 0 && mState == STATE_WAITING_TO_SWAP) {
-                mState = STATE_READY_TO_SWAP;
-                invalidate = true;
-            }
-        }
-        if (invalidate) {
+        if (mPlaybackState.move(PlaybackState.WAITING_TO_SWAP, PlaybackState.READY_TO_SWAP)) {
             invalidateSelf();
         }
     }
@@ -0,0 +1,566 @@
+package com.humrousz.sequence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An animated PNG sequence decoded in Java. The file is parsed once into frames that list
+ * the offsets of their IDAT or fdAT chunks in its bytes, which stay mapped or in the array
+ * they were read into; a frame is then inflated a row at a time with a reused
+ * {@link Inflater}, unfiltered and blended onto the canvas of {@link CanvasSequence}. Only one
+ * frame's rows are ever decoded at once.
+ */
+
+public class ApngSequence extends CanvasSequence<ApngSequence.ApngFrame> {
+    private static final long SIGNATURE = 0x89504e470d0a1a0aL;
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504c5445;
+    private static final int TRNS = 0x74524e53;
+    private static final int ACTL = 0x6163544c;
+    private static final int FCTL = 0x6663544c;
+    private static final int IDAT = 0x49444154;
+    private static final int FDAT = 0x66644154;
+    private static final int IEND = 0x49454e44;
+
+    private static final int COLOR_GRAY = 0;
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_GRAY_ALPHA = 4;
+    private static final int COLOR_RGBA = 6;
+
+    private static final int BLEND_SOURCE = 0;
+
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private static final int[] ADAM7_START_X = {0, 4, 0, 2, 0, 1, 0};
+    private static final int[] ADAM7_START_Y = {0, 0, 4, 0, 2, 0, 1};
+    private static final int[] ADAM7_STEP_X = {8, 8, 4, 4, 2, 2, 1};
+    private static final int[] ADAM7_STEP_Y = {8, 8, 8, 4, 4, 2, 2};
+
+    private final ByteBuffer mData;
+    private final int mColorType;
+    private final int mBitDepth;
+    private final boolean mInterlaced;
+    private final int mBitsPerPixel;
+    /**
+     * ARGB colors of the palette, with the alpha of tRNS
+     */
+    private final int[] mPalette;
+    /**
+     * The transparent gray or RGB sample values of tRNS, or null
+     */
+    private final int[] mTransparent;
+    private final int mMaxRowBytes;
+    private final int mMaxChunkLength;
+
+    /**
+     * Scratch state, only used while holding the sequence's lock
+     */
+    private Inflater mInflater;
+    private byte[] mRow;
+    private byte[] mPreviousRow;
+    /**
+     * Chunk data of mapped files is copied here, arrays are inflated in place
+     */
+    private byte[] mInput;
+    private ByteBuffer mReader;
+    private int mNextChunk;
+
+    private ApngSequence(ByteBuffer data, int width, int height, int loopCount, int colorType,
+                         int bitDepth, boolean interlaced, int[] palette, int[] transparent,
+                         ApngFrame[] frames, int maxFrameWidth, int maxChunkLength) {
+        super(width, height, loopCount, frames, colorType == COLOR_GRAY_ALPHA
+                || colorType == COLOR_RGBA || transparent != null || hasPaletteAlpha(palette));
+        mData = data;
+        mColorType = colorType;
+        mBitDepth = bitDepth;
+        mInterlaced = interlaced;
+        mBitsPerPixel = channels(colorType) * bitDepth;
+        mPalette = palette;
+        mTransparent = transparent;
+        mMaxRowBytes = (maxFrameWidth * mBitsPerPixel + 7) >> 3;
+        mMaxChunkLength = maxChunkLength;
+    }
+
+    @Override
+    void drawFrame(ApngFrame frame, int[] canvas) {
+        if (mInflater == null) {
+            mInflater = new Inflater();
+            // the filter type byte, then the row
+            mRow = new byte[mMaxRowBytes + 1];
+            mPreviousRow = new byte[mMaxRowBytes + 1];
+        }
+        mInflater.reset();
+        mNextChunk = 0;
+        if (!mInterlaced) {
+            drawPass(frame, canvas, 0, 0, 1, 1, frame.width, frame.height);
+            return;
+        }
+        for (int pass = 0; pass < ADAM7_START_X.length; pass++) {
+            final int stepX = ADAM7_STEP_X[pass];
+            final int stepY = ADAM7_STEP_Y[pass];
+            final int passWidth = (frame.width - ADAM7_START_X[pass] + stepX - 1) / stepX;
+            final int passHeight = (frame.height - ADAM7_START_Y[pass] + stepY - 1) / stepY;
+            if (passWidth > 0 && passHeight > 0 && !drawPass(frame, canvas,
+                    ADAM7_START_X[pass], ADAM7_START_Y[pass], stepX, stepY, passWidth, passHeight)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decode the rows of one interlace pass, or of the whole frame if not interlaced
+     *
+     * @return false if the data ended or was corrupt, leaving the rest of the frame as it was
+     */
+    private boolean drawPass(ApngFrame frame, int[] canvas, int startX, int startY,
+                             int stepX, int stepY, int passWidth, int passHeight) {
+        final int canvasWidth = getWidth();
+        final int canvasHeight = getHeight();
+        final int rowBytes = (passWidth * mBitsPerPixel + 7) >> 3;
+        final int filterBytes = Math.max(1, mBitsPerPixel >> 3);
+        final boolean source = frame.blend == BLEND_SOURCE;
+        Arrays.fill(mPreviousRow, 0, rowBytes + 1, (byte) 0);
+        for (int row = 0; row < passHeight; row++) {
+            if (!inflateRow(frame, rowBytes + 1)) {
+                return false;
+            }
+            unfilter(mRow, mPreviousRow, rowBytes, filterBytes);
+            final int y = frame.y + startY + row * stepY;
+            if (y < canvasHeight) {
+                final int rowStart = y * canvasWidth;
+                for (int column = 0, x = frame.x + startX; column < passWidth && x < canvasWidth;
+                     column++, x += stepX) {
+                    final int color = pixel(mRow, column);
+                    canvas[rowStart + x] = source ? color : over(color, canvas[rowStart + x]);
+                }
+            }
+            byte[] tmp = mPreviousRow;
+            mPreviousRow = mRow;
+            mRow = tmp;
+        }
+        return true;
+    }
+
+    private boolean inflateRow(ApngFrame frame, int length) {
+        int filled = 0;
+        while (filled < length) {
+            int count;
+            try {
+                count = mInflater.inflate(mRow, filled, length - filled);
+            } catch (DataFormatException e) {
+                return false;
+            }
+            filled += count;
+            if (count == 0) {
+                if (!mInflater.needsInput() || mNextChunk == frame.chunkOffsets.length) {
+                    // finished early, or wants a dictionary PNG never has
+                    return false;
+                }
+                feed(frame.chunkOffsets[mNextChunk], frame.chunkLengths[mNextChunk]);
+                mNextChunk++;
+            }
+        }
+        return true;
+    }
+
+    private void feed(int offset, int length) {
+        if (mData.hasArray()) {
+            mInflater.setInput(mData.array(), mData.arrayOffset() + offset, length);
+            return;
+        }
+        if (mInput == null) {
+            mInput = new byte[mMaxChunkLength];
+            mReader = mData.duplicate();
+        }
+        mReader.position(offset);
+        mReader.get(mInput, 0, length);
+        mInflater.setInput(mInput, 0, length);
+    }
+
+    /**
+     * Undo the row's filter in place. Both rows start with the filter type byte; previous is
+     * all zeros for the first row of a pass.
+     */
+    private static void unfilter(byte[] row, byte[] previous, int rowBytes, int filterBytes) {
+        final int end = rowBytes + 1;
+        switch (row[0]) {
+            case FILTER_SUB:
+                for (int i = 1 + filterBytes; i < end; i++) {
+                    row[i] += row[i - filterBytes];
+                }
+                break;
+            case FILTER_UP:
+                for (int i = 1; i < end; i++) {
+                    row[i] += previous[i];
+                }
+                break;
+            case FILTER_AVERAGE:
+                for (int i = 1; i < end; i++) {
+                    int left = i > filterBytes ? row[i - filterBytes] & 0xff : 0;
+                    row[i] += (left + (previous[i] & 0xff)) >> 1;
+                }
+                break;
+            case FILTER_PAETH:
+                for (int i = 1; i < end; i++) {
+                    int left = 0;
+                    int upperLeft = 0;
+                    if (i > filterBytes) {
+                        left = row[i - filterBytes] & 0xff;
+                        upperLeft = previous[i - filterBytes] & 0xff;
+                    }
+                    int up = previous[i] & 0xff;
+                    int p = left + up - upperLeft;
+                    int pa = Math.abs(p - left);
+                    int pb = Math.abs(p - up);
+                    int pc = Math.abs(p - upperLeft);
+                    row[i] += pa <= pb && pa <= pc ? left : pb <= pc ? up : upperLeft;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return the non-premultiplied ARGB color of a pixel of an unfiltered row
+     */
+    private int pixel(byte[] row, int column) {
+        switch (mColorType) {
+            case COLOR_PALETTE:
+                return mPalette[sample(row, column)];
+            case COLOR_GRAY: {
+                int value = sample(row, column);
+                int gray = mBitDepth == 16 ? value >> 8 : value * 255 / ((1 << mBitDepth) - 1);
+                int alpha = mTransparent != null && mTransparent[0] == value ? 0 : 0xff;
+                return alpha << 24 | gray << 16 | gray << 8 | gray;
+            }
+            case COLOR_GRAY_ALPHA: {
+                int i = 1 + column * (mBitDepth >> 2);
+                int gray = row[i] & 0xff;
+                int alpha = row[i + (mBitDepth >> 3)] & 0xff;
+                return alpha << 24 | gray << 16 | gray << 8 | gray;
+            }
+            case COLOR_RGB: {
+                int step = mBitDepth >> 3;
+                int i = 1 + column * 3 * step;
+                int alpha = 0xff;
+                if (mTransparent != null && mTransparent[0] == sample16(row, i, step)
+                        && mTransparent[1] == sample16(row, i + step, step)
+                        && mTransparent[2] == sample16(row, i + 2 * step, step)) {
+                    alpha = 0;
+                }
+                return alpha << 24 | (row[i] & 0xff) << 16 | (row[i + step] & 0xff) << 8
+                        | (row[i + 2 * step] & 0xff);
+            }
+            case COLOR_RGBA:
+            default: {
+                int step = mBitDepth >> 3;
+                int i = 1 + column * 4 * step;
+                return (row[i + 3 * step] & 0xff) << 24 | (row[i] & 0xff) << 16
+                        | (row[i + step] & 0xff) << 8 | (row[i + 2 * step] & 0xff);
+            }
+        }
+    }
+
+    /**
+     * @return the single sample of a gray or palette pixel, at its full bit depth
+     */
+    private int sample(byte[] row, int column) {
+        switch (mBitDepth) {
+            case 8:
+                return row[1 + column] & 0xff;
+            case 16:
+                return (row[1 + 2 * column] & 0xff) << 8 | (row[2 + 2 * column] & 0xff);
+            default:
+                int bit = column * mBitDepth;
+                int shift = 8 - mBitDepth - (bit & 7);
+                return (row[1 + (bit >> 3)] >> shift) & ((1 << mBitDepth) - 1);
+        }
+    }
+
+    private static int sample16(byte[] row, int i, int step) {
+        return step == 2 ? (row[i] & 0xff) << 8 | (row[i + 1] & 0xff) : row[i] & 0xff;
+    }
+
+    /**
+     * Source over destination, both non-premultiplied
+     */
+    private static int over(int src, int dst) {
+        final int srcAlpha = src >>> 24;
+        final int dstAlpha = dst >>> 24;
+        if (srcAlpha == 0xff || dstAlpha == 0) {
+            return src;
+        }
+        if (srcAlpha == 0) {
+            return dst;
+        }
+        // the destination's weight, scaled by 255
+        final int dstWeight = dstAlpha * (0xff - srcAlpha);
+        final int outAlpha255 = srcAlpha * 0xff + dstWeight;
+        int color = (outAlpha255 / 0xff) << 24;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int channel = (((src >> shift) & 0xff) * srcAlpha * 0xff
+                    + ((dst >> shift) & 0xff) * dstWeight) / outAlpha255;
+            color |= channel << shift;
+        }
+        return color;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (mInflater != null) {
+            mInflater.end();
+        }
+    }
+
+    private static int channels(int colorType) {
+        switch (colorType) {
+            case COLOR_RGB:
+                return 3;
+            case COLOR_GRAY_ALPHA:
+                return 2;
+            case COLOR_RGBA:
+                return 4;
+            default:
+                return 1;
+        }
+    }
+
+    private static boolean hasPaletteAlpha(int[] palette) {
+        if (palette == null) {
+            return false;
+        }
+        for (int color : palette) {
+            if (color >>> 24 != 0xff) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse an animated PNG. The buffer is kept and read from on every frame, so it must not
+     * change.
+     * @return the sequence, or null if data isn't a PNG with an animation control chunk and at
+     * least one frame
+     */
+    public static ApngSequence decodeByteBuffer(ByteBuffer data) {
+        final int length = data.limit();
+        if (length < 8 + 25 || data.getLong(0) != SIGNATURE || data.getInt(12) != IHDR) {
+            return null;
+        }
+        final int width = data.getInt(16);
+        final int height = data.getInt(20);
+        final int bitDepth = data.get(24) & 0xff;
+        final int colorType = data.get(25) & 0xff;
+        final boolean interlaced = data.get(28) == 1;
+        if (width <= 0 || height <= 0 || !isValidFormat(colorType, bitDepth)) {
+            return null;
+        }
+        boolean animated = false;
+        int loopCount = 0;
+        int[] palette = null;
+        int[] transparent = null;
+        int maxFrameWidth = 0;
+        int maxChunkLength = 0;
+        List<ApngFrame> frames = new ArrayList<ApngFrame>();
+        ApngFrame frame = null;
+        List<int[]> chunks = new ArrayList<int[]>();
+        int pos = 8;
+        try {
+            while (pos + 8 <= length) {
+                final int chunkLength = data.getInt(pos);
+                final int type = data.getInt(pos + 4);
+                final int start = pos + 8;
+                if (chunkLength < 0 || start + chunkLength > length) {
+                    // truncated, play the complete frames
+                    break;
+                }
+                if (type == IEND) {
+                    break;
+                }
+                switch (type) {
+                    case PLTE:
+                        palette = new int[256];
+                        Arrays.fill(palette, 0xff000000);
+                        for (int i = 0; i < chunkLength / 3 && i < 256; i++) {
+                            int p = start + 3 * i;
+                            palette[i] = 0xff000000 | (data.get(p) & 0xff) << 16
+                                    | (data.get(p + 1) & 0xff) << 8 | (data.get(p + 2) & 0xff);
+                        }
+                        break;
+                    case TRNS:
+                        if (colorType == COLOR_PALETTE && palette != null) {
+                            for (int i = 0; i < chunkLength && i < 256; i++) {
+                                palette[i] = (data.get(start + i) & 0xff) << 24 | (palette[i] & 0xffffff);
+                            }
+                        } else if (colorType == COLOR_GRAY && chunkLength >= 2) {
+                            transparent = new int[]{data.getShort(start) & 0xffff};
+                        } else if (colorType == COLOR_RGB && chunkLength >= 6) {
+                            transparent = new int[]{data.getShort(start) & 0xffff,
+                                    data.getShort(start + 2) & 0xffff, data.getShort(start + 4) & 0xffff};
+                        }
+                        break;
+                    case ACTL:
+                        animated = true;
+                        // 0 plays forever, like LOOP_INF
+                        loopCount = data.getInt(start + 4);
+                        break;
+                    case FCTL:
+                        if (frame != null) {
+                            addFrame(frames, frame, chunks);
+                        }
+                        frame = new ApngFrame();
+                        frame.width = data.getInt(start + 4);
+                        frame.height = data.getInt(start + 8);
+                        frame.x = data.getInt(start + 12);
+                        frame.y = data.getInt(start + 16);
+                        int delayNum = data.getShort(start + 20) & 0xffff;
+                        int delayDen = data.getShort(start + 22) & 0xffff;
+                        frame.duration = delayNum * 1000 / (delayDen == 0 ? 100 : delayDen);
+                        frame.disposal = data.get(start + 24);
+                        frame.blend = data.get(start + 25);
+                        if (frames.isEmpty() && frame.disposal == DISPOSE_PREVIOUS) {
+                            // nothing to restore before the first frame
+                            frame.disposal = DISPOSE_BACKGROUND;
+                        }
+                        if (frame.disposal < DISPOSE_NONE || frame.disposal > DISPOSE_PREVIOUS
+                                || frame.width <= 0 || frame.height <= 0
+                                || frame.x < 0 || frame.y < 0 || frame.x >= width || frame.y >= height) {
+                            return null;
+                        }
+                        maxFrameWidth = Math.max(maxFrameWidth, frame.width);
+                        break;
+                    case IDAT:
+                        // the default image is the first frame only if a fcTL came before it
+                        if (frame != null && frames.isEmpty()) {
+                            chunks.add(new int[]{start, chunkLength});
+                            maxChunkLength = Math.max(maxChunkLength, chunkLength);
+                        }
+                        break;
+                    case FDAT:
+                        if (frame != null && chunkLength > 4) {
+                            // after the sequence number
+                            chunks.add(new int[]{start + 4, chunkLength - 4});
+                            maxChunkLength = Math.max(maxChunkLength, chunkLength - 4);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                // data, then the CRC
+                pos = start + chunkLength + 4;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // truncated in a chunk header, play the frames before it
+        }
+        if (frame != null) {
+            addFrame(frames, frame, chunks);
+        }
+        if (!animated || frames.isEmpty() || (colorType == COLOR_PALETTE && palette == null)) {
+            return null;
+        }
+        return new ApngSequence(data, width, height, loopCount, colorType, bitDepth, interlaced,
+                palette, transparent, frames.toArray(new ApngFrame[frames.size()]),
+                maxFrameWidth, maxChunkLength);
+    }
+
+    private static void addFrame(List<ApngFrame> frames, ApngFrame frame, List<int[]> chunks) {
+        if (chunks.isEmpty()) {
+            // no image data, e.g. cut off
+            return;
+        }
+        frame.chunkOffsets = new int[chunks.size()];
+        frame.chunkLengths = new int[chunks.size()];
+        for (int i = 0; i < chunks.size(); i++) {
+            frame.chunkOffsets[i] = chunks.get(i)[0];
+            frame.chunkLengths[i] = chunks.get(i)[1];
+        }
+        chunks.clear();
+        frame.replaces = frame.blend == BLEND_SOURCE;
+        frames.add(frame);
+    }
+
+    private static boolean isValidFormat(int colorType, int bitDepth) {
+        switch (colorType) {
+            case COLOR_GRAY:
+                return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8 || bitDepth == 16;
+            case COLOR_PALETTE:
+                return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+            case COLOR_RGB:
+            case COLOR_GRAY_ALPHA:
+            case COLOR_RGBA:
+                return bitDepth == 8 || bitDepth == 16;
+            default:
+                return false;
+        }
+    }
+
+    public static ApngSequence decodeByteArray(byte[] data) {
+        return decodeByteBuffer(ByteBuffer.wrap(data));
+    }
+
+    public static ApngSequence decodeStream(InputStream in) {
+        return decodeStream(in, -1);
+    }
+
+    /**
+     * decodeStream
+     * @param sizeHint the expected length, or -1 to ask the stream
+     */
+    public static ApngSequence decodeStream(InputStream in, int sizeHint) {
+        try {
+            return decodeByteArray(FrescoSequence.readFully(in, sizeHint));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    static final class ApngFrame extends Frame {
+        int blend;
+        int[] chunkOffsets;
+        int[] chunkLengths;
+    }
+
+    public static class ApngSequenceFactory extends BaseSequenceFactory {
+        @Override
+        public BaseAnimationSequence createSequence(InputStream inputStream) {
+            return decodeStream(inputStream);
+        }
+
+        /**
+         * Parse the mapped bytes where possible, so the file isn't copied onto the heap
+         */
+        @Override
+        protected BaseAnimationSequence decodeSource(SequenceSource source) throws IOException {
+            ByteBuffer mapped = source.map();
+            if (mapped != null) {
+                return decodeByteBuffer(mapped.slice());
+            }
+            InputStream inputStream = source.openStream();
+            try {
+                long length = source.getLength();
+                return decodeStream(inputStream, length > 0 && length <= Integer.MAX_VALUE ? (int) length : -1);
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+
+    private static final BaseSequenceFactory S_FACTORY = new ApngSequenceFactory();
+
+    public static BaseSequenceFactory getSequenceFactory() {
+        return S_FACTORY;
+    }
+}
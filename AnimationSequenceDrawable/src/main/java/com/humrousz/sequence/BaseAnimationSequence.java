@@ -13,6 +13,7 @@ abstract public class BaseAnimationSequence {
     private final int mHeight;
     private final int mFrameCount;
     private final int mDefaultLoopCount;
+    private volatile Object mSourceKey;
     public int getWidth() {
         return mWidth;
     }
@@ -36,6 +37,23 @@ abstract public class BaseAnimationSequence {
         mDefaultLoopCount = defaultLoopCount;
     }
 
+    /**
+     * Identifies where this sequence was decoded from, so drawables of sequences with equal
+     * keys can share decoded frames through a {@link FrameCache}.
+     * @return the key, or null if the source is unknown
+     */
+    public Object getSourceKey() {
+        return mSourceKey;
+    }
+
+    /**
+     * setSourceKey
+     * @param sourceKey must implement equals and hashCode
+     */
+    public void setSourceKey(Object sourceKey) {
+        mSourceKey = sourceKey;
+    }
+
     /**
      * getFrame
      * @param frameNr
@@ -45,11 +63,64 @@ abstract public class BaseAnimationSequence {
      */
     abstract public long getFrame(int frameNr, Bitmap output, int previousFrameNr);
 
+    /**
+     * Like {@link #getFrame(int, Bitmap, int)}, but renders the frame scaled to width x height
+     * into the top left of output. previousFrameNr refers to a frame rendered at the same size.
+     * Only sequences that {@link #supportsScaling()} accept another size than their own.
+     */
+    public long getFrame(int frameNr, Bitmap output, int previousFrameNr, int width, int height) {
+        if (width != getWidth() || height != getHeight()) {
+            throw new UnsupportedOperationException("Sequence can't render scaled frames");
+        }
+        return getFrame(frameNr, output, previousFrameNr);
+    }
+
+    /**
+     * Whether frames can be rendered at a reduced size, so a drawable shown smaller than the
+     * sequence keeps smaller buffers and decodes fewer pixels
+     */
+    public boolean supportsScaling() {
+        return false;
+    }
+
+    /**
+     * How long frameNr is shown, known without decoding it, so players can skip frames
+     * @return the duration in milliseconds, or -1 if unknown
+     */
+    public long getFrameDuration(int frameNr) {
+        return -1;
+    }
+
+    /**
+     * Whether frameNr can be rendered without rendering any frame before it, so players
+     * seeking to a later frame only decode from the closest keyframe before it
+     * @return true for the first frame, and for later frames the sequence knows to be whole
+     */
+    public boolean isKeyFrame(int frameNr) {
+        return frameNr == 0;
+    }
+
     /**
      * isOpaque
      * @return
      */
     abstract public boolean isOpaque();
 
+    /**
+     * Release what this sequence holds, e.g. a native image; it must not be used afterwards.
+     * Drawables only call this on sequences from a {@link CachingSequenceFactory}, once they
+     * no longer decode from them; whoever creates any other sequence destroys it.
+     */
+    public void destroy() {
+    }
+
+    /**
+     * Whether getFrame can render into bitmaps of config. Sequences of opaque images that can
+     * render into RGB_565 get buffers of half the size.
+     */
+    public boolean canRenderInto(Bitmap.Config config) {
+        return config == Bitmap.Config.ARGB_8888;
+    }
+
 
 }
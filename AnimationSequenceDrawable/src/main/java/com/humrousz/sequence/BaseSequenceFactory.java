@@ -1,5 +1,6 @@
 package com.humrousz.sequence;
 
+import java.io.IOException;
 import java.io.InputStream;
 
 /**
@@ -14,4 +15,28 @@ abstract public class BaseSequenceFactory {
      * @return
      */
      abstract public BaseAnimationSequence createSequence(InputStream inputStream);
+
+    /**
+     * create Sequence from a source, tagged with the source's key
+     */
+    public BaseAnimationSequence createSequence(SequenceSource source) throws IOException {
+        BaseAnimationSequence sequence = decodeSource(source);
+        if (sequence != null) {
+            sequence.setSourceKey(source.getKey());
+        }
+        return sequence;
+    }
+
+    /**
+     * decode a source, by default by reading its stream; factories override this to read
+     * sources more efficiently, e.g. by mapping them
+     */
+    protected BaseAnimationSequence decodeSource(SequenceSource source) throws IOException {
+        InputStream inputStream = source.openStream();
+        try {
+            return createSequence(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
 }
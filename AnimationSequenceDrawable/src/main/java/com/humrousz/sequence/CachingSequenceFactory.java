@@ -0,0 +1,200 @@
+package com.humrousz.sequence;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Wraps a factory so that sequences created from the same {@link SequenceSource} are parsed
+ * once and shared by every drawable showing them. Each caller gets its own handle; the parsed
+ * sequence is destroyed when the last handle is destroyed.
+ */
+
+public class CachingSequenceFactory extends BaseSequenceFactory {
+    private static final Map<BaseSequenceFactory, CachingSequenceFactory> S_SHARED =
+            new IdentityHashMap<BaseSequenceFactory, CachingSequenceFactory>();
+
+    private final BaseSequenceFactory mFactory;
+    private final HashMap<Object, Entry> mEntries = new HashMap<Object, Entry>();
+
+    /**
+     * Get the process wide caching wrapper of factory, so all views using the same factory
+     * share parsed sequences.
+     */
+    public static CachingSequenceFactory getShared(BaseSequenceFactory factory) {
+        if (factory instanceof CachingSequenceFactory) {
+            return (CachingSequenceFactory) factory;
+        }
+        synchronized (S_SHARED) {
+            CachingSequenceFactory caching = S_SHARED.get(factory);
+            if (caching == null) {
+                caching = new CachingSequenceFactory(factory);
+                S_SHARED.put(factory, caching);
+            }
+            return caching;
+        }
+    }
+
+    public CachingSequenceFactory(BaseSequenceFactory factory) {
+        mFactory = factory;
+    }
+
+    /**
+     * @return whether sequence is a handle on a sequence shared by a caching factory
+     */
+    static boolean isShared(BaseAnimationSequence sequence) {
+        return sequence instanceof SharedSequence;
+    }
+
+    /**
+     * Streams carry no identity, so these are parsed every time and not shared
+     */
+    @Override
+    public BaseAnimationSequence createSequence(InputStream inputStream) {
+        return mFactory.createSequence(inputStream);
+    }
+
+    @Override
+    public BaseAnimationSequence createSequence(SequenceSource source) throws IOException {
+        final Object key = source.getKey();
+        Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                mEntries.put(key, entry);
+            }
+            entry.refCount++;
+        }
+        boolean parsed = false;
+        try {
+            // parse under the entry's lock, so concurrent binds of one source parse it once
+            synchronized (entry) {
+                if (entry.sequence == null) {
+                    final BaseAnimationSequence sequence = mFactory.createSequence(source);
+                    if (sequence == null) {
+                        throw new IOException("Failed to decode " + source);
+                    }
+                    // sized for ARGB_8888, the most any drawable buffers frames in
+                    entry.sequence = ResidentSequence.wrapIfSmall(sequence,
+                            Bitmap.Config.ARGB_8888,
+                            AnimationSequenceDrawable.getResidentFramesMaxBytes());
+                }
+            }
+            parsed = true;
+            return new SharedSequence(entry);
+        } finally {
+            if (!parsed) {
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * @return how many distinct sources are currently parsed and in use
+     */
+    public int getSequenceCount() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    private void release(Entry entry) {
+        synchronized (mEntries) {
+            if (--entry.refCount > 0) {
+                return;
+            }
+            mEntries.remove(entry.key);
+        }
+        BaseAnimationSequence sequence;
+        synchronized (entry) {
+            sequence = entry.sequence;
+            entry.sequence = null;
+        }
+        if (sequence != null) {
+            sequence.destroy();
+        }
+    }
+
+    private static class Entry {
+        final Object key;
+        int refCount;
+        BaseAnimationSequence sequence;
+
+        Entry(Object key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * One user's handle on a shared sequence. Decoding is serialized on the shared sequence,
+     * since drawables on different decoding threads may use it at once.
+     */
+    private class SharedSequence extends BaseAnimationSequence {
+        private final Entry mEntry;
+        private final BaseAnimationSequence mSequence;
+        private boolean mDestroyed;
+
+        SharedSequence(Entry entry) {
+            super(entry.sequence.getWidth(), entry.sequence.getHeight(),
+                    entry.sequence.getFrameCount(), entry.sequence.getDefaultLoopCount());
+            mEntry = entry;
+            mSequence = entry.sequence;
+            setSourceKey(entry.key);
+        }
+
+        @Override
+        public long getFrame(int frameNr, Bitmap output, int previousFrameNr) {
+            synchronized (mSequence) {
+                return mSequence.getFrame(frameNr, output, previousFrameNr);
+            }
+        }
+
+        @Override
+        public long getFrame(int frameNr, Bitmap output, int previousFrameNr, int width, int height) {
+            synchronized (mSequence) {
+                return mSequence.getFrame(frameNr, output, previousFrameNr, width, height);
+            }
+        }
+
+        @Override
+        public boolean supportsScaling() {
+            return mSequence.supportsScaling();
+        }
+
+        @Override
+        public boolean isKeyFrame(int frameNr) {
+            return mSequence.isKeyFrame(frameNr);
+        }
+
+        @Override
+        public long getFrameDuration(int frameNr) {
+            return mSequence.getFrameDuration(frameNr);
+        }
+
+        @Override
+        public boolean isOpaque() {
+            return mSequence.isOpaque();
+        }
+
+        @Override
+        public boolean canRenderInto(Bitmap.Config config) {
+            return mSequence.canRenderInto(config);
+        }
+
+        @Override
+        public void destroy() {
+            synchronized (this) {
+                if (mDestroyed) {
+                    return;
+                }
+                mDestroyed = true;
+            }
+            release(mEntry);
+        }
+    }
+}
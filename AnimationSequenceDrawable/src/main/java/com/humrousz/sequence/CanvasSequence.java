@@ -0,0 +1,269 @@
+package com.humrousz.sequence;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+
+/**
+ * Base of sequences decoded in Java, whose frames are sub-rectangles composited onto a canvas
+ * of ARGB pixels with GIF style disposal. Subclasses parse their container into frames and
+ * draw one frame's pixels onto the canvas; this class decides which frames to draw for
+ * {@link #getFrame(int, Bitmap, int)}, disposes them, and writes the changed pixels into the
+ * output.
+ * <p>
+ * Nothing is allocated per frame: the canvas and the buffer for frames disposed to previous
+ * are allocated once and reused.
+ */
+
+abstract class CanvasSequence<F extends CanvasSequence.Frame> extends BaseAnimationSequence {
+    static final int DISPOSE_NONE = 0;
+    static final int DISPOSE_BACKGROUND = 1;
+    static final int DISPOSE_PREVIOUS = 2;
+
+    /**
+     * Where a frame goes and how it's undone, filled in by subclasses when parsing
+     */
+    static class Frame {
+        int x;
+        int y;
+        int width;
+        int height;
+        int disposal;
+        int duration;
+        /**
+         * Whether the frame sets every pixel of its rectangle, rather than leaving some of
+         * what's below it showing
+         */
+        boolean replaces;
+    }
+
+    final F[] mFrames;
+    /**
+     * Index of the keyframe each frame is composited from when the canvas' contents are
+     * unknown, i.e. the closest earlier frame that doesn't depend on the ones before it
+     */
+    private final int[] mKeyFrames;
+    private final boolean mOpaque;
+
+    /**
+     * Scratch state, only used while holding the sequence's lock
+     */
+    private int[] mCanvas;
+    /**
+     * The frame {@link #mCanvas} shows, before its disposal
+     */
+    private int mCanvasFrame = -1;
+    /**
+     * What the frame disposed to previous covered before it was drawn
+     */
+    private int[] mRestore;
+    private int mDirtyLeft;
+    private int mDirtyTop;
+    private int mDirtyRight;
+    private int mDirtyBottom;
+
+    /**
+     * @param hasAlpha false if no frame has transparent pixels, so the sequence is opaque if
+     *                 its frames also cover the whole canvas
+     */
+    CanvasSequence(int width, int height, int loopCount, F[] frames, boolean hasAlpha) {
+        super(width, height, frames.length, loopCount);
+        mFrames = frames;
+        mKeyFrames = new int[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            mKeyFrames[i] = isIndependent(i) ? i : mKeyFrames[i - 1];
+        }
+        mOpaque = !hasAlpha && coversCanvas();
+    }
+
+    /**
+     * Draw the frame's pixels onto canvas, a width x height array of non-premultiplied ARGB
+     * colors, within the frame's rectangle
+     */
+    abstract void drawFrame(F frame, int[] canvas);
+
+    /**
+     * Composites frameNr onto output. If the canvas or output holds an earlier frame at or
+     * after frameNr's keyframe, only the frames since are drawn, and if output holds it, only
+     * the changed rectangle is written; otherwise the canvas is cleared, composited from the
+     * keyframe and written whole.
+     */
+    @Override
+    public synchronized long getFrame(int frameNr, Bitmap output, int previousFrameNr) {
+        final int width = getWidth();
+        final int height = getHeight();
+        if (mCanvas == null) {
+            mCanvas = new int[width * height];
+        }
+        if (mCanvasFrame == frameNr) {
+            output.setPixels(mCanvas, 0, width, 0, 0, width, height);
+            return mFrames[frameNr].duration;
+        }
+        final int keyFrame = mKeyFrames[frameNr];
+        // whether output holds the canvas we start from
+        boolean outputMatches;
+        int start;
+        resetDirty();
+        if (mCanvasFrame >= keyFrame && mCanvasFrame < frameNr) {
+            outputMatches = mCanvasFrame == previousFrameNr;
+            dispose(mFrames[mCanvasFrame]);
+            start = mCanvasFrame + 1;
+        } else if (previousFrameNr >= keyFrame && previousFrameNr < frameNr
+                && mFrames[previousFrameNr].disposal != DISPOSE_PREVIOUS) {
+            // cheaper to read back than to composite from the keyframe again
+            output.getPixels(mCanvas, 0, width, 0, 0, width, height);
+            outputMatches = true;
+            dispose(mFrames[previousFrameNr]);
+            start = previousFrameNr + 1;
+        } else {
+            Arrays.fill(mCanvas, 0);
+            outputMatches = false;
+            start = keyFrame;
+        }
+        for (int i = start; i < frameNr; i++) {
+            F frame = mFrames[i];
+            if (frame.disposal == DISPOSE_BACKGROUND) {
+                // drawn and then cleared before the next frame
+                clear(frame);
+            } else if (frame.disposal != DISPOSE_PREVIOUS) {
+                // frames disposed to previous are undone before the next frame, so skip them
+                draw(frame);
+            }
+        }
+        F frame = mFrames[frameNr];
+        if (frame.disposal == DISPOSE_PREVIOUS) {
+            save(frame);
+        }
+        draw(frame);
+        mCanvasFrame = frameNr;
+        if (!outputMatches) {
+            output.setPixels(mCanvas, 0, width, 0, 0, width, height);
+        } else if (mDirtyRight > mDirtyLeft && mDirtyBottom > mDirtyTop) {
+            output.setPixels(mCanvas, mDirtyTop * width + mDirtyLeft, width, mDirtyLeft, mDirtyTop,
+                    mDirtyRight - mDirtyLeft, mDirtyBottom - mDirtyTop);
+        }
+        return frame.duration;
+    }
+
+    private void draw(F frame) {
+        markDirty(frame);
+        drawFrame(frame, mCanvas);
+    }
+
+    /**
+     * Undo the frame as its disposal method says, leaving the canvas as the next frame expects
+     */
+    private void dispose(F frame) {
+        if (frame.disposal == DISPOSE_BACKGROUND) {
+            clear(frame);
+        } else if (frame.disposal == DISPOSE_PREVIOUS) {
+            copyRect(frame, mRestore, mCanvas);
+            markDirty(frame);
+        }
+    }
+
+    private void clear(F frame) {
+        final int width = getWidth();
+        final int right = Math.min(frame.x + frame.width, width);
+        final int bottom = Math.min(frame.y + frame.height, getHeight());
+        for (int y = frame.y; y < bottom; y++) {
+            Arrays.fill(mCanvas, y * width + frame.x, y * width + right, 0);
+        }
+        markDirty(frame);
+    }
+
+    private void save(F frame) {
+        if (mRestore == null) {
+            mRestore = new int[mCanvas.length];
+        }
+        copyRect(frame, mCanvas, mRestore);
+    }
+
+    private void copyRect(F frame, int[] src, int[] dst) {
+        final int width = getWidth();
+        final int rowWidth = Math.min(frame.x + frame.width, width) - frame.x;
+        final int bottom = Math.min(frame.y + frame.height, getHeight());
+        for (int y = frame.y; y < bottom && rowWidth > 0; y++) {
+            System.arraycopy(src, y * width + frame.x, dst, y * width + frame.x, rowWidth);
+        }
+    }
+
+    private void resetDirty() {
+        mDirtyLeft = Integer.MAX_VALUE;
+        mDirtyTop = Integer.MAX_VALUE;
+        mDirtyRight = 0;
+        mDirtyBottom = 0;
+    }
+
+    private void markDirty(F frame) {
+        mDirtyLeft = Math.min(mDirtyLeft, frame.x);
+        mDirtyTop = Math.min(mDirtyTop, frame.y);
+        mDirtyRight = Math.max(mDirtyRight, Math.min(frame.x + frame.width, getWidth()));
+        mDirtyBottom = Math.max(mDirtyBottom, Math.min(frame.y + frame.height, getHeight()));
+    }
+
+    private boolean isIndependent(int frameNr) {
+        if (frameNr == 0) {
+            return true;
+        }
+        F frame = mFrames[frameNr];
+        if (frame.disposal == DISPOSE_PREVIOUS) {
+            // restoring it needs what was drawn before it
+            return false;
+        }
+        if (frame.replaces && isFullFrame(frame)) {
+            return true;
+        }
+        F previous = mFrames[frameNr - 1];
+        return previous.disposal == DISPOSE_BACKGROUND && isFullFrame(previous);
+    }
+
+    private boolean isFullFrame(F frame) {
+        return frame.x == 0 && frame.y == 0
+                && frame.width >= getWidth() && frame.height >= getHeight();
+    }
+
+    /**
+     * Whether frames leave no pixel of the canvas transparent: the first frame covers it, and
+     * whatever a frame clears on disposal the next one covers again
+     */
+    private boolean coversCanvas() {
+        if (!isFullFrame(mFrames[0])) {
+            return false;
+        }
+        for (int i = 0; i < mFrames.length - 1; i++) {
+            F frame = mFrames[i];
+            F next = mFrames[i + 1];
+            if (frame.disposal == DISPOSE_BACKGROUND
+                    && (next.x > frame.x || next.y > frame.y
+                    || next.x + next.width < frame.x + frame.width
+                    || next.y + next.height < frame.y + frame.height)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isKeyFrame(int frameNr) {
+        return mKeyFrames[frameNr] == frameNr;
+    }
+
+    @Override
+    public long getFrameDuration(int frameNr) {
+        return mFrames[frameNr].duration;
+    }
+
+    @Override
+    public boolean isOpaque() {
+        return mOpaque;
+    }
+
+    /**
+     * Pixels are written as colors, which any config can take
+     */
+    @Override
+    public boolean canRenderInto(Bitmap.Config config) {
+        return config == Bitmap.Config.ARGB_8888 || config == Bitmap.Config.RGB_565;
+    }
+}
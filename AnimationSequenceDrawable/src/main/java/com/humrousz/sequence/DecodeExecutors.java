@@ -0,0 +1,140 @@
+package com.humrousz.sequence;
+
+import android.os.Process;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors used by {@link AnimationSequenceDrawable} to decode frames off the UI thread.
+ */
+
+public final class DecodeExecutors {
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private DecodeExecutors() {
+    }
+
+    /**
+     * Create a decode pool with one background thread per available core.
+     */
+    public static Executor newDecodePool() {
+        return newDecodePool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a decode pool with up to threadCount background priority threads, which exit
+     * after idling for a while. Frames of one drawable are still decoded in order, see
+     * {@link #serial(Executor)}.
+     */
+    public static Executor newDecodePool(int threadCount) {
+        return newPool("BaseAnimationSequence decoding thread", threadCount);
+    }
+
+    /**
+     * @return how many threads the executor decodes on at most: the pool size of a
+     * {@link ThreadPoolExecutor}, at most one per core, 1 for null, i.e. the single decoding
+     * thread, and one per core for anything else
+     */
+    static int getThreadCount(Executor executor) {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        if (executor == null) {
+            return 1;
+        }
+        if (executor instanceof ThreadPoolExecutor) {
+            return Math.max(1, Math.min(cores, ((ThreadPoolExecutor) executor).getMaximumPoolSize()));
+        }
+        return cores;
+    }
+
+    static Executor newPool(String name, int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be positive");
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new DecodeThreadFactory(name));
+        // drawables keep using the pool they were created with, so a replaced pool can't be
+        // shut down; its threads exit once idle instead
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Wrap an executor so that the tasks posted to the result run one at a time and in order,
+     * while other serial executors sharing the same pool run in parallel.
+     */
+    static Executor serial(Executor executor) {
+        return new SerialExecutor(executor);
+    }
+
+    private static class DecodeThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        DecodeThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + " #" + mCount.incrementAndGet());
+        }
+    }
+
+    private static class SerialExecutor implements Executor, Runnable {
+        private final Executor mExecutor;
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+        private boolean mScheduled;
+
+        SerialExecutor(Executor executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (this) {
+                mTasks.offer(task);
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            mExecutor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (this) {
+                task = mTasks.poll();
+            }
+            try {
+                if (task != null) {
+                    task.run();
+                }
+            } finally {
+                // run one task per turn, so drawables sharing a pool take turns
+                boolean more;
+                synchronized (this) {
+                    more = !mTasks.isEmpty();
+                    mScheduled = more;
+                }
+                if (more) {
+                    mExecutor.execute(this);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.humrousz.sequence;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+
+/**
+ * Wraps a factory so that sources played once are transcoded to pre-rendered frames in a
+ * {@link DiskFrameCache}, and played from there afterwards without decoding. The first
+ * playback uses the wrapped factory's sequence while the frames are written in the background.
+ * <p>
+ * Meant for animations replayed constantly, e.g. stickers and spinners. Combine with
+ * {@link CachingSequenceFactory#getShared(BaseSequenceFactory)} to also share the mapped
+ * sequences between views.
+ */
+
+public class DiskCachingSequenceFactory extends BaseSequenceFactory {
+    private static final String TAG = "DiskCachingFactory";
+    private static final Object S_LOCK = new Object();
+    private static Executor sTranscodeExecutor;
+
+    private final BaseSequenceFactory mFactory;
+    private final DiskFrameCache mCache;
+    private final HashSet<Object> mTranscoding = new HashSet<Object>();
+
+    public DiskCachingSequenceFactory(BaseSequenceFactory factory, DiskFrameCache cache) {
+        mFactory = factory;
+        mCache = cache;
+    }
+
+    private static Executor getTranscodeExecutor() {
+        synchronized (S_LOCK) {
+            if (sTranscodeExecutor == null) {
+                sTranscodeExecutor = DecodeExecutors.newPool("DiskFrameCache transcoding thread", 1);
+            }
+            return sTranscodeExecutor;
+        }
+    }
+
+    /**
+     * Streams carry no identity, so these are never cached
+     */
+    @Override
+    public BaseAnimationSequence createSequence(InputStream inputStream) {
+        return mFactory.createSequence(inputStream);
+    }
+
+    @Override
+    protected BaseAnimationSequence decodeSource(SequenceSource source) throws IOException {
+        BaseAnimationSequence cached = mCache.open(source.getKey());
+        if (cached != null) {
+            return cached;
+        }
+        transcodeAsync(source);
+        return mFactory.createSequence(source);
+    }
+
+    private void transcodeAsync(final SequenceSource source) {
+        final Object key = source.getKey();
+        synchronized (mTranscoding) {
+            if (!mTranscoding.add(key)) {
+                return;
+            }
+        }
+        getTranscodeExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // a sequence of its own, the one returned may be decoding concurrently
+                    BaseAnimationSequence sequence = mFactory.createSequence(source);
+                    if (sequence != null) {
+                        try {
+                            mCache.put(key, sequence);
+                        } finally {
+                            sequence.destroy();
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.w(TAG, "failed to transcode " + source + ": " + e);
+                } finally {
+                    synchronized (mTranscoding) {
+                        mTranscoding.remove(key);
+                    }
+                }
+            }
+        });
+    }
+}
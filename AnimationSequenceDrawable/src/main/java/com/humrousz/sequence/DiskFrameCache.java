@@ -0,0 +1,189 @@
+package com.humrousz.sequence;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A size bounded directory of pre-rendered frame files, see {@link MappedFrameSequence}.
+ * Files are named by a hash of the source key and the file format version, so a changed
+ * source or format never reads a stale file. Resources and assets are keyed by id or path
+ * alone, so their files are also named by the installed version of the app, and an update
+ * that changes them doesn't read frames of the old ones. The least recently opened files are deleted
+ * once the directory grows past its budget.
+ */
+
+public class DiskFrameCache {
+    private static final String TAG = "DiskFrameCache";
+    private static final String SUFFIX = ".frames";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final boolean mCompress;
+    /**
+     * Identifies the installed apk, see {@link #getFile(Object)}
+     */
+    private final String mAppVersion;
+
+    /**
+     * @param context used to look up the installed version of the app
+     * @param directory where frame files are kept, e.g. a folder in the cache dir
+     * @param maxBytes the most bytes of frame files to keep
+     * @param compress whether to run-length encode frames, smaller files for a little cpu
+     */
+    public DiskFrameCache(Context context, File directory, long maxBytes, boolean compress) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mCompress = compress;
+        mAppVersion = getAppVersion(context);
+    }
+
+    private static String getAppVersion(Context context) {
+        try {
+            PackageInfo info = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0);
+            // reinstalling the same version code still moves the update time
+            return info.versionCode + "." + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            // can't tell apart builds, so don't keep their frames across processes
+            return "process:" + System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Open the frames stored for key.
+     * @param key a source key, see {@link SequenceSource#getKey()}
+     * @return the sequence, or null if none is stored
+     */
+    public BaseAnimationSequence open(Object key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            MappedFrameSequence sequence = MappedFrameSequence.open(file);
+            if (sequence == null) {
+                // incomplete, or written by another version
+                file.delete();
+                return null;
+            }
+            // the modification time orders the files for eviction
+            file.setLastModified(System.currentTimeMillis());
+            sequence.setSourceKey(key);
+            return sequence;
+        } catch (IOException e) {
+            Log.w(TAG, "failed to open " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Render every frame of sequence and store them for key. Slow, call off the main thread.
+     * @param sequence a sequence only used by the caller, it's decoded from frame 0 on
+     * @return whether the frames were stored
+     */
+    public boolean put(Object key, BaseAnimationSequence sequence) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return false;
+        }
+        File file = getFile(key);
+        try {
+            long size = MappedFrameSequence.transcode(sequence, file, mCompress);
+            if (size > mMaxBytes) {
+                file.delete();
+                return false;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed to write " + file + ": " + e);
+            return false;
+        }
+        trimToSize(mMaxBytes);
+        return true;
+    }
+
+    /**
+     * Delete the least recently opened files until at most maxBytes are stored. Files of
+     * sequences still playing stay readable until they're closed.
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        File[] files = listFiles();
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < files.length && size > maxBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * @return the bytes of frame files stored
+     */
+    public long getSizeBytes() {
+        long size = 0;
+        for (File file : listFiles()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private File[] listFiles() {
+        File[] files = mDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SUFFIX);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    private File getFile(Object key) {
+        String name = String.valueOf(key);
+        if (name.startsWith(SequenceSource.RESOURCE_KEY_PREFIX)
+                || name.startsWith(SequenceSource.ASSET_KEY_PREFIX)) {
+            name += "@" + mAppVersion;
+        }
+        return new File(mDirectory, hash(name + "#" + MappedFrameSequence.VERSION
+                + (mCompress ? "#rle" : "")) + SUFFIX);
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.humrousz.sequence;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A {@link AnimationSequenceDrawable.BitmapProvider} that packs the frame buffers of small
+ * animations into regions of a few shared page bitmaps, so a grid of stickers holds a handful
+ * of bitmaps rather than two or three per drawable. Drawables given an atlas draw their frame
+ * from its region of the page; frames too large for a page get whole bitmaps from the
+ * fallback provider, as with any other provider.
+ * <p>
+ * Each page is split into equal cells for one frame size and config, sizes rounded up to
+ * {@link #CELL_ALIGNMENT} with a blank pixel to spare, and goes back to the fallback provider
+ * once its last cell is released. Sequences render into the top left of a bitmap, so frames
+ * are decoded into a scratch bitmap kept per decoding thread and copied into their region.
+ * <p>
+ * Any change to a page uploads all of it again under hardware acceleration, so pages should
+ * stay small enough that this costs less than uploading each animation's own bitmap.
+ */
+
+public class FrameAtlas implements AnimationSequenceDrawable.ConfigurableBitmapProvider {
+    /**
+     * Cell sizes are rounded up to this, so frames of similar size share pages
+     */
+    public static final int CELL_ALIGNMENT = 16;
+    /**
+     * Left blank after each frame, so filtering at its edges doesn't pick up its neighbours
+     */
+    private static final int GUTTER = 1;
+    private static final int DEFAULT_PAGE_SIZE = 512;
+    private static final Object S_LOCK = new Object();
+    private static FrameAtlas sDefault;
+
+    private static final class Page {
+        final Bitmap bitmap;
+        final int cellWidth;
+        final int cellHeight;
+        final int columns;
+        final boolean[] used;
+        int usedCount;
+
+        Page(Bitmap bitmap, int cellWidth, int cellHeight, int columns, int rows) {
+            this.bitmap = bitmap;
+            this.cellWidth = cellWidth;
+            this.cellHeight = cellHeight;
+            this.columns = columns;
+            used = new boolean[columns * rows];
+        }
+    }
+
+    /**
+     * Copies regions to and from a page, only used on the thread it belongs to
+     */
+    private static final class Scratch {
+        final Canvas canvas = new Canvas();
+        final Paint paint = new Paint();
+        final Rect rect = new Rect();
+        Bitmap bitmap;
+
+        Scratch() {
+            paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        }
+    }
+
+    private final int mPageSize;
+    private final AnimationSequenceDrawable.ConfigurableBitmapProvider mFallback;
+    /**
+     * Pages by cell size and config, see {@link #packKey(int, int, Bitmap.Config)}
+     */
+    private final HashMap<Long, List<Page>> mPages = new HashMap<Long, List<Page>>();
+    private final HashMap<Bitmap, Page> mPagesByBitmap = new HashMap<Bitmap, Page>();
+    private final ThreadLocal<Scratch> mScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * Get the process wide atlas, with 512 x 512 pages from
+     * {@link PoolingBitmapProvider#getDefault()}.
+     */
+    public static FrameAtlas getDefault() {
+        synchronized (S_LOCK) {
+            if (sDefault == null) {
+                sDefault = new FrameAtlas(DEFAULT_PAGE_SIZE, PoolingBitmapProvider.getDefault());
+            }
+            return sDefault;
+        }
+    }
+
+    /**
+     * @param pageSize width and height of the pages; frames more than half of it wide or high
+     *                 get their own bitmaps
+     * @param fallback provides the pages, and bitmaps for frames that don't fit
+     */
+    public FrameAtlas(int pageSize, AnimationSequenceDrawable.ConfigurableBitmapProvider fallback) {
+        if (pageSize < 2 * CELL_ALIGNMENT) {
+            throw new IllegalArgumentException("Page size must be at least " + 2 * CELL_ALIGNMENT);
+        }
+        mPageSize = pageSize;
+        mFallback = fallback;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    /**
+     * @return whether frames of width x height are packed into pages
+     */
+    public boolean fits(int width, int height) {
+        return align(width) <= mPageSize / 2 && align(height) <= mPageSize / 2;
+    }
+
+    /**
+     * @return how many pages are allocated
+     */
+    public synchronized int getPageCount() {
+        return mPagesByBitmap.size();
+    }
+
+    @Override
+    public Bitmap acquireBitmap(int minWidth, int minHeight) {
+        return mFallback.acquireBitmap(minWidth, minHeight);
+    }
+
+    @Override
+    public Bitmap acquireBitmap(int minWidth, int minHeight, Bitmap.Config config) {
+        return mFallback.acquireBitmap(minWidth, minHeight, config);
+    }
+
+    @Override
+    public void releaseBitmap(Bitmap bitmap) {
+        mFallback.releaseBitmap(bitmap);
+    }
+
+    /**
+     * Reserve a region for a frame of width x height, which must {@link #fits(int, int) fit}
+     * @param region set to where the frame goes in the returned page
+     * @return the page
+     */
+    Bitmap acquireRegion(int width, int height, Bitmap.Config config, Rect region) {
+        final int cellWidth = align(width);
+        final int cellHeight = align(height);
+        final Long key = packKey(cellWidth, cellHeight, config);
+        synchronized (this) {
+            List<Page> pages = mPages.get(key);
+            if (pages == null) {
+                pages = new ArrayList<Page>();
+                mPages.put(key, pages);
+            }
+            Page page = null;
+            for (Page candidate : pages) {
+                if (candidate.usedCount < candidate.used.length) {
+                    page = candidate;
+                    break;
+                }
+            }
+            if (page == null) {
+                Bitmap bitmap = mFallback.acquireBitmap(mPageSize, mPageSize, config);
+                page = new Page(bitmap, cellWidth, cellHeight,
+                        mPageSize / cellWidth, mPageSize / cellHeight);
+                pages.add(page);
+                mPagesByBitmap.put(bitmap, page);
+            }
+            int cell = 0;
+            while (page.used[cell]) {
+                cell++;
+            }
+            page.used[cell] = true;
+            page.usedCount++;
+            final int left = cell % page.columns * cellWidth;
+            final int top = cell / page.columns * cellHeight;
+            region.set(left, top, left + width, top + height);
+            return page.bitmap;
+        }
+    }
+
+    /**
+     * Give back a region from {@link #acquireRegion(int, int, Bitmap.Config, Rect)}. May be
+     * called on any thread.
+     */
+    void releaseRegion(Bitmap bitmap, Rect region) {
+        Bitmap pageToRelease = null;
+        synchronized (this) {
+            Page page = mPagesByBitmap.get(bitmap);
+            if (page == null) {
+                return;
+            }
+            final int cell = region.top / page.cellHeight * page.columns
+                    + region.left / page.cellWidth;
+            if (!page.used[cell]) {
+                return;
+            }
+            page.used[cell] = false;
+            page.usedCount--;
+            if (page.usedCount == 0) {
+                mPagesByBitmap.remove(bitmap);
+                mPages.get(packKey(page.cellWidth, page.cellHeight, bitmap.getConfig())).remove(page);
+                pageToRelease = bitmap;
+            }
+        }
+        if (pageToRelease != null) {
+            mFallback.releaseBitmap(pageToRelease);
+        }
+    }
+
+    /**
+     * Get a bitmap of exactly the region's size to render into instead of the page, until
+     * {@link #unlockRegion(Bitmap, Rect, Bitmap)} copies it back. One per thread.
+     * @param keepContents whether the bitmap must hold what the region holds, e.g. the
+     *                     previous frame a sequence continues from
+     */
+    Bitmap lockRegion(Bitmap page, Rect region, boolean keepContents) {
+        Scratch scratch = mScratch.get();
+        final int width = region.width();
+        final int height = region.height();
+        if (scratch.bitmap == null || scratch.bitmap.getWidth() != width
+                || scratch.bitmap.getHeight() != height
+                || scratch.bitmap.getConfig() != page.getConfig()) {
+            // cached frames are copies, so nothing else holds it
+            if (scratch.bitmap != null) {
+                scratch.bitmap.recycle();
+            }
+            scratch.bitmap = Bitmap.createBitmap(width, height, page.getConfig());
+        }
+        if (keepContents) {
+            scratch.rect.set(0, 0, width, height);
+            scratch.canvas.setBitmap(scratch.bitmap);
+            scratch.canvas.drawBitmap(page, region, scratch.rect, scratch.paint);
+            scratch.canvas.setBitmap(null);
+        }
+        return scratch.bitmap;
+    }
+
+    /**
+     * Copy what was rendered into the bitmap from {@link #lockRegion(Bitmap, Rect, boolean)}
+     * into the region
+     */
+    void unlockRegion(Bitmap page, Rect region, Bitmap locked) {
+        Scratch scratch = mScratch.get();
+        scratch.canvas.setBitmap(page);
+        scratch.canvas.drawBitmap(locked, region.left, region.top, scratch.paint);
+        scratch.canvas.setBitmap(null);
+    }
+
+    private static int align(int size) {
+        return (size + GUTTER + CELL_ALIGNMENT - 1) / CELL_ALIGNMENT * CELL_ALIGNMENT;
+    }
+
+    private static long packKey(int cellWidth, int cellHeight, Bitmap.Config config) {
+        return (long) cellWidth << 32 | (long) cellHeight << 1
+                | (config == Bitmap.Config.RGB_565 ? 1 : 0);
+    }
+}
@@ -0,0 +1,118 @@
+package com.humrousz.sequence;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * A byte bounded LRU cache of decoded frames, shared by drawables showing the same source so
+ * that each frame is decoded about once no matter how many copies of the animation are on
+ * screen.
+ * <p>
+ * Frames are keyed by the sequence's {@link BaseAnimationSequence#getSourceKey() source key},
+ * frame number and decoded size. Sequences without a source key are never cached.
+ */
+
+public class FrameCache {
+    private final LruCache<FrameKey, Frame> mFrames;
+
+    /**
+     * @param maxBytes the most bytes of decoded frames to keep
+     */
+    public FrameCache(int maxBytes) {
+        mFrames = new LruCache<FrameKey, Frame>(maxBytes) {
+            @Override
+            protected int sizeOf(FrameKey key, Frame value) {
+                return value.bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Look up a frame. The key is only used for the lookup, so callers may reuse it.
+     * @return the cached frame, or null
+     */
+    Frame get(FrameKey key) {
+        return mFrames.get(key);
+    }
+
+    /**
+     * Store a copy of the top left key.width x key.height pixels of decoded.
+     * @param key copied, so callers may reuse it
+     * @param delayMs the delay the decoder returned for this frame
+     */
+    void put(FrameKey key, Bitmap decoded, long delayMs) {
+        Bitmap copy = Bitmap.createBitmap(decoded, 0, 0, key.width, key.height);
+        mFrames.put(new FrameKey().set(key.source, key.frameNr, key.width, key.height),
+                new Frame(copy, delayMs));
+    }
+
+    public void evictAll() {
+        mFrames.evictAll();
+    }
+
+    public int getHitCount() {
+        return mFrames.hitCount();
+    }
+
+    public int getMissCount() {
+        return mFrames.missCount();
+    }
+
+    public int getEvictionCount() {
+        return mFrames.evictionCount();
+    }
+
+    /**
+     * @return the bytes of frames currently cached
+     */
+    public int getCurrentBytes() {
+        return mFrames.size();
+    }
+
+    static final class Frame {
+        final Bitmap bitmap;
+        final long delayMs;
+
+        Frame(Bitmap bitmap, long delayMs) {
+            this.bitmap = bitmap;
+            this.delayMs = delayMs;
+        }
+    }
+
+    static final class FrameKey {
+        Object source;
+        int frameNr;
+        int width;
+        int height;
+
+        FrameKey set(Object source, int frameNr, int width, int height) {
+            this.source = source;
+            this.frameNr = frameNr;
+            this.width = width;
+            this.height = height;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FrameKey)) {
+                return false;
+            }
+            FrameKey other = (FrameKey) o;
+            return frameNr == other.frameNr && width == other.width && height == other.height
+                    && source.equals(other.source);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = source.hashCode();
+            result = 31 * result + frameNr;
+            result = 31 * result + width;
+            result = 31 * result + height;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.humrousz.sequence;
+
+import java.nio.IntBuffer;
+
+/**
+ * A fast run-length codec for decoded pixels, viewed as ints. Animations with flat areas and
+ * transparent borders compress well, and decoding is little more than a memory copy.
+ * <p>
+ * The encoding is a series of blocks, each a count followed by pixels: a positive count is
+ * followed by that many literal pixels, a negative count by one pixel repeated -count times.
+ */
+
+final class FrameCodec {
+    /**
+     * Shorter runs are cheaper as literals
+     */
+    private static final int MIN_RUN = 3;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * @return the most ints encoding pixelCount pixels can take
+     */
+    static int maxEncodedLength(int pixelCount) {
+        // every run takes 2 ints for at least MIN_RUN pixels and is followed by at most one
+        // literal count, so only the first literal count is overhead
+        return pixelCount + 2;
+    }
+
+    /**
+     * Encode the remaining pixels of src into dst, advancing both
+     * @param dst with at least {@link #maxEncodedLength(int)} ints remaining
+     */
+    static void encode(IntBuffer src, IntBuffer dst) {
+        final int end = src.limit();
+        int i = src.position();
+        while (i < end) {
+            int run = runLength(src, i, end);
+            if (run >= MIN_RUN) {
+                dst.put(-run);
+                dst.put(src.get(i));
+                i += run;
+                continue;
+            }
+            // literals until the next run worth encoding
+            int literalEnd = i + run;
+            while (literalEnd < end) {
+                run = runLength(src, literalEnd, end);
+                if (run >= MIN_RUN) {
+                    break;
+                }
+                literalEnd += run;
+            }
+            dst.put(literalEnd - i);
+            for (int j = i; j < literalEnd; j++) {
+                dst.put(src.get(j));
+            }
+            i = literalEnd;
+        }
+        src.position(end);
+    }
+
+    /**
+     * Decode the remaining ints of src into dst until dst is full, advancing both
+     */
+    static void decode(IntBuffer src, IntBuffer dst) {
+        while (dst.hasRemaining() && src.hasRemaining()) {
+            int count = src.get();
+            if (count < 0) {
+                int pixel = src.get();
+                for (int j = -count; j > 0; j--) {
+                    dst.put(pixel);
+                }
+            } else {
+                for (int j = count; j > 0; j--) {
+                    dst.put(src.get());
+                }
+            }
+        }
+    }
+
+    private static int runLength(IntBuffer buffer, int start, int end) {
+        final int pixel = buffer.get(start);
+        int i = start + 1;
+        while (i < end && buffer.get(i) == pixel) {
+            i++;
+        }
+        return i - start;
+    }
+}
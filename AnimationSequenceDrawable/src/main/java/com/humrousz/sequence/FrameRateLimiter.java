@@ -0,0 +1,245 @@
+package com.humrousz.sequence;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide limit on how often {@link AnimationSequenceDrawable}s swap frames. Frames
+ * shorter than the limit are merged: the drawable skips ahead to the last frame of a run of
+ * short ones and shows it for their total duration, so animations keep their speed at a lower
+ * frame rate.
+ * <p>
+ * In adaptive mode the limit also follows load: it's stepped down through
+ * {@link #ADAPTIVE_FPS} while the decoding threads are busier than {@link #HIGH_UTILIZATION}
+ * of the time, and back up once the rate above is expected to stay under
+ * {@link #LOW_UTILIZATION}. Battery saver caps it at {@link #POWER_SAVE_FPS}.
+ */
+
+public final class FrameRateLimiter {
+    /**
+     * Frame rates adaptive mode steps through, 0 for no limit
+     */
+    static final int[] ADAPTIVE_FPS = {0, 30, 20, 15, 10};
+    static final float HIGH_UTILIZATION = 0.8f;
+    static final float LOW_UTILIZATION = 0.5f;
+    static final int POWER_SAVE_FPS = 15;
+    /**
+     * Utilization is measured over windows this long
+     */
+    private static final long WINDOW_MS = 1000;
+    /**
+     * The rate assumed for no limit, to estimate the load when lifting the limit
+     */
+    private static final int DISPLAY_FPS = 60;
+    private static final Object S_LOCK = new Object();
+    private static FrameRateLimiter sDefault;
+
+    private volatile long mMinFrameIntervalMs;
+    private int mMaxFps;
+    /**
+     * Read without the lock by {@link #recordDecode(long)}, so decoding threads only contend
+     * when a window closes
+     */
+    private volatile boolean mAdaptive;
+    private boolean mPowerSaveMode;
+    private int mLevel;
+    private int mDecodeThreadCount = 1;
+    private volatile long mWindowStart = -1;
+    private final AtomicLong mWindowDecodeNanos = new AtomicLong();
+    private float mUtilization;
+    private BroadcastReceiver mPowerSaveReceiver;
+
+    public static FrameRateLimiter getDefault() {
+        synchronized (S_LOCK) {
+            if (sDefault == null) {
+                sDefault = new FrameRateLimiter();
+            }
+            return sDefault;
+        }
+    }
+
+    private FrameRateLimiter() {
+    }
+
+    /**
+     * Limit every animation in the process to maxFps frames per second.
+     *
+     * @param maxFps the limit, or 0 for none, the default
+     * @see AnimationSequenceDrawable#setMaxFps(int)
+     */
+    public synchronized void setMaxFps(int maxFps) {
+        if (maxFps < 0) {
+            throw new IllegalArgumentException("maxFps must not be negative");
+        }
+        mMaxFps = maxFps;
+        updateLocked();
+    }
+
+    public synchronized int getMaxFps() {
+        return mMaxFps;
+    }
+
+    /**
+     * Lower the frame rate of all animations while decoding can't keep up or battery saver
+     * is on, and raise it again when load drops. Off by default.
+     */
+    public synchronized void setAdaptive(boolean adaptive) {
+        mAdaptive = adaptive;
+        if (!adaptive) {
+            mLevel = 0;
+        }
+        mWindowStart = -1;
+        mWindowDecodeNanos.set(0);
+        updateLocked();
+    }
+
+    public synchronized boolean isAdaptive() {
+        return mAdaptive;
+    }
+
+    /**
+     * Report whether battery saver is on, for apps tracking it themselves, see
+     * {@link #watchPowerSaveMode(Context)}. Only applies in adaptive mode.
+     */
+    public synchronized void setPowerSaveMode(boolean powerSaveMode) {
+        mPowerSaveMode = powerSaveMode;
+        updateLocked();
+    }
+
+    /**
+     * Follow the system battery saver from now on. Does nothing before Lollipop.
+     *
+     * @param context any context, its application context is kept
+     */
+    public void watchPowerSaveMode(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        final PowerManager powerManager = (PowerManager) appContext.getSystemService(Context.POWER_SERVICE);
+        synchronized (this) {
+            if (mPowerSaveReceiver != null) {
+                return;
+            }
+            mPowerSaveReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    setPowerSaveMode(powerManager.isPowerSaveMode());
+                }
+            };
+        }
+        appContext.registerReceiver(mPowerSaveReceiver,
+                new IntentFilter(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED));
+        setPowerSaveMode(powerManager.isPowerSaveMode());
+    }
+
+    /**
+     * Set how many threads decode frames, to measure their utilization against. Kept up to
+     * date by {@link AnimationSequenceDrawable#setDecodeThreadCount(int)} and
+     * {@link AnimationSequenceDrawable#setDecodeExecutor(java.util.concurrent.Executor)}.
+     */
+    public synchronized void setDecodeThreadCount(int threadCount) {
+        mDecodeThreadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * @return the frame rate currently imposed on all animations, or 0 for none
+     */
+    public int getEffectiveFps() {
+        final long interval = mMinFrameIntervalMs;
+        return interval > 0 ? (int) (1000 / interval) : 0;
+    }
+
+    /**
+     * @return the busy fraction of the decoding threads over the last full window
+     */
+    public synchronized float getUtilization() {
+        return mUtilization;
+    }
+
+    /**
+     * @return the shortest time a frame may be shown for, or 0 for no limit
+     */
+    long getMinFrameIntervalMs() {
+        return mMinFrameIntervalMs;
+    }
+
+    /**
+     * Called by drawables after every decode, from the decoding threads. Only takes the lock
+     * to close a window, once per {@link #WINDOW_MS}.
+     */
+    void recordDecode(long decodeNanos) {
+        if (!mAdaptive) {
+            return;
+        }
+        mWindowDecodeNanos.addAndGet(decodeNanos);
+        final long now = SystemClock.uptimeMillis();
+        final long windowStart = mWindowStart;
+        if (windowStart >= 0 && now - windowStart < WINDOW_MS) {
+            return;
+        }
+        synchronized (this) {
+            closeWindowLocked(now);
+        }
+    }
+
+    private void closeWindowLocked(long now) {
+        if (!mAdaptive) {
+            return;
+        }
+        if (mWindowStart < 0) {
+            mWindowStart = now;
+            return;
+        }
+        final long elapsed = now - mWindowStart;
+        if (elapsed < WINDOW_MS) {
+            // another thread closed it first
+            return;
+        }
+        mUtilization = mWindowDecodeNanos.getAndSet(0) / (elapsed * 1000000f * mDecodeThreadCount);
+        mWindowStart = now;
+        if (mUtilization > HIGH_UTILIZATION && mLevel < ADAPTIVE_FPS.length - 1) {
+            mLevel++;
+            updateLocked();
+        } else if (mLevel > 0) {
+            // decoding time grows with the frame rate, so estimate it at the rate above
+            final float faster = fpsOrDisplay(ADAPTIVE_FPS[mLevel - 1]);
+            if (mUtilization * faster / fpsOrDisplay(ADAPTIVE_FPS[mLevel]) < LOW_UTILIZATION) {
+                mLevel--;
+                updateLocked();
+            }
+        }
+    }
+
+    private static int fpsOrDisplay(int fps) {
+        return fps > 0 ? fps : DISPLAY_FPS;
+    }
+
+    private void updateLocked() {
+        int fps = mMaxFps;
+        if (mAdaptive) {
+            fps = minFps(fps, ADAPTIVE_FPS[mLevel]);
+            if (mPowerSaveMode) {
+                fps = minFps(fps, POWER_SAVE_FPS);
+            }
+        }
+        mMinFrameIntervalMs = fps > 0 ? 1000 / fps : 0;
+    }
+
+    /**
+     * @return the lower of two frame rate limits, where 0 means no limit
+     */
+    static int minFps(int a, int b) {
+        if (a == 0) {
+            return b;
+        }
+        return b == 0 ? a : Math.min(a, b);
+    }
+}
@@ -0,0 +1,239 @@
+package com.humrousz.sequence;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Swaps in the due frames of many {@link AnimationSequenceDrawable}s from one callback per
+ * display frame, instead of each drawable posting its own message at its own time. On each
+ * vsync every drawable whose next frame is due is marked ready, then all of them are
+ * invalidated together. Before Jelly Bean, which has no {@link Choreographer}, ticks are
+ * posted every {@link #FALLBACK_FRAME_MS} instead.
+ * <p>
+ * Drawables using a ticker keep time by its clock, so {@link #pause()} freezes all of them at
+ * once, and {@link #setClock(Clock)} lets the app drive them from its own time source.
+ */
+
+public final class FrameTicker {
+    /**
+     * Tick interval where Choreographer is unavailable
+     */
+    static final long FALLBACK_FRAME_MS = 16;
+    private static final boolean HAS_CHOREOGRAPHER =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    private static final Object S_LOCK = new Object();
+    private static FrameTicker sDefault;
+
+    /**
+     * A time source for animations, in milliseconds. Only differences between readings are
+     * used, and it should never go backwards.
+     */
+    public interface Clock {
+        long uptimeMillis();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+    };
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LinkedHashSet<AnimationSequenceDrawable> mDrawables =
+            new LinkedHashSet<AnimationSequenceDrawable>();
+    /**
+     * Only used on the main thread
+     */
+    private final ArrayList<AnimationSequenceDrawable> mTicking = new ArrayList<AnimationSequenceDrawable>();
+    private final ArrayList<AnimationSequenceDrawable> mReady = new ArrayList<AnimationSequenceDrawable>();
+    private Clock mClock = SYSTEM_CLOCK;
+    private long mPausedAt = -1;
+    /**
+     * Subtracted from the clock, so ticker time stands still while paused and carries on
+     * smoothly across clock changes
+     */
+    private long mOffset;
+    private boolean mTickPosted;
+
+    private final Runnable mTickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (HAS_CHOREOGRAPHER) {
+                postFrameCallback();
+            } else {
+                tick();
+            }
+        }
+    };
+
+    private Choreographer.FrameCallback mFrameCallback;
+
+    /**
+     * Get the ticker drawables use after
+     * {@link AnimationSequenceDrawable#setFrameTickerEnabled(boolean)}.
+     */
+    public static FrameTicker getDefault() {
+        synchronized (S_LOCK) {
+            if (sDefault == null) {
+                sDefault = new FrameTicker();
+            }
+            return sDefault;
+        }
+    }
+
+    public FrameTicker() {
+    }
+
+    /**
+     * Drive the drawables of this ticker from clock, or from SystemClock.uptimeMillis() if
+     * null. Frames already waiting are due by the new clock at the same distance from now.
+     */
+    public void setClock(Clock clock) {
+        synchronized (this) {
+            final long before = uptimeMillis();
+            mClock = clock != null ? clock : SYSTEM_CLOCK;
+            final long now = mClock.uptimeMillis();
+            if (mPausedAt >= 0) {
+                mPausedAt = now;
+            }
+            mOffset = now - before;
+        }
+        postTick();
+    }
+
+    /**
+     * Stop the clock of this ticker, freezing every drawable using it on its current frame.
+     */
+    public synchronized void pause() {
+        if (mPausedAt < 0) {
+            mPausedAt = mClock.uptimeMillis();
+        }
+    }
+
+    /**
+     * Restart the clock where it was paused.
+     */
+    public void resume() {
+        synchronized (this) {
+            if (mPausedAt < 0) {
+                return;
+            }
+            mOffset += mClock.uptimeMillis() - mPausedAt;
+            mPausedAt = -1;
+        }
+        postTick();
+    }
+
+    public synchronized boolean isPaused() {
+        return mPausedAt >= 0;
+    }
+
+    /**
+     * @return the time of this ticker's clock, minus the time spent paused
+     */
+    public synchronized long uptimeMillis() {
+        return (mPausedAt >= 0 ? mPausedAt : mClock.uptimeMillis()) - mOffset;
+    }
+
+    /**
+     * @return how many drawables wait for a frame to be due
+     */
+    public synchronized int getDrawableCount() {
+        return mDrawables.size();
+    }
+
+    /**
+     * The drawable waits for its next frame to be due, may be called on any thread while
+     * holding the drawable's lock
+     */
+    void register(AnimationSequenceDrawable drawable) {
+        synchronized (this) {
+            if (!mDrawables.add(drawable)) {
+                return;
+            }
+        }
+        postTick();
+    }
+
+    void unregister(AnimationSequenceDrawable drawable) {
+        synchronized (this) {
+            mDrawables.remove(drawable);
+        }
+    }
+
+    private void postTick() {
+        synchronized (this) {
+            if (mTickPosted || mDrawables.isEmpty() || mPausedAt >= 0) {
+                return;
+            }
+            mTickPosted = true;
+        }
+        if (HAS_CHOREOGRAPHER && Looper.myLooper() == Looper.getMainLooper()) {
+            postFrameCallback();
+        } else {
+            // Choreographer is per thread, get to the main one first
+            mHandler.post(mTickRunnable);
+        }
+    }
+
+    private void postFrameCallback() {
+        if (mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    tick();
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+    }
+
+    /**
+     * Runs on the main thread on vsync, for as long as drawables are waiting
+     */
+    private void tick() {
+        final long now;
+        synchronized (this) {
+            if (mPausedAt >= 0) {
+                // posted again on resume()
+                mTickPosted = false;
+                return;
+            }
+            now = uptimeMillis();
+            mTicking.addAll(mDrawables);
+        }
+        for (int i = 0; i < mTicking.size(); i++) {
+            // unregisters itself once it no longer waits
+            AnimationSequenceDrawable drawable = mTicking.get(i);
+            if (drawable.onTick(this, now)) {
+                mReady.add(drawable);
+            }
+        }
+        mTicking.clear();
+        // mark every due drawable before invalidating any, so they're drawn in one traversal
+        for (int i = 0; i < mReady.size(); i++) {
+            mReady.get(i).invalidateSelf();
+        }
+        mReady.clear();
+        boolean more;
+        synchronized (this) {
+            more = !mDrawables.isEmpty() && mPausedAt < 0;
+            mTickPosted = more;
+        }
+        if (!more) {
+            return;
+        }
+        if (HAS_CHOREOGRAPHER) {
+            postFrameCallback();
+        } else {
+            mHandler.postDelayed(mTickRunnable, FALLBACK_FRAME_MS);
+        }
+    }
+}
@@ -1,18 +1,28 @@
 package com.humrousz.sequence;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.support.annotation.IntDef;
 
 import com.facebook.animated.gif.GifImage;
 import com.facebook.animated.webp.WebPImage;
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo;
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo.BlendOperation;
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo.DisposalMethod;
 import com.facebook.imagepipeline.animated.base.AnimatedImage;
 import com.facebook.imagepipeline.animated.base.AnimatedImageFrame;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * @author zhangzhiquan
@@ -28,11 +38,62 @@ public class FrescoSequence extends BaseAnimationSequence {
     @Retention(RetentionPolicy.SOURCE)
     public @interface ImageType {}
 
+    private static final int DEFAULT_READ_BUFFER_SIZE = 16 * 1024;
+
     private AnimatedImage mWebpImage;
+    private AnimatedDrawableFrameInfo[] mFrameInfos;
+    private int[] mFrameDurations;
+    /**
+     * Index of the keyframe each frame is composited from when the output's contents are
+     * unknown, i.e. the closest earlier frame that doesn't depend on the ones before it
+     */
+    private int[] mKeyFrames;
+    /**
+     * Scratch state for compositing, only used while holding the sequence's lock
+     */
+    private final Canvas mCanvas = new Canvas();
+    private final Paint mBlendPaint = new Paint();
+    private final Paint mSrcPaint = new Paint();
+    private final Paint mClearPaint = new Paint();
+    private final Rect mSrcRect = new Rect();
+    private final Rect mDstRect = new Rect();
+    private Bitmap mFrameBitmap;
+    private boolean mOpaque;
+    /**
+     * Whether the decoder renders frames at any size, rather than only at their own
+     */
+    private boolean mRenderSupportsScaling;
+    /**
+     * Size getFrame renders at, only used while holding the sequence's lock
+     */
+    private int mOutWidth;
+    private int mOutHeight;
 
     public FrescoSequence(AnimatedImage image){
+        this(image, true);
+    }
+
+    /**
+     * @param hasAlpha false if the container says no frame has transparent pixels, so the
+     *                 sequence is opaque if its frames also cover the whole canvas
+     */
+    public FrescoSequence(AnimatedImage image, boolean hasAlpha){
         this(image.getWidth(),image.getHeight(),image.getFrameCount(),image.getLoopCount());
         mWebpImage = image;
+        final int frameCount = image.getFrameCount();
+        mFrameInfos = new AnimatedDrawableFrameInfo[frameCount];
+        mKeyFrames = new int[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            mFrameInfos[i] = image.getFrameInfo(i);
+            mKeyFrames[i] = isIndependent(i) ? i : mKeyFrames[i - 1];
+        }
+        mFrameDurations = image.getFrameDurations();
+        mOpaque = !hasAlpha && coversCanvas();
+        mRenderSupportsScaling = image.doesRenderSupportScaling();
+        mBlendPaint.setFilterBitmap(true);
+        mSrcPaint.setFilterBitmap(true);
+        mSrcPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        mClearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
     }
 
     private FrescoSequence(int width, int height, int frameCount, int defaultLoopCount) {
@@ -41,29 +102,212 @@ public class FrescoSequence extends BaseAnimationSequence {
 
     @Override
     public long getFrame(int frameNr, Bitmap output, int previousFrameNr) {
-        AnimatedImageFrame frame =  mWebpImage.getFrame(frameNr);
-        frame.renderFrame(mWebpImage.getWidth(),mWebpImage.getHeight(),output);
-        return frame.getDurationMs();
+        return getFrame(frameNr, output, previousFrameNr, getWidth(), getHeight());
+    }
+
+    /**
+     * Composites frameNr onto output. If output holds an earlier frame at or after frameNr's
+     * keyframe, only the frames since are drawn, each into its own sub-rectangle; otherwise
+     * output is cleared and composited from the keyframe.
+     * <p>
+     * When scaled, WebP frames are rendered by the decoder at the reduced size; GIF frames are
+     * rendered at full size and scaled while compositing.
+     */
+    @Override
+    public synchronized long getFrame(int frameNr, Bitmap output, int previousFrameNr,
+                                      int width, int height) {
+        mOutWidth = width;
+        mOutHeight = height;
+        mCanvas.setBitmap(output);
+        try {
+            int start;
+            if (previousFrameNr >= mKeyFrames[frameNr] && previousFrameNr < frameNr
+                    && mFrameInfos[previousFrameNr].disposalMethod != DisposalMethod.DISPOSE_TO_PREVIOUS) {
+                if (mFrameInfos[previousFrameNr].disposalMethod == DisposalMethod.DISPOSE_TO_BACKGROUND) {
+                    clearFrame(mFrameInfos[previousFrameNr]);
+                }
+                start = previousFrameNr + 1;
+            } else {
+                mCanvas.drawRect(0, 0, mOutWidth, mOutHeight, mClearPaint);
+                start = mKeyFrames[frameNr];
+            }
+            for (int i = start; i < frameNr; i++) {
+                AnimatedDrawableFrameInfo info = mFrameInfos[i];
+                if (info.disposalMethod == DisposalMethod.DISPOSE_TO_BACKGROUND) {
+                    // drawn and then cleared before the next frame
+                    clearFrame(info);
+                } else if (info.disposalMethod != DisposalMethod.DISPOSE_TO_PREVIOUS) {
+                    // frames disposed to previous are undone before the next frame, so skip them
+                    drawFrame(i, output);
+                }
+            }
+            drawFrame(frameNr, output);
+        } finally {
+            mCanvas.setBitmap(null);
+        }
+        return mFrameDurations[frameNr];
+    }
+
+    private void drawFrame(int frameNr, Bitmap output) {
+        AnimatedDrawableFrameInfo info = mFrameInfos[frameNr];
+        AnimatedImageFrame frame = mWebpImage.getFrame(frameNr);
+        try {
+            final boolean scaled = mOutWidth != getWidth() || mOutHeight != getHeight();
+            if (info.blendOperation == BlendOperation.NO_BLEND && isFullFrame(info)
+                    && output.getConfig() == Bitmap.Config.ARGB_8888
+                    && (!scaled || mRenderSupportsScaling)) {
+                // replaces every pixel, render straight into the output
+                frame.renderFrame(mOutWidth, mOutHeight, output);
+                return;
+            }
+            scaleRect(info, mDstRect);
+            int renderWidth = info.width;
+            int renderHeight = info.height;
+            if (scaled && mRenderSupportsScaling) {
+                renderWidth = Math.max(1, mDstRect.width());
+                renderHeight = Math.max(1, mDstRect.height());
+            }
+            // the decoder only renders 8888, other outputs are converted when drawing
+            frame.renderFrame(renderWidth, renderHeight, obtainFrameBitmap(renderWidth, renderHeight));
+            mSrcRect.set(0, 0, renderWidth, renderHeight);
+            mCanvas.drawBitmap(mFrameBitmap, mSrcRect, mDstRect,
+                    info.blendOperation == BlendOperation.NO_BLEND ? mSrcPaint : mBlendPaint);
+        } finally {
+            frame.dispose();
+        }
+    }
+
+    private Bitmap obtainFrameBitmap(int width, int height) {
+        if (mFrameBitmap == null || mFrameBitmap.getWidth() < width
+                || mFrameBitmap.getHeight() < height) {
+            int newWidth = mFrameBitmap == null ? width : Math.max(width, mFrameBitmap.getWidth());
+            int newHeight = mFrameBitmap == null ? height : Math.max(height, mFrameBitmap.getHeight());
+            mFrameBitmap = Bitmap.createBitmap(newWidth, newHeight, Bitmap.Config.ARGB_8888);
+        } else {
+            mFrameBitmap.eraseColor(Color.TRANSPARENT);
+        }
+        return mFrameBitmap;
+    }
+
+    private void clearFrame(AnimatedDrawableFrameInfo info) {
+        scaleRect(info, mDstRect);
+        mCanvas.drawRect(mDstRect, mClearPaint);
+    }
+
+    /**
+     * The frame's rectangle at the output size, rounded outwards
+     */
+    private void scaleRect(AnimatedDrawableFrameInfo info, Rect rect) {
+        final int width = getWidth();
+        final int height = getHeight();
+        rect.set(info.xOffset * mOutWidth / width,
+                info.yOffset * mOutHeight / height,
+                ((info.xOffset + info.width) * mOutWidth + width - 1) / width,
+                ((info.yOffset + info.height) * mOutHeight + height - 1) / height);
+    }
+
+    private boolean isFullFrame(AnimatedDrawableFrameInfo info) {
+        return info.xOffset == 0 && info.yOffset == 0
+                && info.width == getWidth() && info.height == getHeight();
+    }
+
+    /**
+     * Whether opaque frames leave no pixel of the canvas transparent: the first frame covers
+     * it, and whatever a frame clears on disposal the next one covers again
+     */
+    private boolean coversCanvas() {
+        if (!isFullFrame(mFrameInfos[0])) {
+            return false;
+        }
+        for (int i = 0; i < mFrameInfos.length - 1; i++) {
+            AnimatedDrawableFrameInfo info = mFrameInfos[i];
+            AnimatedDrawableFrameInfo next = mFrameInfos[i + 1];
+            if (info.disposalMethod == DisposalMethod.DISPOSE_TO_BACKGROUND
+                    && (next.xOffset > info.xOffset || next.yOffset > info.yOffset
+                    || next.xOffset + next.width < info.xOffset + info.width
+                    || next.yOffset + next.height < info.yOffset + info.height)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isIndependent(int frameNr) {
+        if (frameNr == 0) {
+            return true;
+        }
+        AnimatedDrawableFrameInfo info = mFrameInfos[frameNr];
+        if (info.blendOperation == BlendOperation.NO_BLEND && isFullFrame(info)) {
+            return true;
+        }
+        AnimatedDrawableFrameInfo previous = mFrameInfos[frameNr - 1];
+        return previous.disposalMethod == DisposalMethod.DISPOSE_TO_BACKGROUND
+                && isFullFrame(previous);
+    }
+
+    @Override
+    public boolean isKeyFrame(int frameNr) {
+        return mKeyFrames[frameNr] == frameNr;
+    }
+
+    @Override
+    public long getFrameDuration(int frameNr) {
+        return mFrameDurations[frameNr];
+    }
+
+    @Override
+    public boolean supportsScaling() {
+        return true;
     }
 
     @Override
     public boolean isOpaque() {
-        return false;
+        return mOpaque;
+    }
+
+    /**
+     * Frames are composited through a Canvas, so any config it can draw into works
+     */
+    @Override
+    public boolean canRenderInto(Bitmap.Config config) {
+        return config == Bitmap.Config.ARGB_8888 || config == Bitmap.Config.RGB_565;
+    }
+
+    @Override
+    public void destroy() {
+        mWebpImage.dispose();
     }
 
     public static FrescoSequence decodeStream(InputStream in,@ImageType int type){
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        byte[] buff = new byte[1024];
-        int rc;
+        return decodeStream(in, type, -1);
+    }
+
+    /**
+     * decodeStream
+     * @param sizeHint the expected length, e.g. from File.length(), or -1 to ask the stream
+     */
+    public static FrescoSequence decodeStream(InputStream in, @ImageType int type, int sizeHint){
+        byte[] bytes;
         try {
-            while ((rc = in.read(buff,0,buff.length)) > 0){
-                out.write(buff,0,rc);
-            }
+            bytes = readFully(in, sizeHint);
         } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
-        byte[] bytes = out.toByteArray();
+        return decodeByteArray(bytes, type);
+    }
+
+    /**
+     * Decode mapped or otherwise buffered bytes. Fresco only accepts a heap array, so this
+     * copies the remaining bytes once.
+     */
+    public static FrescoSequence decodeByteBuffer(ByteBuffer buffer, @ImageType int type){
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return decodeByteArray(bytes, type);
+    }
+
+    private static FrescoSequence decodeByteArray(byte[] bytes, @ImageType int type){
         switch (type){
             case GIF :
                 return decodeGifPByteArray(bytes);
@@ -72,14 +316,60 @@ public class FrescoSequence extends BaseAnimationSequence {
         }
     }
 
-
+    /**
+     * Read a whole stream into an array sized from the hint or the stream's available(),
+     * which is exact for files, assets and raw resources, so in the common case the bytes are
+     * read straight into the array handed to the decoder.
+     */
+    static byte[] readFully(InputStream in, int sizeHint) throws IOException {
+        if (sizeHint <= 0) {
+            sizeHint = in.available();
+        }
+        byte[] buff = new byte[sizeHint > 0 ? sizeHint : DEFAULT_READ_BUFFER_SIZE];
+        int count = 0;
+        while (true) {
+            if (count == buff.length) {
+                // the hint was short, or the stream is at its end
+                int b = in.read();
+                if (b < 0) {
+                    break;
+                }
+                buff = Arrays.copyOf(buff, buff.length * 2);
+                buff[count++] = (byte) b;
+            }
+            int rc = in.read(buff, count, buff.length - count);
+            if (rc < 0) {
+                break;
+            }
+            count += rc;
+        }
+        return count == buff.length ? buff : Arrays.copyOf(buff, count);
+    }
 
     public static FrescoSequence decodeWebPByteArray(byte[] data){
-        return new FrescoSequence(WebPImage.create(data));
+        return new FrescoSequence(WebPImage.create(data), ImageHeaders.webpHasAlpha(data));
     }
 
     public static FrescoSequence decodeGifPByteArray(byte[] data){
-        return new FrescoSequence(GifImage.create(data));
+        return new FrescoSequence(GifImage.create(data), ImageHeaders.gifHasAlpha(data));
+    }
+
+    /**
+     * Decode a source from its mapped bytes if it can be mapped, else from its stream with
+     * the buffer sized up front
+     */
+    static FrescoSequence decodeSource(SequenceSource source, @ImageType int type) throws IOException {
+        ByteBuffer mapped = source.map();
+        if (mapped != null) {
+            return decodeByteBuffer(mapped, type);
+        }
+        InputStream inputStream = source.openStream();
+        try {
+            long length = source.getLength();
+            return decodeStream(inputStream, type, length > 0 && length <= Integer.MAX_VALUE ? (int) length : -1);
+        } finally {
+            inputStream.close();
+        }
     }
 
     public static class FrescoWebpSequenceFactory extends BaseSequenceFactory {
@@ -87,6 +377,11 @@ public class FrescoSequence extends BaseAnimationSequence {
         public BaseAnimationSequence createSequence(InputStream inputStream) {
             return decodeStream(inputStream,WEBP);
         }
+
+        @Override
+        protected BaseAnimationSequence decodeSource(SequenceSource source) throws IOException {
+            return FrescoSequence.decodeSource(source, WEBP);
+        }
     }
 
     public static class FrescoGifSequenceFactory extends BaseSequenceFactory {
@@ -94,13 +389,21 @@ public class FrescoSequence extends BaseAnimationSequence {
         public BaseAnimationSequence createSequence(InputStream inputStream) {
             return decodeStream(inputStream,GIF);
         }
+
+        @Override
+        protected BaseAnimationSequence decodeSource(SequenceSource source) throws IOException {
+            return FrescoSequence.decodeSource(source, GIF);
+        }
     }
 
+    private static final BaseSequenceFactory S_WEBP_FACTORY = new FrescoWebpSequenceFactory();
+    private static final BaseSequenceFactory S_GIF_FACTORY = new FrescoGifSequenceFactory();
+
     public static BaseSequenceFactory getSequenceFactory(int srcType ){
         if(srcType == GIF) {
-            return new FrescoGifSequenceFactory();
+            return S_GIF_FACTORY;
         }else {
-            return new FrescoWebpSequenceFactory();
+            return S_WEBP_FACTORY;
         }
     }
 
@@ -0,0 +1,393 @@
+package com.humrousz.sequence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A GIF sequence decoded in Java, without Fresco's native library. The file is parsed once
+ * into frame descriptors pointing into its bytes, which stay mapped or in the array they were
+ * read into; frames are then decompressed on demand by a streaming LZW decoder onto the
+ * canvas of {@link CanvasSequence}.
+ * <p>
+ * Decoding allocates nothing per frame: the LZW tables are allocated once and reused.
+ */
+
+public class GifSequence extends CanvasSequence<GifSequence.GifFrame> {
+    private static final int EXTENSION = 0x21;
+    private static final int GRAPHIC_CONTROL = 0xf9;
+    private static final int APPLICATION = 0xff;
+    private static final int IMAGE = 0x2c;
+    private static final int GIF_DISPOSE_BACKGROUND = 2;
+    private static final int GIF_DISPOSE_PREVIOUS = 3;
+
+    /**
+     * LZW codes are at most 12 bits
+     */
+    private static final int MAX_CODES = 4096;
+    private static final int[] INTERLACE_START = {0, 4, 2, 1};
+    private static final int[] INTERLACE_STEP = {8, 8, 4, 2};
+
+    private final ByteBuffer mData;
+    private final int[] mGlobalColors;
+
+    /**
+     * Scratch state, only used while holding the sequence's lock
+     */
+    private final short[] mPrefix = new short[MAX_CODES];
+    private final byte[] mSuffix = new byte[MAX_CODES];
+    private final byte[] mPixelStack = new byte[MAX_CODES + 1];
+    private final int[] mLocalColors = new int[256];
+
+    private GifSequence(ByteBuffer data, int width, int height, int loopCount,
+                        int[] globalColors, GifFrame[] frames) {
+        super(width, height, loopCount, frames, hasTransparency(frames));
+        mData = data;
+        mGlobalColors = globalColors;
+    }
+
+    /**
+     * Decompress the frame's LZW data straight onto the canvas, skipping transparent pixels.
+     * Corrupt or truncated data leaves the rest of the frame as it was.
+     */
+    @Override
+    void drawFrame(GifFrame frame, int[] canvas) {
+        final ByteBuffer data = mData;
+        final int canvasWidth = getWidth();
+        final int canvasHeight = getHeight();
+        final int[] colors;
+        if (frame.localColorsOffset >= 0) {
+            readColorTable(data, frame.localColorsOffset, frame.localColorCount, mLocalColors);
+            colors = mLocalColors;
+        } else {
+            colors = mGlobalColors;
+        }
+        final short[] prefix = mPrefix;
+        final byte[] suffix = mSuffix;
+        final byte[] pixelStack = mPixelStack;
+        final int transparent = frame.transparentIndex;
+        final int frameWidth = frame.width;
+        final int frameHeight = frame.height;
+        final int clipWidth = Math.min(frameWidth, canvasWidth - frame.x);
+
+        final int limit = data.limit();
+        int pos = frame.dataOffset;
+        if (pos >= limit) {
+            // cut off right after the image descriptor
+            return;
+        }
+        final int minCodeSize = data.get(pos++) & 0xff;
+        if (minCodeSize > 11) {
+            return;
+        }
+        final int clear = 1 << minCodeSize;
+        final int endOfInformation = clear + 1;
+        for (int code = 0; code < clear; code++) {
+            prefix[code] = 0;
+            suffix[code] = (byte) code;
+        }
+        int codeSize = minCodeSize + 1;
+        int codeMask = (1 << codeSize) - 1;
+        int available = clear + 2;
+        int oldCode = -1;
+        int first = 0;
+        int bits = 0;
+        int datum = 0;
+        int blockRemaining = 0;
+        int top = 0;
+
+        int pass = 0;
+        int line = 0;
+        int x = 0;
+        int rowStart = (frame.y + line) * canvasWidth + frame.x;
+        boolean rowVisible = frame.y + line < canvasHeight;
+        int remaining = frameWidth * frameHeight;
+        while (remaining > 0) {
+            if (top == 0) {
+                while (bits < codeSize) {
+                    if (blockRemaining == 0) {
+                        blockRemaining = pos < limit ? data.get(pos++) & 0xff : 0;
+                        if (blockRemaining == 0) {
+                            // the image data ended early
+                            return;
+                        }
+                    }
+                    if (pos >= limit) {
+                        return;
+                    }
+                    datum |= (data.get(pos++) & 0xff) << bits;
+                    bits += 8;
+                    blockRemaining--;
+                }
+                int code = datum & codeMask;
+                datum >>>= codeSize;
+                bits -= codeSize;
+                if (code == clear) {
+                    codeSize = minCodeSize + 1;
+                    codeMask = (1 << codeSize) - 1;
+                    available = clear + 2;
+                    oldCode = -1;
+                    continue;
+                }
+                if (code == endOfInformation || code > available
+                        || (oldCode == -1 && code >= clear)) {
+                    return;
+                }
+                if (oldCode == -1) {
+                    pixelStack[top++] = suffix[code];
+                    oldCode = code;
+                    first = code;
+                    continue;
+                }
+                final int inCode = code;
+                if (code == available) {
+                    pixelStack[top++] = (byte) first;
+                    code = oldCode;
+                }
+                while (code >= clear) {
+                    pixelStack[top++] = suffix[code];
+                    code = prefix[code];
+                }
+                first = suffix[code] & 0xff;
+                pixelStack[top++] = (byte) first;
+                if (available < MAX_CODES) {
+                    prefix[available] = (short) oldCode;
+                    suffix[available] = (byte) first;
+                    available++;
+                    if ((available & codeMask) == 0 && available < MAX_CODES) {
+                        codeSize++;
+                        codeMask += available;
+                    }
+                }
+                oldCode = inCode;
+            }
+            // the stack holds the string backwards, so popping emits it in order
+            final int index = pixelStack[--top] & 0xff;
+            if (index != transparent && rowVisible && x < clipWidth) {
+                canvas[rowStart + x] = colors[index];
+            }
+            remaining--;
+            if (++x == frameWidth) {
+                x = 0;
+                if (frame.interlaced) {
+                    line += INTERLACE_STEP[pass];
+                    while (line >= frameHeight && pass < INTERLACE_START.length - 1) {
+                        pass++;
+                        line = INTERLACE_START[pass];
+                    }
+                } else {
+                    line++;
+                }
+                rowStart = (frame.y + line) * canvasWidth + frame.x;
+                rowVisible = frame.y + line < canvasHeight;
+            }
+        }
+    }
+
+    private static boolean hasTransparency(GifFrame[] frames) {
+        for (GifFrame frame : frames) {
+            if (frame.transparentIndex >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a GIF. The buffer is kept and read from on every frame, so it must not change.
+     * @return the sequence, or null if data isn't a GIF with at least one frame
+     */
+    public static GifSequence decodeByteBuffer(ByteBuffer data) {
+        final int length = data.limit();
+        if (length < 13 || data.get(0) != 'G' || data.get(1) != 'I' || data.get(2) != 'F') {
+            return null;
+        }
+        final int width = readShort(data, 6);
+        final int height = readShort(data, 8);
+        final int packed = data.get(10) & 0xff;
+        int pos = 13;
+        int[] globalColors = new int[256];
+        if ((packed & 0x80) != 0) {
+            int count = 2 << (packed & 7);
+            if (pos + 3 * count > length) {
+                return null;
+            }
+            readColorTable(data, pos, count, globalColors);
+            pos += 3 * count;
+        } else {
+            Arrays.fill(globalColors, 0xff000000);
+        }
+        // no loop extension means play once
+        int loopCount = 1;
+        int disposal = 0;
+        int delay = 0;
+        int transparentIndex = -1;
+        List<GifFrame> frames = new ArrayList<GifFrame>();
+        try {
+            while (pos < length) {
+                int block = data.get(pos++) & 0xff;
+                if (block == EXTENSION) {
+                    int label = data.get(pos++) & 0xff;
+                    if (label == GRAPHIC_CONTROL && (data.get(pos) & 0xff) >= 4) {
+                        int fields = data.get(pos + 1) & 0xff;
+                        disposal = (fields >> 2) & 7;
+                        delay = readShort(data, pos + 2) * 10;
+                        transparentIndex = (fields & 1) != 0 ? data.get(pos + 4) & 0xff : -1;
+                    } else if (label == APPLICATION && (data.get(pos) & 0xff) == 11
+                            && isNetscapeLoop(data, pos + 1)) {
+                        int count = readShort(data, pos + 14);
+                        // the extension counts repeats after the first play, 0 is forever
+                        loopCount = count == 0 ? 0 : count + 1;
+                    }
+                    pos = skipSubBlocks(data, pos);
+                } else if (block == IMAGE) {
+                    GifFrame frame = new GifFrame();
+                    frame.x = readShort(data, pos);
+                    frame.y = readShort(data, pos + 2);
+                    frame.width = readShort(data, pos + 4);
+                    frame.height = readShort(data, pos + 6);
+                    int fields = data.get(pos + 8) & 0xff;
+                    frame.interlaced = (fields & 0x40) != 0;
+                    pos += 9;
+                    frame.localColorsOffset = -1;
+                    if ((fields & 0x80) != 0) {
+                        frame.localColorsOffset = pos;
+                        frame.localColorCount = 2 << (fields & 7);
+                        pos += 3 * frame.localColorCount;
+                        if (pos > length) {
+                            // truncated in the color table
+                            break;
+                        }
+                    }
+                    frame.dataOffset = pos;
+                    frame.disposal = disposal == GIF_DISPOSE_BACKGROUND ? DISPOSE_BACKGROUND
+                            : disposal == GIF_DISPOSE_PREVIOUS ? DISPOSE_PREVIOUS : DISPOSE_NONE;
+                    frame.duration = delay;
+                    frame.transparentIndex = transparentIndex;
+                    frame.replaces = transparentIndex < 0;
+                    // the minimum code size, then the image data
+                    pos = skipSubBlocks(data, pos + 1);
+                    if (pos > length) {
+                        // truncated, keep what decodes of it
+                        pos = length;
+                    }
+                    if (frame.width > 0 && frame.height > 0 && frame.x < width && frame.y < height) {
+                        frames.add(frame);
+                    }
+                    disposal = 0;
+                    delay = 0;
+                    transparentIndex = -1;
+                } else {
+                    // the trailer, or garbage after the last frame
+                    break;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // truncated in a header, play the frames before it
+        }
+        if (frames.isEmpty() || width <= 0 || height <= 0) {
+            return null;
+        }
+        return new GifSequence(data, width, height, loopCount, globalColors,
+                frames.toArray(new GifFrame[frames.size()]));
+    }
+
+    public static GifSequence decodeByteArray(byte[] data) {
+        return decodeByteBuffer(ByteBuffer.wrap(data));
+    }
+
+    public static GifSequence decodeStream(InputStream in) {
+        return decodeStream(in, -1);
+    }
+
+    /**
+     * decodeStream
+     * @param sizeHint the expected length, or -1 to ask the stream
+     */
+    public static GifSequence decodeStream(InputStream in, int sizeHint) {
+        try {
+            return decodeByteArray(FrescoSequence.readFully(in, sizeHint));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static boolean isNetscapeLoop(ByteBuffer data, int pos) {
+        final String id = "NETSCAPE2.0";
+        for (int i = 0; i < id.length(); i++) {
+            if (data.get(pos + i) != id.charAt(i)) {
+                return false;
+            }
+        }
+        // a sub-block of 3 bytes with id 1, then the count
+        return (data.get(pos + 11) & 0xff) >= 3 && data.get(pos + 12) == 1;
+    }
+
+    private static void readColorTable(ByteBuffer data, int pos, int count, int[] colors) {
+        for (int i = 0; i < count; i++, pos += 3) {
+            colors[i] = 0xff000000 | (data.get(pos) & 0xff) << 16
+                    | (data.get(pos + 1) & 0xff) << 8 | (data.get(pos + 2) & 0xff);
+        }
+        // out of range indices in broken files show black
+        Arrays.fill(colors, count, colors.length, 0xff000000);
+    }
+
+    private static int readShort(ByteBuffer data, int pos) {
+        return (data.get(pos) & 0xff) | (data.get(pos + 1) & 0xff) << 8;
+    }
+
+    private static int skipSubBlocks(ByteBuffer data, int pos) {
+        final int length = data.limit();
+        while (pos < length) {
+            int size = data.get(pos++) & 0xff;
+            if (size == 0) {
+                break;
+            }
+            pos += size;
+        }
+        return pos;
+    }
+
+    static final class GifFrame extends Frame {
+        boolean interlaced;
+        int localColorsOffset;
+        int localColorCount;
+        int dataOffset;
+        int transparentIndex;
+    }
+
+    public static class GifSequenceFactory extends BaseSequenceFactory {
+        @Override
+        public BaseAnimationSequence createSequence(InputStream inputStream) {
+            return decodeStream(inputStream);
+        }
+
+        /**
+         * Parse the mapped bytes where possible, so the file isn't copied onto the heap
+         */
+        @Override
+        protected BaseAnimationSequence decodeSource(SequenceSource source) throws IOException {
+            ByteBuffer mapped = source.map();
+            if (mapped != null) {
+                return decodeByteBuffer(mapped.slice());
+            }
+            InputStream inputStream = source.openStream();
+            try {
+                long length = source.getLength();
+                return decodeStream(inputStream, length > 0 && length <= Integer.MAX_VALUE ? (int) length : -1);
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+
+    private static final BaseSequenceFactory S_FACTORY = new GifSequenceFactory();
+
+    public static BaseSequenceFactory getSequenceFactory() {
+        return S_FACTORY;
+    }
+}
@@ -0,0 +1,239 @@
+package com.humrousz.sequence;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads properties of encoded images from their container headers, without decoding pixels.
+ * Every check errs towards the safe answer when the bytes are truncated or unexpected.
+ */
+
+final class ImageHeaders {
+    /**
+     * Alpha bit of the VP8X feature flags
+     */
+    private static final int VP8X_ALPHA = 0x10;
+    private static final int GIF_EXTENSION = 0x21;
+    private static final int GIF_GRAPHIC_CONTROL = 0xf9;
+    private static final int GIF_IMAGE = 0x2c;
+    private static final int GIF_TRAILER = 0x3b;
+    /**
+     * Formats told apart by {@link #sniffFormat(InputStream)}
+     */
+    static final int FORMAT_UNKNOWN = 0;
+    static final int FORMAT_ANIMATED_WEBP = 1;
+    static final int FORMAT_GIF = 2;
+    static final int FORMAT_APNG = 3;
+    /**
+     * How far into a file sniffing looks for the chunk that marks it animated
+     */
+    static final int MAX_SNIFF_BYTES = 64 * 1024;
+    private static final byte[] PNG_SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    private ImageHeaders() {
+    }
+
+    /**
+     * @return false only if the WebP header says no pixel is transparent
+     */
+    static boolean webpHasAlpha(byte[] data) {
+        if (data.length < 21 || !matches(data, 0, "RIFF") || !matches(data, 8, "WEBP")) {
+            return true;
+        }
+        if (matches(data, 12, "VP8X")) {
+            return (data[20] & VP8X_ALPHA) != 0;
+        }
+        if (matches(data, 12, "VP8 ")) {
+            // simple lossy images carry no alpha
+            return false;
+        }
+        if (matches(data, 12, "VP8L") && data.length >= 25) {
+            // alpha_is_used follows the 14 bit width and height after the signature byte
+            return (data[24] & 0x10) != 0;
+        }
+        return true;
+    }
+
+    /**
+     * @return false only if no frame of the GIF declares a transparent color
+     */
+    static boolean gifHasAlpha(byte[] data) {
+        if (data.length < 13 || !matches(data, 0, "GIF")) {
+            return true;
+        }
+        int pos = skipColorTable(13, data[10]);
+        while (pos < data.length) {
+            int block = data[pos++] & 0xff;
+            if (block == GIF_EXTENSION) {
+                if (pos >= data.length) {
+                    return true;
+                }
+                int label = data[pos++] & 0xff;
+                // block size, then the packed fields whose lowest bit is the transparency flag
+                if (label == GIF_GRAPHIC_CONTROL
+                        && (pos + 1 >= data.length || (data[pos + 1] & 1) != 0)) {
+                    return true;
+                }
+                pos = skipSubBlocks(data, pos);
+            } else if (block == GIF_IMAGE) {
+                if (pos + 9 > data.length) {
+                    return true;
+                }
+                pos = skipColorTable(pos + 9, data[pos + 8]);
+                // LZW minimum code size, then the image data
+                pos = skipSubBlocks(data, pos + 1);
+            } else {
+                return block != GIF_TRAILER;
+            }
+        }
+        // truncated
+        return true;
+    }
+
+    /**
+     * Tell the format of an encoded image from its first chunks, reading at most
+     * {@link #MAX_SNIFF_BYTES}. WebP and PNG files only count if they declare an animation
+     * before their image data; GIFs count whatever their frame count, since telling needs
+     * reading all of their image data.
+     *
+     * @return one of the FORMAT constants, FORMAT_UNKNOWN for anything else, e.g. a JPEG
+     */
+    static int sniffFormat(InputStream in) throws IOException {
+        byte[] header = new byte[12];
+        if (!readFully(in, header, 12)) {
+            return FORMAT_UNKNOWN;
+        }
+        if (matches(header, 0, "GIF87a") || matches(header, 0, "GIF89a")) {
+            return FORMAT_GIF;
+        }
+        if (matches(header, 0, "RIFF") && matches(header, 8, "WEBP")) {
+            return sniffWebpChunks(in, header) ? FORMAT_ANIMATED_WEBP : FORMAT_UNKNOWN;
+        }
+        for (int i = 0; i < PNG_SIGNATURE.length; i++) {
+            if (header[i] != PNG_SIGNATURE[i]) {
+                return FORMAT_UNKNOWN;
+            }
+        }
+        return sniffPngChunks(in, header) ? FORMAT_APNG : FORMAT_UNKNOWN;
+    }
+
+    /**
+     * @param chunk scratch of at least 8 bytes
+     * @return whether an ANIM chunk comes before the image data
+     */
+    private static boolean sniffWebpChunks(InputStream in, byte[] chunk) throws IOException {
+        long read = 12;
+        while (read + 8 <= MAX_SNIFF_BYTES && readFully(in, chunk, 8)) {
+            if (matches(chunk, 0, "ANIM")) {
+                return true;
+            }
+            if (matches(chunk, 0, "VP8 ") || matches(chunk, 0, "VP8L")
+                    || matches(chunk, 0, "ALPH") || matches(chunk, 0, "ANMF")) {
+                return false;
+            }
+            // chunks are padded to an even size
+            long size = (chunk[4] & 0xff | (chunk[5] & 0xff) << 8 | (chunk[6] & 0xff) << 16
+                    | (long) (chunk[7] & 0xff) << 24) + 1 & ~1L;
+            read += 8 + size;
+            // checked before skipping, so a stream marked for the sniff can still be reset
+            if (read > MAX_SNIFF_BYTES || !skipFully(in, size)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param chunk scratch of at least 8 bytes, positioned after the signature
+     * @return whether an acTL chunk comes before the image data
+     */
+    private static boolean sniffPngChunks(InputStream in, byte[] chunk) throws IOException {
+        // the signature was read along with the first 4 bytes of the first chunk
+        System.arraycopy(chunk, 8, chunk, 0, 4);
+        if (!readFully(in, chunk, 4, 4)) {
+            return false;
+        }
+        long read = 16;
+        while (true) {
+            if (matches(chunk, 4, "acTL")) {
+                return true;
+            }
+            if (matches(chunk, 4, "IDAT") || matches(chunk, 4, "IEND")) {
+                return false;
+            }
+            // data, then the CRC
+            long size = ((chunk[0] & 0xffL) << 24 | (chunk[1] & 0xff) << 16
+                    | (chunk[2] & 0xff) << 8 | chunk[3] & 0xff) + 4;
+            read += size + 8;
+            if (read > MAX_SNIFF_BYTES || !skipFully(in, size) || !readFully(in, chunk, 8)) {
+                return false;
+            }
+        }
+    }
+
+    private static boolean readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        return readFully(in, buffer, 0, length);
+    }
+
+    private static boolean readFully(InputStream in, byte[] buffer, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            int count = in.read(buffer, offset, length);
+            if (count < 0) {
+                return false;
+            }
+            offset += count;
+            length -= count;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the stream ended first
+     */
+    private static boolean skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                // skip may stop short without being at the end
+                if (in.read() < 0) {
+                    return false;
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+        return true;
+    }
+
+    private static int skipColorTable(int pos, byte packed) {
+        if ((packed & 0x80) != 0) {
+            pos += 3 * (2 << (packed & 7));
+        }
+        return pos;
+    }
+
+    private static int skipSubBlocks(byte[] data, int pos) {
+        while (pos < data.length) {
+            int size = data[pos++] & 0xff;
+            if (size == 0) {
+                break;
+            }
+            pos += size;
+        }
+        return pos;
+    }
+
+    private static boolean matches(byte[] data, int offset, String tag) {
+        if (offset + tag.length() > data.length) {
+            return false;
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            if (data[offset + i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,273 @@
+package com.humrousz.sequence;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A sequence played back from a file of pre-rendered frames, written once by
+ * {@link #transcode(BaseAnimationSequence, File, boolean)}. The file is memory mapped and each
+ * frame's pixels are copied straight into the output, so replaying costs no decoding.
+ * <p>
+ * The file starts with a header of the dimensions, pixel format, frame durations and frame
+ * offsets, followed by one block of pixels per frame, either raw at a fixed stride or
+ * compressed with {@link FrameCodec}.
+ */
+
+public class MappedFrameSequence extends BaseAnimationSequence {
+    private static final int MAGIC = 0x41534643;
+    /**
+     * Bump when the file format changes, so files of older versions are rewritten
+     */
+    static final int VERSION = 1;
+    private static final int FLAG_OPAQUE = 1;
+    private static final int FLAG_COMPRESSED = 1 << 1;
+    private static final int FLAG_LITTLE_ENDIAN = 1 << 2;
+    private static final int CONFIG_ARGB_8888 = 0;
+    private static final int CONFIG_RGB_565 = 1;
+    /**
+     * magic, version, flags, width, height, frame count, loop count, config, block size
+     */
+    private static final int FIXED_HEADER_SIZE = 9 * 4;
+
+    private final MappedByteBuffer mBuffer;
+    private final int mFlags;
+    private final Bitmap.Config mConfig;
+    private final int mBlockSize;
+    private final int[] mDurations;
+    private final long[] mOffsets;
+    /**
+     * Scratch state, only used while holding the sequence's lock
+     */
+    private ByteBuffer mPixels;
+    private Bitmap mFrameBitmap;
+    private Canvas mCanvas;
+    private Paint mPaint;
+
+    private MappedFrameSequence(MappedByteBuffer buffer, int flags, int width, int height,
+                                int frameCount, int loopCount, Bitmap.Config config,
+                                int blockSize, int[] durations, long[] offsets) {
+        super(width, height, frameCount, loopCount);
+        mBuffer = buffer;
+        mFlags = flags;
+        mConfig = config;
+        mBlockSize = blockSize;
+        mDurations = durations;
+        mOffsets = offsets;
+    }
+
+    /**
+     * Open a file written by {@link #transcode(BaseAnimationSequence, File, boolean)}.
+     * @return the sequence, or null if the file is of another version or not complete
+     */
+    public static MappedFrameSequence open(File file) throws IOException {
+        MappedByteBuffer buffer;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // the mapping stays valid after the channel is closed
+            in.close();
+        }
+        if (buffer.remaining() < FIXED_HEADER_SIZE
+                || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        final int flags = buffer.getInt();
+        final boolean littleEndian = (flags & FLAG_LITTLE_ENDIAN) != 0;
+        if (littleEndian != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)) {
+            return null;
+        }
+        final int width = buffer.getInt();
+        final int height = buffer.getInt();
+        final int frameCount = buffer.getInt();
+        final int loopCount = buffer.getInt();
+        final Bitmap.Config config = buffer.getInt() == CONFIG_RGB_565
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        final int blockSize = buffer.getInt();
+        if (width <= 0 || height <= 0 || frameCount <= 0
+                || buffer.remaining() < frameCount * 4 + (frameCount + 1) * 8) {
+            return null;
+        }
+        int[] durations = new int[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            durations[i] = buffer.getInt();
+        }
+        long[] offsets = new long[frameCount + 1];
+        for (int i = 0; i <= frameCount; i++) {
+            offsets[i] = buffer.getLong();
+        }
+        if (offsets[frameCount] != buffer.capacity()) {
+            // written partially
+            return null;
+        }
+        return new MappedFrameSequence(buffer, flags, width, height, frameCount, loopCount,
+                config, blockSize, durations, offsets);
+    }
+
+    /**
+     * Render every frame of sequence and write them to file, replacing it atomically.
+     * @param sequence rendered from its current state, starting at frame 0
+     * @param compress whether to run-length encode the frames
+     * @return the size of the file written
+     */
+    public static long transcode(BaseAnimationSequence sequence, File file, boolean compress)
+            throws IOException {
+        final int width = sequence.getWidth();
+        final int height = sequence.getHeight();
+        final int frameCount = sequence.getFrameCount();
+        final Bitmap.Config config = sequence.isOpaque() && sequence.canRenderInto(Bitmap.Config.RGB_565)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+        final int blockSize = bitmap.getByteCount();
+        // the codec works on ints, so odd sized 565 frames are stored raw
+        compress = compress && blockSize % 4 == 0;
+        final ByteBuffer pixels = ByteBuffer.allocateDirect(blockSize).order(ByteOrder.nativeOrder());
+        final ByteBuffer encoded = compress
+                ? ByteBuffer.allocateDirect(FrameCodec.maxEncodedLength(blockSize / 4) * 4)
+                .order(ByteOrder.nativeOrder())
+                : null;
+        final int headerSize = FIXED_HEADER_SIZE + frameCount * 4 + (frameCount + 1) * 8;
+        final ByteBuffer header = ByteBuffer.allocate(headerSize);
+        final int[] durations = new int[frameCount];
+        final long[] offsets = new long[frameCount + 1];
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        boolean written = false;
+        try {
+            FileChannel channel = out.getChannel();
+            channel.position(headerSize);
+            long offset = headerSize;
+            for (int i = 0; i < frameCount; i++) {
+                durations[i] = (int) sequence.getFrame(i, bitmap, i - 1);
+                pixels.clear();
+                bitmap.copyPixelsToBuffer(pixels);
+                pixels.flip();
+                ByteBuffer block = pixels;
+                if (compress) {
+                    encoded.clear();
+                    IntBuffer src = pixels.asIntBuffer();
+                    IntBuffer dst = encoded.asIntBuffer();
+                    FrameCodec.encode(src, dst);
+                    encoded.limit(dst.position() * 4);
+                    block = encoded;
+                }
+                offsets[i] = offset;
+                while (block.hasRemaining()) {
+                    offset += channel.write(block);
+                }
+            }
+            offsets[frameCount] = offset;
+
+            int flags = 0;
+            if (sequence.isOpaque()) {
+                flags |= FLAG_OPAQUE;
+            }
+            if (compress) {
+                flags |= FLAG_COMPRESSED;
+            }
+            if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+                flags |= FLAG_LITTLE_ENDIAN;
+            }
+            header.putInt(MAGIC).putInt(VERSION).putInt(flags)
+                    .putInt(width).putInt(height).putInt(frameCount)
+                    .putInt(sequence.getDefaultLoopCount())
+                    .putInt(config == Bitmap.Config.RGB_565 ? CONFIG_RGB_565 : CONFIG_ARGB_8888)
+                    .putInt(blockSize);
+            for (int duration : durations) {
+                header.putInt(duration);
+            }
+            for (long frameOffset : offsets) {
+                header.putLong(frameOffset);
+            }
+            header.flip();
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            written = true;
+            return offset;
+        } finally {
+            out.close();
+            bitmap.recycle();
+            if (!written || !tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Copies the frame's pixels into output. Frames are stored whole, so previousFrameNr
+     * doesn't matter.
+     */
+    @Override
+    public synchronized long getFrame(int frameNr, Bitmap output, int previousFrameNr) {
+        ByteBuffer block = mBuffer.duplicate();
+        block.limit((int) mOffsets[frameNr + 1]);
+        block.position((int) mOffsets[frameNr]);
+        ByteBuffer pixels = block;
+        if ((mFlags & FLAG_COMPRESSED) != 0) {
+            if (mPixels == null) {
+                mPixels = ByteBuffer.allocateDirect(mBlockSize).order(ByteOrder.nativeOrder());
+            }
+            mPixels.clear();
+            IntBuffer dst = mPixels.asIntBuffer();
+            FrameCodec.decode(block.order(ByteOrder.nativeOrder()).asIntBuffer(), dst);
+            pixels = mPixels;
+        }
+        if (output.getConfig() == mConfig && output.getByteCount() == mBlockSize
+                && output.getWidth() == getWidth()) {
+            output.copyPixelsFromBuffer(pixels);
+        } else {
+            // e.g. a larger pooled bitmap, convert through a frame sized one
+            if (mFrameBitmap == null) {
+                mFrameBitmap = Bitmap.createBitmap(getWidth(), getHeight(), mConfig);
+                mCanvas = new Canvas();
+                mPaint = new Paint();
+                mPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+            }
+            mFrameBitmap.copyPixelsFromBuffer(pixels);
+            mCanvas.setBitmap(output);
+            mCanvas.drawBitmap(mFrameBitmap, 0, 0, mPaint);
+            mCanvas.setBitmap(null);
+        }
+        return mDurations[frameNr];
+    }
+
+    /**
+     * Frames are stored whole
+     */
+    @Override
+    public boolean isKeyFrame(int frameNr) {
+        return true;
+    }
+
+    @Override
+    public long getFrameDuration(int frameNr) {
+        return mDurations[frameNr];
+    }
+
+    @Override
+    public boolean isOpaque() {
+        return (mFlags & FLAG_OPAQUE) != 0;
+    }
+
+    @Override
+    public boolean canRenderInto(Bitmap.Config config) {
+        return config == Bitmap.Config.ARGB_8888 || config == Bitmap.Config.RGB_565;
+    }
+}
@@ -0,0 +1,212 @@
+package com.humrousz.sequence;
+
+import java.util.Arrays;
+
+/**
+ * Playback performance of one {@link AnimationSequenceDrawable}, see
+ * {@link AnimationSequenceDrawable#getMetrics(PlaybackMetrics)}. Durations are bucketed into
+ * fixed histograms as they are recorded, so recording never allocates and can stay on in
+ * release builds.
+ */
+
+public class PlaybackMetrics {
+    /**
+     * Upper bounds of the histogram buckets in milliseconds, a last bucket holds the rest
+     */
+    private static final int[] BUCKET_BOUNDS_MS = {1, 2, 4, 8, 16, 32, 64, 128, 256};
+    public static final int BUCKET_COUNT = BUCKET_BOUNDS_MS.length + 1;
+
+    /**
+     * Receives every measurement as it is taken, from the decoding thread or the thread
+     * drawing the drawable. Arguments are primitives so that reporting doesn't allocate.
+     */
+    public interface Listener {
+        /**
+         * @param frameNr the frame decoded
+         * @param decodeNanos time spent in getFrame, or copying from the frame cache
+         * @param queueWaitNanos time the decode waited on the executor, 0 if the decoder
+         *                       was already running
+         * @param droppedFrames frames skipped to catch up before this one
+         */
+        void onFrameDecoded(AnimationSequenceDrawable drawable, int frameNr, long decodeNanos,
+                            long queueWaitNanos, int droppedFrames);
+
+        /**
+         * @param frameNr the frame swapped in
+         * @param latenessMs how long after it was due, 0 if on time
+         */
+        void onFrameSwapped(AnimationSequenceDrawable drawable, int frameNr, long latenessMs);
+    }
+
+    final long[] decodeHistogram = new long[BUCKET_COUNT];
+    long decodeCount;
+    long decodeTotalNanos;
+    long decodeMaxNanos;
+    final long[] queueWaitHistogram = new long[BUCKET_COUNT];
+    long queueWaitCount;
+    long queueWaitTotalNanos;
+    final long[] latenessHistogram = new long[BUCKET_COUNT];
+    long swapCount;
+    long latenessTotalMs;
+    long latenessMaxMs;
+    int droppedFrames;
+    int mergedFrames;
+    int lateFrames;
+    long bitmapBytes;
+
+    /**
+     * @return the upper bound in milliseconds of bucket, or Long.MAX_VALUE for the last
+     */
+    public static long getBucketUpperBoundMs(int bucket) {
+        return bucket < BUCKET_BOUNDS_MS.length ? BUCKET_BOUNDS_MS[bucket] : Long.MAX_VALUE;
+    }
+
+    static int bucketOf(long ms) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MS.length && ms > BUCKET_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    void recordDecode(long nanos) {
+        decodeHistogram[bucketOf(nanos / 1000000)]++;
+        decodeCount++;
+        decodeTotalNanos += nanos;
+        decodeMaxNanos = Math.max(decodeMaxNanos, nanos);
+    }
+
+    void recordQueueWait(long nanos) {
+        queueWaitHistogram[bucketOf(nanos / 1000000)]++;
+        queueWaitCount++;
+        queueWaitTotalNanos += nanos;
+    }
+
+    void recordSwap(long latenessMs) {
+        latenessHistogram[bucketOf(latenessMs)]++;
+        swapCount++;
+        latenessTotalMs += latenessMs;
+        latenessMaxMs = Math.max(latenessMaxMs, latenessMs);
+    }
+
+    /**
+     * Copy other into this, reusing this object's arrays
+     */
+    void set(PlaybackMetrics other) {
+        System.arraycopy(other.decodeHistogram, 0, decodeHistogram, 0, BUCKET_COUNT);
+        decodeCount = other.decodeCount;
+        decodeTotalNanos = other.decodeTotalNanos;
+        decodeMaxNanos = other.decodeMaxNanos;
+        System.arraycopy(other.queueWaitHistogram, 0, queueWaitHistogram, 0, BUCKET_COUNT);
+        queueWaitCount = other.queueWaitCount;
+        queueWaitTotalNanos = other.queueWaitTotalNanos;
+        System.arraycopy(other.latenessHistogram, 0, latenessHistogram, 0, BUCKET_COUNT);
+        swapCount = other.swapCount;
+        latenessTotalMs = other.latenessTotalMs;
+        latenessMaxMs = other.latenessMaxMs;
+        droppedFrames = other.droppedFrames;
+        mergedFrames = other.mergedFrames;
+        lateFrames = other.lateFrames;
+        bitmapBytes = other.bitmapBytes;
+    }
+
+    public void reset() {
+        Arrays.fill(decodeHistogram, 0);
+        decodeCount = 0;
+        decodeTotalNanos = 0;
+        decodeMaxNanos = 0;
+        Arrays.fill(queueWaitHistogram, 0);
+        queueWaitCount = 0;
+        queueWaitTotalNanos = 0;
+        Arrays.fill(latenessHistogram, 0);
+        swapCount = 0;
+        latenessTotalMs = 0;
+        latenessMaxMs = 0;
+        droppedFrames = 0;
+        mergedFrames = 0;
+        lateFrames = 0;
+        bitmapBytes = 0;
+    }
+
+    /**
+     * @return how many decodes took up to {@link #getBucketUpperBoundMs(int)} of bucket
+     */
+    public long getDecodeHistogram(int bucket) {
+        return decodeHistogram[bucket];
+    }
+
+    public long getDecodeCount() {
+        return decodeCount;
+    }
+
+    public long getDecodeTotalNanos() {
+        return decodeTotalNanos;
+    }
+
+    public long getDecodeMaxNanos() {
+        return decodeMaxNanos;
+    }
+
+    public long getQueueWaitHistogram(int bucket) {
+        return queueWaitHistogram[bucket];
+    }
+
+    /**
+     * @return how many times the decoder was scheduled on the executor
+     */
+    public long getQueueWaitCount() {
+        return queueWaitCount;
+    }
+
+    public long getQueueWaitTotalNanos() {
+        return queueWaitTotalNanos;
+    }
+
+    /**
+     * @return how many swaps were up to {@link #getBucketUpperBoundMs(int)} of bucket late
+     */
+    public long getLatenessHistogram(int bucket) {
+        return latenessHistogram[bucket];
+    }
+
+    public long getSwapCount() {
+        return swapCount;
+    }
+
+    public long getLatenessTotalMs() {
+        return latenessTotalMs;
+    }
+
+    public long getLatenessMaxMs() {
+        return latenessMaxMs;
+    }
+
+    /**
+     * @return frames skipped to catch up, see {@link AnimationSequenceDrawable#PLAYBACK_CATCH_UP}
+     */
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return frames merged into the next one to stay under the frame rate limit, see
+     * {@link AnimationSequenceDrawable#setMaxFps(int)}
+     */
+    public int getMergedFrames() {
+        return mergedFrames;
+    }
+
+    /**
+     * @return frames swapped in noticeably after they were due
+     */
+    public int getLateFrames() {
+        return lateFrames;
+    }
+
+    /**
+     * @return bytes of the bitmaps the drawable holds when the metrics were read
+     */
+    public long getBitmapBytes() {
+        return bitmapBytes;
+    }
+}
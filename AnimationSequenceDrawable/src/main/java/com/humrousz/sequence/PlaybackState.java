@@ -0,0 +1,156 @@
+package com.humrousz.sequence;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The swap state of an {@link AnimationSequenceDrawable}, packed into one atomic word with
+ * its running and destroyed flags, so the UI thread can check and advance it without taking
+ * the drawable's lock.
+ * <p>
+ * Swap states go SCHEDULED (waiting for the decoder) -&gt; WAITING_TO_SWAP (decoded, not due
+ * yet) -&gt; READY_TO_SWAP (due) -&gt; SWAPPING (buffers being exchanged by draw) and back to
+ * SCHEDULED or WAITING_TO_SWAP. Buffers are owned by the state: the decoder only completes
+ * a frame out of SCHEDULED, and only draw, after claiming READY_TO_SWAP, touches the front
+ * buffer. Stopping may happen at any point and wins over any transition in flight, since
+ * every transition requires the running flag; destroying is final.
+ * <p>
+ * The swap itself still runs under the drawable's lock, since it also advances the ring,
+ * loop counters and scheduling that seeking, resizing and starting change. The word keeps
+ * draws with nothing to swap off the lock, and the decoder only takes the lock to claim and
+ * publish a slot, so a swap never waits for a frame being decoded; DrawContentionBenchmark
+ * measures this.
+ */
+
+final class PlaybackState {
+    static final int IDLE = 0;
+    static final int SCHEDULED = 1;
+    static final int WAITING_TO_SWAP = 3;
+    static final int READY_TO_SWAP = 4;
+    static final int SWAPPING = 5;
+
+    private static final int STATE_MASK = 0xff;
+    private static final int RUNNING = 1 << 8;
+    private static final int DESTROYED = 1 << 9;
+    /**
+     * A front buffer was replaced outside of a swap, and waits for the next draw to be
+     * released
+     */
+    private static final int RETIRED = 1 << 10;
+
+    private final AtomicInteger mWord = new AtomicInteger();
+
+    int getState() {
+        return mWord.get() & STATE_MASK;
+    }
+
+    boolean isRunning() {
+        return (mWord.get() & (RUNNING | DESTROYED)) == RUNNING;
+    }
+
+    boolean isDestroyed() {
+        return (mWord.get() & DESTROYED) != 0;
+    }
+
+    boolean hasRetired() {
+        return (mWord.get() & RETIRED) != 0;
+    }
+
+    /**
+     * @return whether draw has to take the lock: to swap, or to release a retired buffer
+     */
+    boolean needsLockedDraw() {
+        final int word = mWord.get();
+        return (word & RETIRED) != 0
+                || ((word & (RUNNING | DESTROYED)) == RUNNING && (word & STATE_MASK) == READY_TO_SWAP);
+    }
+
+    /**
+     * Start running in state, unless destroyed
+     */
+    boolean start(int state) {
+        int word;
+        do {
+            word = mWord.get();
+            if ((word & DESTROYED) != 0) {
+                return false;
+            }
+        } while (!mWord.compareAndSet(word, (word & RETIRED) | RUNNING | state));
+        return true;
+    }
+
+    /**
+     * Stop running, whatever the state
+     *
+     * @return whether it was running
+     */
+    boolean stop() {
+        int word;
+        do {
+            word = mWord.get();
+            if ((word & RUNNING) == 0) {
+                return false;
+            }
+        } while (!mWord.compareAndSet(word, word & (RETIRED | DESTROYED)));
+        return true;
+    }
+
+    /**
+     * Move from expect to update, if still running and in expect
+     */
+    boolean move(int expect, int update) {
+        int word;
+        do {
+            word = mWord.get();
+            if ((word & (RUNNING | DESTROYED)) != RUNNING || (word & STATE_MASK) != expect) {
+                return false;
+            }
+        } while (!mWord.compareAndSet(word, (word & ~STATE_MASK) | update));
+        return true;
+    }
+
+    /**
+     * Move to update from any state, if still running
+     */
+    boolean moveIfRunning(int update) {
+        int word;
+        do {
+            word = mWord.get();
+            if ((word & (RUNNING | DESTROYED)) != RUNNING) {
+                return false;
+            }
+        } while (!mWord.compareAndSet(word, (word & ~STATE_MASK) | update));
+        return true;
+    }
+
+    void setRetired(boolean retired) {
+        int word;
+        do {
+            word = mWord.get();
+        } while (!mWord.compareAndSet(word, retired ? word | RETIRED : word & ~RETIRED));
+    }
+
+    /**
+     * Stop for good
+     *
+     * @return false if already destroyed
+     */
+    boolean destroy() {
+        int word;
+        do {
+            word = mWord.get();
+            if ((word & DESTROYED) != 0) {
+                return false;
+            }
+        } while (!mWord.compareAndSet(word, (word & RETIRED) | DESTROYED));
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        final int word = mWord.get();
+        return "PlaybackState{state=" + (word & STATE_MASK)
+                + ((word & RUNNING) != 0 ? ", running" : "")
+                + ((word & DESTROYED) != 0 ? ", destroyed" : "")
+                + ((word & RETIRED) != 0 ? ", retired" : "") + "}";
+    }
+}
@@ -0,0 +1,233 @@
+package com.humrousz.sequence;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A {@link AnimationSequenceDrawable.BitmapProvider} that keeps released bitmaps in size buckets
+ * and hands them out again instead of allocating, evicting the least recently released ones
+ * when the pooled bitmaps exceed a byte budget.
+ * <p>
+ * On KitKat and above bitmaps are bucketed by allocation size and reused for any smaller
+ * request with {@link Bitmap#reconfigure(int, int, Bitmap.Config)}, whatever their config;
+ * below that only bitmaps of the exact same dimensions and config are reused.
+ */
+
+public class PoolingBitmapProvider implements AnimationSequenceDrawable.ConfigurableBitmapProvider {
+    private static final boolean CAN_RECONFIGURE =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    /**
+     * Don't reconfigure a bitmap more than this many times larger than the request,
+     * so big buffers are not wasted on tiny animations
+     */
+    private static final int MAX_SIZE_MULTIPLE = 2;
+    private static final Object S_LOCK = new Object();
+    private static PoolingBitmapProvider sDefault;
+
+    private final int mMaxBytes;
+    /**
+     * Buckets of pooled bitmaps, keyed by allocation size or by packed dimensions and config
+     */
+    private final TreeMap<Long, ArrayDeque<Bitmap>> mBuckets = new TreeMap<Long, ArrayDeque<Bitmap>>();
+    /**
+     * All pooled bitmaps and their bucket keys, least recently released first
+     */
+    private final LinkedHashMap<Bitmap, Long> mLru = new LinkedHashMap<Bitmap, Long>();
+    private int mCurrentBytes;
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * Get the process wide pool used by {@link AnimationImageView}, sized to a sixteenth of
+     * the max heap.
+     */
+    public static PoolingBitmapProvider getDefault() {
+        synchronized (S_LOCK) {
+            if (sDefault == null) {
+                sDefault = new PoolingBitmapProvider((int) Math.min(Integer.MAX_VALUE,
+                        Runtime.getRuntime().maxMemory() / 16));
+            }
+            return sDefault;
+        }
+    }
+
+    /**
+     * @param maxBytes the most bytes of bitmaps kept in the pool while not in use
+     */
+    public PoolingBitmapProvider(int maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    @Override
+    public Bitmap acquireBitmap(int minWidth, int minHeight) {
+        return acquireBitmap(minWidth, minHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    @Override
+    public Bitmap acquireBitmap(int minWidth, int minHeight, Bitmap.Config config) {
+        Bitmap bitmap;
+        synchronized (this) {
+            bitmap = pollLocked(minWidth, minHeight, config);
+            if (bitmap != null) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+        }
+        if (bitmap == null) {
+            return Bitmap.createBitmap(minWidth, minHeight, config);
+        }
+        if (CAN_RECONFIGURE) {
+            bitmap.reconfigure(minWidth, minHeight, config);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    @Override
+    public void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bytesPerPixel(bitmap.getConfig()) == 0) {
+            return;
+        }
+        final int size = getSize(bitmap);
+        if (size > mMaxBytes) {
+            return;
+        }
+        synchronized (this) {
+            if (mLru.containsKey(bitmap)) {
+                return;
+            }
+            final long key = CAN_RECONFIGURE ? size
+                    : packSize(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayDeque<Bitmap>();
+                mBuckets.put(key, bucket);
+            }
+            bucket.offerLast(bitmap);
+            mLru.put(bitmap, key);
+            mCurrentBytes += size;
+            trimToSizeLocked(mMaxBytes);
+        }
+    }
+
+    /**
+     * Drop pooled bitmaps, least recently released first, until at most maxBytes are pooled.
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        trimToSizeLocked(maxBytes);
+    }
+
+    /**
+     * Drop all pooled bitmaps.
+     */
+    public synchronized void clear() {
+        trimToSizeLocked(0);
+    }
+
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized int getCurrentBytes() {
+        return mCurrentBytes;
+    }
+
+    /**
+     * @return how many acquires were served from the pool
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return how many acquires had to allocate a new bitmap
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return how many pooled bitmaps were dropped to stay under the byte budget
+     */
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    private Bitmap pollLocked(int width, int height, Bitmap.Config config) {
+        final Long key;
+        if (CAN_RECONFIGURE) {
+            final long size = (long) width * height * bytesPerPixel(config);
+            key = mBuckets.ceilingKey(size);
+            if (key == null || key > size * MAX_SIZE_MULTIPLE) {
+                return null;
+            }
+        } else {
+            key = packSize(width, height, config);
+        }
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            return null;
+        }
+        Bitmap bitmap = bucket.pollLast();
+        if (bucket.isEmpty()) {
+            mBuckets.remove(key);
+        }
+        mLru.remove(bitmap);
+        mCurrentBytes -= getSize(bitmap);
+        return bitmap;
+    }
+
+    private void trimToSizeLocked(int maxBytes) {
+        Iterator<Map.Entry<Bitmap, Long>> it = mLru.entrySet().iterator();
+        while (mCurrentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<Bitmap, Long> eldest = it.next();
+            it.remove();
+            Bitmap bitmap = eldest.getKey();
+            ArrayDeque<Bitmap> bucket = mBuckets.get(eldest.getValue());
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(eldest.getValue());
+            }
+            mCurrentBytes -= getSize(bitmap);
+            mEvictionCount++;
+        }
+    }
+
+    private static long packSize(int width, int height, Bitmap.Config config) {
+        return ((long) width << 33) | ((long) height << 1)
+                | (config == Bitmap.Config.RGB_565 ? 1 : 0);
+    }
+
+    /**
+     * @return the bytes per pixel of the configs drawables use, 0 for any other
+     */
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        }
+        if (config == Bitmap.Config.RGB_565) {
+            return 2;
+        }
+        return 0;
+    }
+
+    static int getSize(Bitmap bitmap) {
+        if (CAN_RECONFIGURE) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+}
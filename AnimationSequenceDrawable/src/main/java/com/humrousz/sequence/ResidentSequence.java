@@ -0,0 +1,197 @@
+package com.humrousz.sequence;
+
+import android.graphics.Bitmap;
+
+import java.nio.IntBuffer;
+
+/**
+ * Keeps every frame of a small sequence in memory once decoded, so later loops are played by
+ * copying pixels rather than decoding. Frames are recorded as the drawable decodes them,
+ * run-length encoded with {@link FrameCodec} when that makes them smaller and stored raw
+ * otherwise, and expanded straight into the output bitmap afterwards.
+ * <p>
+ * Frames are recorded at the size and config first asked for. Frames asked for at another
+ * size or config are decoded as usual, so drawables sharing the sequence at different sizes
+ * don't keep evicting each other's frames.
+ */
+
+final class ResidentSequence extends BaseAnimationSequence {
+    private final BaseAnimationSequence mSequence;
+    /**
+     * Recorded frames, encoded or raw, at mWidth x mHeight in mConfig
+     */
+    private final IntBuffer[] mFrames;
+    private final boolean[] mEncoded;
+    private final long[] mDurations;
+    private int mWidth;
+    private int mHeight;
+    private Bitmap.Config mConfig;
+    /**
+     * Scratch state, only used while holding the sequence's lock
+     */
+    private IntBuffer mPixels;
+    private int[] mEncodeBuffer;
+
+    private ResidentSequence(BaseAnimationSequence sequence) {
+        super(sequence.getWidth(), sequence.getHeight(), sequence.getFrameCount(),
+                sequence.getDefaultLoopCount());
+        mSequence = sequence;
+        mFrames = new IntBuffer[sequence.getFrameCount()];
+        mEncoded = new boolean[sequence.getFrameCount()];
+        mDurations = new long[sequence.getFrameCount()];
+    }
+
+    /**
+     * Wrap sequence if it loops and all its frames, rendered at full size into config, take
+     * at most maxBytes
+     *
+     * @param maxBytes 0 to never wrap
+     * @return the wrapped sequence, or sequence itself
+     */
+    static BaseAnimationSequence wrapIfSmall(BaseAnimationSequence sequence, Bitmap.Config config,
+                                             int maxBytes) {
+        final long bytes = (long) sequence.getWidth() * sequence.getHeight()
+                * sequence.getFrameCount() * (config == Bitmap.Config.RGB_565 ? 2 : 4);
+        // a single frame, or a sequence played once, is never decoded again anyway
+        if (sequence.getFrameCount() < 2 || sequence.getDefaultLoopCount() == 1
+                || bytes > maxBytes) {
+            return sequence;
+        }
+        return new ResidentSequence(sequence);
+    }
+
+    @Override
+    public long getFrame(int frameNr, Bitmap output, int previousFrameNr) {
+        return getFrame(frameNr, output, previousFrameNr, getWidth(), getHeight());
+    }
+
+    @Override
+    public synchronized long getFrame(int frameNr, Bitmap output, int previousFrameNr,
+                                      int width, int height) {
+        // the codec works on whole ints, and the bitmap must hold exactly the frame
+        final boolean storable = output.getWidth() == width && output.getHeight() == height
+                && output.getByteCount() % 4 == 0;
+        if (mConfig == null && storable) {
+            mWidth = width;
+            mHeight = height;
+            mConfig = output.getConfig();
+        }
+        if (!storable || width != mWidth || height != mHeight || output.getConfig() != mConfig) {
+            return mSequence.getFrame(frameNr, output, previousFrameNr, width, height);
+        }
+        final IntBuffer frame = mFrames[frameNr];
+        if (frame != null) {
+            frame.rewind();
+            if (mEncoded[frameNr]) {
+                IntBuffer pixels = obtainPixels(output);
+                FrameCodec.decode(frame, pixels);
+                pixels.flip();
+                output.copyPixelsFromBuffer(pixels);
+            } else {
+                output.copyPixelsFromBuffer(frame);
+            }
+            return mDurations[frameNr];
+        }
+        final long duration = mSequence.getFrame(frameNr, output, previousFrameNr, width, height);
+        record(frameNr, output, duration);
+        return duration;
+    }
+
+    private void record(int frameNr, Bitmap output, long duration) {
+        final IntBuffer src = obtainPixels(output);
+        final int length = src.remaining();
+        output.copyPixelsToBuffer(src);
+        src.flip();
+        if (mEncodeBuffer == null || mEncodeBuffer.length < FrameCodec.maxEncodedLength(length)) {
+            mEncodeBuffer = new int[FrameCodec.maxEncodedLength(length)];
+        }
+        IntBuffer dst = IntBuffer.wrap(mEncodeBuffer);
+        FrameCodec.encode(src, dst);
+        final int encodedLength = dst.position();
+        int[] stored;
+        if (encodedLength < length) {
+            stored = new int[encodedLength];
+            System.arraycopy(mEncodeBuffer, 0, stored, 0, encodedLength);
+            mEncoded[frameNr] = true;
+        } else {
+            stored = new int[length];
+            src.rewind();
+            src.get(stored);
+            mEncoded[frameNr] = false;
+        }
+        mFrames[frameNr] = IntBuffer.wrap(stored);
+        mDurations[frameNr] = duration;
+    }
+
+    /**
+     * @return a buffer of exactly the output's pixels
+     */
+    private IntBuffer obtainPixels(Bitmap output) {
+        final int length = output.getByteCount() / 4;
+        if (mPixels == null || mPixels.capacity() < length) {
+            mPixels = IntBuffer.allocate(length);
+        }
+        mPixels.clear();
+        mPixels.limit(length);
+        return mPixels;
+    }
+
+    /**
+     * Drop the recorded frames, leaving the wrapped sequence to its owner
+     */
+    synchronized void clear() {
+        clearLocked();
+    }
+
+    private void clearLocked() {
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = null;
+        }
+        mConfig = null;
+        mPixels = null;
+        mEncodeBuffer = null;
+    }
+
+    @Override
+    public Object getSourceKey() {
+        return mSequence.getSourceKey();
+    }
+
+    @Override
+    public void setSourceKey(Object sourceKey) {
+        mSequence.setSourceKey(sourceKey);
+    }
+
+    @Override
+    public boolean supportsScaling() {
+        return mSequence.supportsScaling();
+    }
+
+    @Override
+    public boolean isKeyFrame(int frameNr) {
+        return mSequence.isKeyFrame(frameNr);
+    }
+
+    @Override
+    public long getFrameDuration(int frameNr) {
+        return mSequence.getFrameDuration(frameNr);
+    }
+
+    @Override
+    public boolean isOpaque() {
+        return mSequence.isOpaque();
+    }
+
+    @Override
+    public boolean canRenderInto(Bitmap.Config config) {
+        return mSequence.canRenderInto(config);
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (this) {
+            clearLocked();
+        }
+        mSequence.destroy();
+    }
+}
@@ -0,0 +1,81 @@
+package com.humrousz.sequence;
+
+import java.util.Arrays;
+
+/**
+ * Timing and keyframes of a sequence, read once from its
+ * {@link BaseAnimationSequence#getFrameDuration(int) durations} and
+ * {@link BaseAnimationSequence#isKeyFrame(int) keyframes} without decoding any frame. Frames
+ * last as long as the drawable shows them: durations under 20ms, or unknown, count as 100ms.
+ * <p>
+ * Frame i is shown from {@link #getStartTime(int) getStartTime(i)} until the start of frame
+ * i + 1, and rendering it needs the frames from {@link #getKeyFrame(int) getKeyFrame(i)} on.
+ */
+
+public final class SequenceIndex {
+    /**
+     * Start of each frame, and the duration of the whole sequence last
+     */
+    private final long[] mStartTimes;
+    private final int[] mKeyFrames;
+
+    public SequenceIndex(BaseAnimationSequence sequence) {
+        final int frameCount = sequence.getFrameCount();
+        mStartTimes = new long[frameCount + 1];
+        mKeyFrames = new int[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            mStartTimes[i + 1] = mStartTimes[i]
+                    + AnimationSequenceDrawable.clampDelay(sequence.getFrameDuration(i));
+            mKeyFrames[i] = i == 0 || sequence.isKeyFrame(i) ? i : mKeyFrames[i - 1];
+        }
+    }
+
+    public int getFrameCount() {
+        return mKeyFrames.length;
+    }
+
+    /**
+     * @return how long one loop takes in milliseconds
+     */
+    public long getDuration() {
+        return mStartTimes[mKeyFrames.length];
+    }
+
+    /**
+     * @return when frameNr is swapped in, in milliseconds from the start of the loop
+     */
+    public long getStartTime(int frameNr) {
+        return mStartTimes[frameNr];
+    }
+
+    public long getFrameDuration(int frameNr) {
+        return mStartTimes[frameNr + 1] - mStartTimes[frameNr];
+    }
+
+    public boolean isKeyFrame(int frameNr) {
+        return mKeyFrames[frameNr] == frameNr;
+    }
+
+    /**
+     * @return the closest keyframe at or before frameNr
+     */
+    public int getKeyFrame(int frameNr) {
+        return mKeyFrames[frameNr];
+    }
+
+    /**
+     * @param timeMs time from the start of the loop, clamped to the loop
+     * @return the frame shown at timeMs
+     */
+    public int getFrameAtTime(long timeMs) {
+        if (timeMs <= 0) {
+            return 0;
+        }
+        if (timeMs >= getDuration()) {
+            return mKeyFrames.length - 1;
+        }
+        int index = Arrays.binarySearch(mStartTimes, 0, mKeyFrames.length, timeMs);
+        // between two starts, the frame that started last
+        return index >= 0 ? index : -index - 2;
+    }
+}
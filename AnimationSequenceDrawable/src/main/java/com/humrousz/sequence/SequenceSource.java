@@ -0,0 +1,167 @@
+package com.humrousz.sequence;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where a sequence is decoded from, together with a key identifying the content, so parsed
+ * sequences and decoded frames can be shared between drawables of the same source.
+ */
+
+abstract public class SequenceSource {
+    /**
+     * Key prefixes of sources packaged in the apk, whose content only changes with an update
+     */
+    static final String RESOURCE_KEY_PREFIX = "res:";
+    static final String ASSET_KEY_PREFIX = "asset:";
+
+    private final Object mKey;
+
+    protected SequenceSource(Object key) {
+        mKey = key;
+    }
+
+    /**
+     * The key of the content, equal for sources with the same bytes
+     */
+    public Object getKey() {
+        return mKey;
+    }
+
+    /**
+     * Open a new stream over the encoded bytes, to be closed by the caller
+     */
+    abstract public InputStream openStream() throws IOException;
+
+    /**
+     * The length of the encoded bytes, used to size read buffers up front
+     * @return the length, or -1 if unknown
+     */
+    public long getLength() {
+        return -1;
+    }
+
+    /**
+     * Map the encoded bytes read only, so they can be handed to a decoder without being read
+     * through the Java heap
+     * @return the mapped bytes, or null if the source can't be mapped, e.g. a compressed asset
+     */
+    public ByteBuffer map() throws IOException {
+        return null;
+    }
+
+    public static SequenceSource fromResource(final Resources resources, final int resId) {
+        return new SequenceSource(RESOURCE_KEY_PREFIX + resId) {
+            @Override
+            public InputStream openStream() throws IOException {
+                return resources.openRawResource(resId);
+            }
+
+            @Override
+            public ByteBuffer map() throws IOException {
+                AssetFileDescriptor afd;
+                try {
+                    afd = resources.openRawResourceFd(resId);
+                } catch (Resources.NotFoundException e) {
+                    // compressed in the apk
+                    return null;
+                }
+                return afd != null ? mapFd(afd) : null;
+            }
+        };
+    }
+
+    public static SequenceSource fromAsset(final AssetManager assets, final String path) {
+        return new SequenceSource(ASSET_KEY_PREFIX + path) {
+            @Override
+            public InputStream openStream() throws IOException {
+                return assets.open(path);
+            }
+
+            @Override
+            public ByteBuffer map() throws IOException {
+                AssetFileDescriptor afd;
+                try {
+                    afd = assets.openFd(path);
+                } catch (IOException e) {
+                    // compressed in the apk
+                    return null;
+                }
+                return mapFd(afd);
+            }
+        };
+    }
+
+    /**
+     * A file source, keyed by its path and modification time so edits are not served stale
+     */
+    public static SequenceSource fromFile(final File file) {
+        return new SequenceSource("file:" + file.getPath() + "@" + file.lastModified()) {
+            @Override
+            public InputStream openStream() throws IOException {
+                return new FileInputStream(file);
+            }
+
+            @Override
+            public long getLength() {
+                return file.length();
+            }
+
+            @Override
+            public ByteBuffer map() throws IOException {
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    FileChannel channel = in.getChannel();
+                    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } finally {
+                    // the mapping stays valid after the channel is closed
+                    in.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * A file source for file: uris, otherwise an asset at the uri's path
+     */
+    public static SequenceSource fromUri(Context context, Uri uri) {
+        //workaround for #128
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            return fromFile(new File(uri.getPath()));
+        } else {
+            return fromAsset(context.getResources().getAssets(), uri.getPath());
+        }
+    }
+
+    /**
+     * Map the region of an apk an uncompressed resource or asset lives in
+     */
+    private static ByteBuffer mapFd(AssetFileDescriptor afd) throws IOException {
+        try {
+            if (afd.getLength() == AssetFileDescriptor.UNKNOWN_LENGTH) {
+                return null;
+            }
+            FileInputStream in = new FileInputStream(afd.getFileDescriptor());
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    afd.getStartOffset(), afd.getLength());
+        } finally {
+            afd.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(mKey);
+    }
+}
@@ -0,0 +1,90 @@
+package com.humrousz.sequence;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Picks the factory for each source from its first bytes: animated WebPs, GIFs and animated
+ * PNGs go to the factory given for them, anything else, e.g. a still PNG or a JPEG, is
+ * rejected after reading its header, so callers fall back to decoding it as a plain image
+ * without a failed read and parse of the whole file first.
+ */
+
+public class SniffingSequenceFactory extends BaseSequenceFactory {
+    private static final SniffingSequenceFactory S_DEFAULT = new SniffingSequenceFactory(
+            FrescoSequence.getSequenceFactory(FrescoSequence.WEBP),
+            FrescoSequence.getSequenceFactory(FrescoSequence.GIF),
+            ApngSequence.getSequenceFactory());
+
+    private final BaseSequenceFactory mWebpFactory;
+    private final BaseSequenceFactory mGifFactory;
+    private final BaseSequenceFactory mApngFactory;
+
+    /**
+     * Get the factory decoding WebP and GIF with Fresco, and APNG with {@link ApngSequence}
+     */
+    public static SniffingSequenceFactory getDefault() {
+        return S_DEFAULT;
+    }
+
+    /**
+     * @param webpFactory decodes animated WebPs, or null to reject them
+     * @param gifFactory decodes GIFs, or null to reject them
+     * @param apngFactory decodes animated PNGs, or null to reject them
+     */
+    public SniffingSequenceFactory(BaseSequenceFactory webpFactory, BaseSequenceFactory gifFactory,
+                                   BaseSequenceFactory apngFactory) {
+        mWebpFactory = webpFactory;
+        mGifFactory = gifFactory;
+        mApngFactory = apngFactory;
+    }
+
+    /**
+     * @return the sequence, or null if the stream is no animation this factory decodes
+     */
+    @Override
+    public BaseAnimationSequence createSequence(InputStream inputStream) {
+        InputStream in = inputStream.markSupported()
+                ? inputStream : new BufferedInputStream(inputStream);
+        BaseSequenceFactory factory;
+        try {
+            in.mark(ImageHeaders.MAX_SNIFF_BYTES);
+            factory = getFactory(ImageHeaders.sniffFormat(in));
+            in.reset();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return factory != null ? factory.createSequence(in) : null;
+    }
+
+    /**
+     * Sniffs the source's stream, which sources open cheaply, before the chosen factory
+     * decodes it as it would on its own, e.g. from its mapped bytes
+     */
+    @Override
+    protected BaseAnimationSequence decodeSource(SequenceSource source) throws IOException {
+        BaseSequenceFactory factory;
+        InputStream inputStream = source.openStream();
+        try {
+            factory = getFactory(ImageHeaders.sniffFormat(inputStream));
+        } finally {
+            inputStream.close();
+        }
+        return factory != null ? factory.decodeSource(source) : null;
+    }
+
+    private BaseSequenceFactory getFactory(int format) {
+        switch (format) {
+            case ImageHeaders.FORMAT_ANIMATED_WEBP:
+                return mWebpFactory;
+            case ImageHeaders.FORMAT_GIF:
+                return mGifFactory;
+            case ImageHeaders.FORMAT_APNG:
+                return mApngFactory;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package com.humrousz.sequence;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decodes animated PNGs written here, drawing frames straight onto an int canvas with
+ * {@link ApngSequence#drawFrame(ApngSequence.ApngFrame, int[])}.
+ */
+public class ApngSequenceTest {
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_RGBA = 6;
+    private static final int DISPOSE_NONE = 0;
+    private static final int DISPOSE_BACKGROUND = 1;
+    private static final int DISPOSE_PREVIOUS = 2;
+    private static final int BLEND_SOURCE = 0;
+    private static final int BLEND_OVER = 1;
+    private static final int BACKGROUND = 0x12345678;
+
+    @Test
+    public void everyFilterUnfilters() throws Exception {
+        Random random = new Random(5);
+        // large enough for ties between the Paeth predictors
+        for (int width : new int[]{1, 5, 64}) {
+            int[] pixels = randomPixels(random, width * 40);
+            Apng apng = new Apng(width, 40, 8, COLOR_RGBA, false, 1);
+            apng.frame(0, 0, width, 40, DISPOSE_NONE, BLEND_SOURCE, 0,
+                    compress(scanlines(rgba(pixels), width * 4, 40, 4, null)));
+            ApngSequence sequence = ApngSequence.decodeByteArray(apng.toByteArray());
+            assertNotNull(sequence);
+            assertArrayEquals("width " + width, pixels, draw(sequence, 0));
+        }
+    }
+
+    @Test
+    public void packedPaletteSamples() throws Exception {
+        Random random = new Random(9);
+        int[] palette = {0xff102030, 0x80405060, 0x00708090, 0xffa0b0c0};
+        int width = 13;
+        int height = 6;
+        int[] indices = new int[width * height];
+        int[] expected = new int[indices.length];
+        byte[] packed = new byte[(width * 2 + 7) / 8 * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int index = random.nextInt(4);
+                expected[y * width + x] = palette[index];
+                packed[y * ((width * 2 + 7) / 8) + x / 4] |= index << (6 - 2 * (x % 4));
+            }
+        }
+        Apng apng = new Apng(width, height, 2, COLOR_PALETTE, false, 1);
+        apng.palette(palette);
+        apng.frame(0, 0, width, height, DISPOSE_NONE, BLEND_SOURCE, 0,
+                compress(scanlines(packed, (width * 2 + 7) / 8, height, 1, null)));
+        ApngSequence sequence = ApngSequence.decodeByteArray(apng.toByteArray());
+        assertFalse(sequence.isOpaque());
+        assertArrayEquals(expected, draw(sequence, 0));
+    }
+
+    @Test
+    public void interlacedPassesLandInPlace() throws Exception {
+        Random random = new Random(13);
+        for (int size = 1; size <= 10; size++) {
+            int width = size;
+            int height = 11 - size;
+            int[] pixels = randomPixels(random, width * height);
+            ByteArrayOutputStream passes = new ByteArrayOutputStream();
+            int[][] adam7 = {{0, 0, 8, 8}, {4, 0, 8, 8}, {0, 4, 4, 8}, {2, 0, 4, 4},
+                    {0, 2, 2, 4}, {1, 0, 2, 2}, {0, 1, 1, 2}};
+            for (int[] pass : adam7) {
+                int passWidth = (width - pass[0] + pass[2] - 1) / pass[2];
+                int passHeight = (height - pass[1] + pass[3] - 1) / pass[3];
+                if (passWidth <= 0 || passHeight <= 0) {
+                    continue;
+                }
+                int[] passPixels = new int[passWidth * passHeight];
+                for (int y = 0; y < passHeight; y++) {
+                    for (int x = 0; x < passWidth; x++) {
+                        passPixels[y * passWidth + x] =
+                                pixels[(pass[1] + y * pass[3]) * width + pass[0] + x * pass[2]];
+                    }
+                }
+                byte[] lines = scanlines(rgba(passPixels), passWidth * 4, passHeight, 4, random);
+                passes.write(lines, 0, lines.length);
+            }
+            Apng apng = new Apng(width, height, 8, COLOR_RGBA, true, 1);
+            apng.frame(0, 0, width, height, DISPOSE_NONE, BLEND_SOURCE, 0,
+                    compress(passes.toByteArray()));
+            ApngSequence sequence = ApngSequence.decodeByteArray(apng.toByteArray());
+            assertArrayEquals(width + " x " + height, pixels, draw(sequence, 0));
+        }
+    }
+
+    @Test
+    public void blendOverAndSource() throws Exception {
+        int[] below = {0xff204060, 0xff204060, 0xff204060, 0xff204060, 0x00000000};
+        int[] over = {0x00ffffff, 0xffa0b0c0, 0x80a0b0c0, 0x40ff0000, 0x80a0b0c0};
+        int[] source = {0x00ffffff, 0x80a0b0c0};
+        Apng apng = new Apng(5, 1, 8, COLOR_RGBA, false, 3);
+        apng.frame(0, 0, 5, 1, DISPOSE_NONE, BLEND_SOURCE, 0,
+                compress(scanlines(rgba(below), 20, 1, 4, null)));
+        apng.frame(0, 0, 5, 1, DISPOSE_NONE, BLEND_OVER, 0,
+                compress(scanlines(rgba(over), 20, 1, 4, null)));
+        apng.frame(1, 0, 2, 1, DISPOSE_NONE, BLEND_SOURCE, 0,
+                compress(scanlines(rgba(source), 8, 1, 4, null)));
+        ApngSequence sequence = ApngSequence.decodeByteArray(apng.toByteArray());
+
+        int[] canvas = new int[5];
+        sequence.drawFrame(sequence.mFrames[0], canvas);
+        assertArrayEquals(below, canvas);
+        sequence.drawFrame(sequence.mFrames[1], canvas);
+        assertArrayEquals(new int[]{below[0], over[1], blend(over[2], below[2]),
+                blend(over[3], below[3]), over[4]}, canvas);
+        int[] blended = canvas.clone();
+        sequence.drawFrame(sequence.mFrames[2], canvas);
+        // source replaces, transparent pixels included
+        assertArrayEquals(new int[]{blended[0], source[0], source[1], blended[3], blended[4]},
+                canvas);
+    }
+
+    @Test
+    public void framesTimingAndKeyFrames() throws Exception {
+        byte[] full = compress(scanlines(new byte[16 * 4], 16, 4, 4, null));
+        byte[] part = compress(scanlines(new byte[8 * 2], 8, 2, 4, null));
+        Apng apng = new Apng(4, 4, 8, COLOR_RGBA, false, 2);
+        // a default image before the first fcTL isn't part of the animation
+        apng.idat(full);
+        apng.frame(0, 0, 4, 4, DISPOSE_PREVIOUS, BLEND_SOURCE, 0x00640000 | 3, full);
+        apng.frame(1, 1, 2, 2, DISPOSE_BACKGROUND, BLEND_OVER, 7 << 16, part);
+        apng.frame(0, 0, 4, 4, DISPOSE_NONE, BLEND_OVER, 0, full);
+        apng.frame(0, 0, 4, 4, DISPOSE_NONE, BLEND_SOURCE, 0, full);
+        ApngSequence sequence = ApngSequence.decodeByteArray(apng.toByteArray());
+
+        assertEquals(4, sequence.getFrameCount());
+        assertEquals(2, sequence.getDefaultLoopCount());
+        // 100 / 3 seconds
+        assertEquals(33333, sequence.getFrameDuration(0));
+        // a denominator of 0 means hundredths
+        assertEquals(70, sequence.getFrameDuration(1));
+        // nothing to restore before the first frame
+        assertEquals(CanvasSequence.DISPOSE_BACKGROUND, sequence.mFrames[0].disposal);
+        assertTrue(sequence.isKeyFrame(0));
+        // the frame before is cleared whole
+        assertTrue(sequence.isKeyFrame(1));
+        // blends over what the cleared rectangle left
+        assertFalse(sequence.isKeyFrame(2));
+        assertTrue(sequence.isKeyFrame(3));
+
+        Apng still = new Apng(4, 4, 8, COLOR_RGBA, false, 0);
+        still.idat(full);
+        assertNull(ApngSequence.decodeByteArray(still.toByteArray()));
+    }
+
+    @Test
+    public void dataSplitAcrossChunks() throws Exception {
+        Random random = new Random(17);
+        int[] pixels = randomPixels(random, 6 * 6);
+        byte[] data = compress(scanlines(rgba(pixels), 24, 6, 4, random));
+        Apng apng = new Apng(6, 6, 8, COLOR_RGBA, false, 2);
+        apng.frame(0, 0, 6, 6, DISPOSE_NONE, BLEND_SOURCE, 0, new byte[0]);
+        apng.frame(0, 0, 6, 6, DISPOSE_NONE, BLEND_SOURCE, 0, data, 1, 7, data.length / 2);
+        ApngSequence sequence = ApngSequence.decodeByteArray(apng.toByteArray());
+        // the first frame has no data, so is dropped
+        assertEquals(1, sequence.getFrameCount());
+        assertEquals(4, sequence.mFrames[0].chunkOffsets.length);
+        assertArrayEquals(pixels, draw(sequence, 0));
+    }
+
+    @Test
+    public void truncatedDataLeavesTheRestOfTheFrame() throws Exception {
+        Random random = new Random(19);
+        int[] pixels = randomPixels(random, 8 * 8);
+        byte[] data = compress(scanlines(rgba(pixels), 32, 8, 4, random));
+        Apng apng = new Apng(8, 8, 8, COLOR_RGBA, false, 1);
+        apng.frame(0, 0, 8, 8, DISPOSE_NONE, BLEND_SOURCE, 0, data, data.length / 3);
+        byte[] file = apng.toByteArray();
+        for (int length = 0; length < file.length; length++) {
+            ApngSequence sequence = ApngSequence.decodeByteArray(Arrays.copyOf(file, length));
+            if (sequence == null) {
+                continue;
+            }
+            // rows decode in order, so a prefix is right and the rest untouched
+            int[] canvas = draw(sequence, 0);
+            int i = 0;
+            while (i < canvas.length && canvas[i] == pixels[i]) {
+                i++;
+            }
+            while (i < canvas.length && canvas[i] == BACKGROUND) {
+                i++;
+            }
+            assertEquals("cut at " + length, canvas.length, i);
+        }
+    }
+
+    private static int[] draw(ApngSequence sequence, int frameNr) {
+        int[] canvas = new int[sequence.getWidth() * sequence.getHeight()];
+        Arrays.fill(canvas, BACKGROUND);
+        sequence.drawFrame(sequence.mFrames[frameNr], canvas);
+        return canvas;
+    }
+
+    /**
+     * Source over an opaque or transparent destination, as PNG specifies it
+     */
+    private static int blend(int src, int dst) {
+        int alpha = src >>> 24;
+        if (dst >>> 24 == 0) {
+            return src;
+        }
+        int color = 0xff000000;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int channel = (((src >> shift) & 0xff) * alpha
+                    + ((dst >> shift) & 0xff) * (0xff - alpha)) / 0xff;
+            color |= channel << shift;
+        }
+        return color;
+    }
+
+    private static int[] randomPixels(Random random, int count) {
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            // some flat areas, so filters see equal neighbours too
+            pixels[i] = i > 0 && random.nextInt(3) == 0 ? pixels[i - 1] : random.nextInt();
+        }
+        return pixels;
+    }
+
+    private static byte[] rgba(int[] pixels) {
+        byte[] bytes = new byte[pixels.length * 4];
+        for (int i = 0; i < pixels.length; i++) {
+            bytes[4 * i] = (byte) (pixels[i] >> 16);
+            bytes[4 * i + 1] = (byte) (pixels[i] >> 8);
+            bytes[4 * i + 2] = (byte) pixels[i];
+            bytes[4 * i + 3] = (byte) (pixels[i] >>> 24);
+        }
+        return bytes;
+    }
+
+    /**
+     * Filter rows of raw bytes into scanlines, each led by its filter type
+     *
+     * @param filterBytes bytes per complete pixel, at least 1, as the left neighbour's offset
+     * @param random picks each row's filter, or null to cycle through them
+     */
+    private static byte[] scanlines(byte[] raw, int rowBytes, int height, int filterBytes,
+                                    Random random) {
+        byte[] out = new byte[(rowBytes + 1) * height];
+        byte[] previous = new byte[rowBytes];
+        for (int y = 0; y < height; y++) {
+            int type = random != null ? random.nextInt(5) : y % 5;
+            int line = y * (rowBytes + 1);
+            out[line] = (byte) type;
+            for (int i = 0; i < rowBytes; i++) {
+                int value = raw[y * rowBytes + i] & 0xff;
+                int left = i >= filterBytes ? raw[y * rowBytes + i - filterBytes] & 0xff : 0;
+                int up = previous[i] & 0xff;
+                int upperLeft = i >= filterBytes ? previous[i - filterBytes] & 0xff : 0;
+                int predicted;
+                switch (type) {
+                    case 1:
+                        predicted = left;
+                        break;
+                    case 2:
+                        predicted = up;
+                        break;
+                    case 3:
+                        predicted = (left + up) >> 1;
+                        break;
+                    case 4:
+                        int p = left + up - upperLeft;
+                        int pa = Math.abs(p - left);
+                        int pb = Math.abs(p - up);
+                        int pc = Math.abs(p - upperLeft);
+                        predicted = pa <= pb && pa <= pc ? left : pb <= pc ? up : upperLeft;
+                        break;
+                    default:
+                        predicted = 0;
+                        break;
+                }
+                out[line + 1 + i] = (byte) (value - predicted);
+            }
+            System.arraycopy(raw, y * rowBytes, previous, 0, rowBytes);
+        }
+        return out;
+    }
+
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            out.write(buffer, 0, count);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes an animated PNG chunk by chunk, the first frame's data as IDAT unless a default
+     * image came before it
+     */
+    private static final class Apng {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private int mSequenceNumber;
+        private boolean mHasImage;
+
+        /**
+         * @param plays the loop count of acTL, or 0 for a still PNG without one
+         */
+        Apng(int width, int height, int bitDepth, int colorType, boolean interlaced, int plays) {
+            byte[] signature = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+            mOut.write(signature, 0, signature.length);
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            int32(header, width);
+            int32(header, height);
+            header.write(bitDepth);
+            header.write(colorType);
+            header.write(0);
+            header.write(0);
+            header.write(interlaced ? 1 : 0);
+            chunk("IHDR", header.toByteArray());
+            if (plays > 0) {
+                ByteArrayOutputStream control = new ByteArrayOutputStream();
+                // the frame count isn't checked
+                int32(control, 1);
+                int32(control, plays);
+                chunk("acTL", control.toByteArray());
+            }
+        }
+
+        void palette(int[] colors) {
+            byte[] rgb = new byte[colors.length * 3];
+            byte[] alpha = new byte[colors.length];
+            for (int i = 0; i < colors.length; i++) {
+                rgb[3 * i] = (byte) (colors[i] >> 16);
+                rgb[3 * i + 1] = (byte) (colors[i] >> 8);
+                rgb[3 * i + 2] = (byte) colors[i];
+                alpha[i] = (byte) (colors[i] >>> 24);
+            }
+            chunk("PLTE", rgb);
+            chunk("tRNS", alpha);
+        }
+
+        void idat(byte[] data) {
+            chunk("IDAT", data);
+            mHasImage = true;
+        }
+
+        /**
+         * @param delay numerator in the high, denominator in the low 16 bits
+         * @param splits where the data is split into further chunks
+         */
+        void frame(int x, int y, int width, int height, int dispose, int blend, int delay,
+                   byte[] data, int... splits) {
+            ByteArrayOutputStream control = new ByteArrayOutputStream();
+            int32(control, mSequenceNumber++);
+            int32(control, width);
+            int32(control, height);
+            int32(control, x);
+            int32(control, y);
+            int32(control, delay);
+            control.write(dispose);
+            control.write(blend);
+            chunk("fcTL", control.toByteArray());
+            final boolean first = !mHasImage;
+            int start = 0;
+            for (int i = 0; i <= splits.length; i++) {
+                int end = i < splits.length ? splits[i] : data.length;
+                if (end <= start) {
+                    continue;
+                }
+                byte[] part = Arrays.copyOfRange(data, start, end);
+                if (first) {
+                    idat(part);
+                } else {
+                    ByteArrayOutputStream frameData = new ByteArrayOutputStream();
+                    int32(frameData, mSequenceNumber++);
+                    frameData.write(part, 0, part.length);
+                    chunk("fdAT", frameData.toByteArray());
+                }
+                start = end;
+            }
+        }
+
+        byte[] toByteArray() {
+            chunk("IEND", new byte[0]);
+            return mOut.toByteArray();
+        }
+
+        private void chunk(String type, byte[] data) {
+            int32(mOut, data.length);
+            byte[] typeBytes = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                typeBytes[i] = (byte) type.charAt(i);
+            }
+            mOut.write(typeBytes, 0, 4);
+            mOut.write(data, 0, data.length);
+            CRC32 crc = new CRC32();
+            crc.update(typeBytes);
+            crc.update(data);
+            int32(mOut, (int) crc.getValue());
+        }
+
+        private static void int32(ByteArrayOutputStream out, int value) {
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.humrousz.sequence;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hammers a real {@link AnimationSequenceDrawable} with start and stop from several threads
+ * while a drawing thread swaps frames in, resizes and finally destroys it, and decoding runs
+ * on a pool. Every buffer is tracked from acquire to release, so drawing or decoding a
+ * released buffer, releasing one twice, or continuing a frame from a buffer that doesn't hold
+ * the previous one fails the test.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class BufferOwnershipTest {
+    private static final int ROUNDS = 20;
+    private static final long ROUND_MS = 100;
+    private static final long RELEASE_TIMEOUT_MS = 5000;
+    /**
+     * Large enough that the frames aren't kept resident, so every frame is decoded
+     */
+    private static final int SIZE = 64;
+    private static final int FRAME_COUNT = 40;
+    private static final int[] TARGET_SIZES = {0, SIZE / 2, SIZE * 3 / 4};
+
+    private ExecutorService mDecodeExecutor;
+    private final AtomicLong mSwaps = new AtomicLong();
+
+    @Before
+    public void setUp() {
+        mDecodeExecutor = Executors.newFixedThreadPool(2);
+        AnimationSequenceDrawable.setDecodeExecutor(mDecodeExecutor);
+        AnimationSequenceDrawable.setMetricsListener(new PlaybackMetrics.Listener() {
+            @Override
+            public void onFrameDecoded(AnimationSequenceDrawable drawable, int frameNr,
+                                       long decodeNanos, long queueWaitNanos, int droppedFrames) {
+            }
+
+            @Override
+            public void onFrameSwapped(AnimationSequenceDrawable drawable, int frameNr,
+                                       long latenessMs) {
+                mSwaps.incrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        AnimationSequenceDrawable.setDecodeExecutor(null);
+        AnimationSequenceDrawable.setMetricsListener(null);
+        mDecodeExecutor.shutdownNow();
+    }
+
+    @Test
+    public void bitmapsStayOwnedUnderStress() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            Tracker tracker = new Tracker(false);
+            runRound(tracker, new TrackingProvider(tracker), round);
+        }
+    }
+
+    @Test
+    public void atlasRegionsStayOwnedUnderStress() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            Tracker tracker = new Tracker(true);
+            runRound(tracker, new TrackingAtlas(new TrackingProvider(tracker), tracker), round);
+        }
+    }
+
+    private void runRound(final Tracker tracker, AnimationSequenceDrawable.BitmapProvider provider,
+                          final int round) throws Exception {
+        final AnimationSequenceDrawable drawable =
+                new AnimationSequenceDrawable(new TrackingSequence(tracker), provider);
+        drawable.setLoopBehavior(AnimationSequenceDrawable.LOOP_INF);
+        drawable.setPrefetchDepth(1 + round % 3);
+        drawable.setBounds(0, 0, SIZE, SIZE);
+        final Canvas canvas = new TrackingCanvas(tracker);
+        final AtomicBoolean done = new AtomicBoolean();
+        mSwaps.set(0);
+        final CountDownLatch go = new CountDownLatch(1);
+        final Thread[] controllers = new Thread[3];
+        Thread ui = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(round);
+                await(go);
+                while (!done.get()) {
+                    // what the swap message would do once the frame is due
+                    drawable.run();
+                    drawable.draw(canvas);
+                    if (random.nextInt(50) == 0) {
+                        int size = TARGET_SIZES[random.nextInt(TARGET_SIZES.length)];
+                        drawable.setTargetSize(size, size);
+                    }
+                }
+                // starting a destroyed drawable throws, so destroy it once the controllers are done
+                for (Thread controller : controllers) {
+                    join(controller);
+                }
+                drawable.destroy();
+            }
+        });
+        for (int i = 0; i < controllers.length; i++) {
+            final long seed = round * 31 + i;
+            controllers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    await(go);
+                    while (!done.get()) {
+                        if (random.nextInt(4) == 0) {
+                            drawable.stop();
+                        } else {
+                            drawable.start();
+                        }
+                        // mostly let runs last long enough to swap a few frames
+                        if (random.nextInt(4) == 0) {
+                            Thread.yield();
+                        } else {
+                            sleep(1);
+                        }
+                    }
+                }
+            });
+        }
+        ui.start();
+        for (Thread controller : controllers) {
+            controller.start();
+        }
+        go.countDown();
+        Thread.sleep(ROUND_MS);
+        done.set(true);
+        ui.join();
+        // the decoder releases the buffer it was filling once it's done
+        final long deadline = System.currentTimeMillis() + RELEASE_TIMEOUT_MS;
+        while (tracker.getLiveCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertNull(tracker.failure.get(), tracker.failure.get());
+        assertEquals("buffers left unreleased", 0, tracker.getLiveCount());
+        assertTrue("no frame was swapped", mSwaps.get() > 0);
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Which bitmaps, or regions of atlas pages, are handed out, and which frame each bitmap
+     * holds
+     */
+    private static class Tracker {
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final boolean atlas;
+        private final Map<Bitmap, Integer> mLiveBitmaps = new IdentityHashMap<Bitmap, Integer>();
+        private final Map<Bitmap, Map<Long, Boolean>> mLiveRegions =
+                new IdentityHashMap<Bitmap, Map<Long, Boolean>>();
+        /**
+         * Frame, width and height last rendered into each bitmap, see {@link #pack}
+         */
+        private final Map<Bitmap, Long> mContents = new IdentityHashMap<Bitmap, Long>();
+
+        Tracker(boolean atlas) {
+            this.atlas = atlas;
+        }
+
+        synchronized void acquired(Bitmap bitmap) {
+            mLiveBitmaps.put(bitmap, 1);
+        }
+
+        synchronized void released(Bitmap bitmap) {
+            check(mLiveBitmaps.remove(bitmap) != null, "bitmap released twice");
+            // a pooled bitmap comes back with anything in it
+            mContents.remove(bitmap);
+        }
+
+        synchronized void acquiredRegion(Bitmap page, Rect region) {
+            Map<Long, Boolean> regions = mLiveRegions.get(page);
+            if (regions == null) {
+                regions = new HashMap<Long, Boolean>();
+                mLiveRegions.put(page, regions);
+            }
+            check(regions.put(regionKey(region), Boolean.TRUE) == null, "region handed out twice");
+        }
+
+        synchronized void releasedRegion(Bitmap page, Rect region) {
+            Map<Long, Boolean> regions = mLiveRegions.get(page);
+            check(regions != null && regions.remove(regionKey(region)) != null,
+                    "region released twice");
+        }
+
+        synchronized void checkOwned(Bitmap bitmap, Rect region, String use) {
+            if (atlas) {
+                Map<Long, Boolean> regions = mLiveRegions.get(bitmap);
+                check(regions != null && regions.containsKey(regionKey(region)),
+                        use + " a released region");
+            } else {
+                check(mLiveBitmaps.containsKey(bitmap), use + " a released bitmap");
+            }
+        }
+
+        /**
+         * A frame is about to be rendered into output, continuing from previousFrameNr
+         */
+        synchronized void rendering(Bitmap output, int frameNr, int previousFrameNr,
+                                    int width, int height) {
+            if (atlas) {
+                // rendered into a scratch bitmap, which lockRegion checks for
+                return;
+            }
+            check(mLiveBitmaps.containsKey(output), "decoding into a released bitmap");
+            Long held = mContents.get(output);
+            if (previousFrameNr >= 0) {
+                check(held != null && held == pack(previousFrameNr, width, height),
+                        "frame " + frameNr + " continued from " + previousFrameNr
+                                + " at " + width + "x" + height + " but the bitmap holds "
+                                + (held == null ? "nothing" : unpack(held)));
+            }
+            mContents.put(output, pack(frameNr, width, height));
+        }
+
+        synchronized int getLiveCount() {
+            return mLiveBitmaps.size();
+        }
+
+        void check(boolean condition, String message) {
+            if (!condition) {
+                failure.compareAndSet(null, message);
+            }
+        }
+
+        private static long regionKey(Rect region) {
+            return (long) region.left << 32 | region.top;
+        }
+
+        private static long pack(int frameNr, int width, int height) {
+            return (long) frameNr << 32 | width << 16 | height;
+        }
+
+        private static String unpack(long contents) {
+            return "frame " + (contents >> 32) + " at " + ((contents >> 16) & 0xffff)
+                    + "x" + (contents & 0xffff);
+        }
+    }
+
+    private static class TrackingProvider implements AnimationSequenceDrawable.ConfigurableBitmapProvider {
+        private final Tracker mTracker;
+
+        TrackingProvider(Tracker tracker) {
+            mTracker = tracker;
+        }
+
+        @Override
+        public Bitmap acquireBitmap(int minWidth, int minHeight) {
+            return acquireBitmap(minWidth, minHeight, Bitmap.Config.ARGB_8888);
+        }
+
+        @Override
+        public Bitmap acquireBitmap(int minWidth, int minHeight, Bitmap.Config config) {
+            Bitmap bitmap = Bitmap.createBitmap(minWidth, minHeight, config);
+            mTracker.acquired(bitmap);
+            return bitmap;
+        }
+
+        @Override
+        public void releaseBitmap(Bitmap bitmap) {
+            mTracker.released(bitmap);
+        }
+    }
+
+    /**
+     * Tracks regions on top of the pages its provider tracks. The atlas itself ignores a
+     * region released twice, so that's caught here.
+     */
+    private static class TrackingAtlas extends FrameAtlas {
+        private final Tracker mTracker;
+
+        TrackingAtlas(AnimationSequenceDrawable.ConfigurableBitmapProvider fallback, Tracker tracker) {
+            super(4 * SIZE, fallback);
+            mTracker = tracker;
+        }
+
+        @Override
+        Bitmap acquireRegion(int width, int height, Bitmap.Config config, Rect region) {
+            Bitmap page = super.acquireRegion(width, height, config, region);
+            mTracker.acquiredRegion(page, region);
+            return page;
+        }
+
+        @Override
+        void releaseRegion(Bitmap bitmap, Rect region) {
+            mTracker.releasedRegion(bitmap, region);
+            super.releaseRegion(bitmap, region);
+        }
+
+        @Override
+        Bitmap lockRegion(Bitmap page, Rect region, boolean keepContents) {
+            mTracker.checkOwned(page, region, "decoding into");
+            return super.lockRegion(page, region, keepContents);
+        }
+    }
+
+    private static class TrackingCanvas extends Canvas {
+        private final Tracker mTracker;
+
+        TrackingCanvas(Tracker tracker) {
+            mTracker = tracker;
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+            mTracker.checkOwned(bitmap, src, "drawing");
+        }
+    }
+
+    /**
+     * Renders nothing, but tells the tracker what each frame is rendered into and from
+     */
+    private static class TrackingSequence extends BaseAnimationSequence {
+        private final Tracker mTracker;
+
+        TrackingSequence(Tracker tracker) {
+            super(SIZE, SIZE, FRAME_COUNT, 0);
+            mTracker = tracker;
+        }
+
+        @Override
+        public long getFrame(int frameNr, Bitmap output, int previousFrameNr) {
+            return getFrame(frameNr, output, previousFrameNr, getWidth(), getHeight());
+        }
+
+        @Override
+        public long getFrame(int frameNr, Bitmap output, int previousFrameNr, int width, int height) {
+            mTracker.rendering(output, frameNr, previousFrameNr, width, height);
+            Thread.yield();
+            return 20;
+        }
+
+        @Override
+        public boolean supportsScaling() {
+            return true;
+        }
+
+        @Override
+        public boolean isOpaque() {
+            return false;
+        }
+    }
+}
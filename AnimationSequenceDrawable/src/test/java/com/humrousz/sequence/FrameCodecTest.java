@@ -0,0 +1,123 @@
+package com.humrousz.sequence;
+
+import org.junit.Test;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips pixels through {@link FrameCodec} and checks the encoding stays within
+ * {@link FrameCodec#maxEncodedLength(int)}.
+ */
+public class FrameCodecTest {
+    @Test
+    public void runsAreEncodedAsPairs() throws Exception {
+        int[] pixels = new int[1000];
+        Arrays.fill(pixels, 0, 600, 0xff00ff00);
+        Arrays.fill(pixels, 600, 1000, 0);
+        assertArrayEquals(new int[]{-600, 0xff00ff00, -400, 0}, encode(pixels));
+        assertRoundTrips(pixels);
+    }
+
+    @Test
+    public void shortRunsStayLiterals() throws Exception {
+        int[] pixels = {1, 2, 2, 3, 3, 4, 5, 5, 5, 6};
+        assertArrayEquals(new int[]{6, 1, 2, 2, 3, 3, 4, -3, 5, 1, 6}, encode(pixels));
+        assertRoundTrips(pixels);
+    }
+
+    @Test
+    public void literalsCostOneCount() throws Exception {
+        int[] pixels = new int[257];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = i * 0x010101;
+        }
+        int[] encoded = encode(pixels);
+        assertEquals(pixels.length + 1, encoded.length);
+        assertEquals(pixels.length, encoded[0]);
+        assertRoundTrips(pixels);
+    }
+
+    @Test
+    public void worstCaseFitsTheBound() throws Exception {
+        // runs of exactly the minimum length between single literals cost the most
+        int[] pixels = new int[4 * 100 + 1];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = i % 4 == 0 ? -1 : i / 4;
+        }
+        assertRoundTrips(pixels);
+        assertRoundTrips(new int[]{7});
+        assertRoundTrips(new int[]{7, 7});
+        assertRoundTrips(new int[]{7, 7, 7});
+        assertRoundTrips(new int[0]);
+    }
+
+    @Test
+    public void randomFramesRoundTrip() throws Exception {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            int[] pixels = new int[random.nextInt(2000)];
+            int i = 0;
+            while (i < pixels.length) {
+                // runs of all lengths, from a small palette so neighbours often match
+                int length = 1 + random.nextInt(random.nextBoolean() ? 4 : 64);
+                int end = Math.min(pixels.length, i + length);
+                int color = random.nextInt(3) == 0 ? random.nextInt() : random.nextInt(4);
+                while (i < end) {
+                    pixels[i++] = color;
+                }
+            }
+            assertRoundTrips(pixels);
+        }
+    }
+
+    @Test
+    public void buffersAreAdvanced() throws Exception {
+        int[] pixels = {9, 1, 1, 1, 1, 2, 9};
+        IntBuffer src = IntBuffer.wrap(pixels, 1, 5);
+        IntBuffer encoded = IntBuffer.allocate(FrameCodec.maxEncodedLength(5) + 1);
+        encoded.put(-1);
+        FrameCodec.encode(src, encoded);
+        assertEquals(6, src.position());
+        assertEquals(5, encoded.position());
+        encoded.flip();
+        encoded.get();
+
+        int[] decoded = new int[7];
+        IntBuffer dst = IntBuffer.wrap(decoded, 1, 5);
+        FrameCodec.decode(encoded, dst);
+        assertFalse(encoded.hasRemaining());
+        assertFalse(dst.hasRemaining());
+        assertArrayEquals(new int[]{0, 1, 1, 1, 1, 2, 0}, decoded);
+    }
+
+    @Test
+    public void decodeStopsWhenFull() throws Exception {
+        IntBuffer encoded = IntBuffer.wrap(new int[]{-4, 3, 2, 5, 6});
+        int[] decoded = new int[4];
+        FrameCodec.decode(encoded, IntBuffer.wrap(decoded));
+        assertArrayEquals(new int[]{3, 3, 3, 3}, decoded);
+        assertEquals(2, encoded.position());
+    }
+
+    private static int[] encode(int[] pixels) {
+        IntBuffer encoded = IntBuffer.allocate(FrameCodec.maxEncodedLength(pixels.length));
+        FrameCodec.encode(IntBuffer.wrap(pixels), encoded);
+        int[] result = new int[encoded.position()];
+        encoded.flip();
+        encoded.get(result);
+        return result;
+    }
+
+    private static void assertRoundTrips(int[] pixels) {
+        int[] encoded = encode(pixels);
+        assertTrue(encoded.length + " ints for " + pixels.length + " pixels",
+                encoded.length <= FrameCodec.maxEncodedLength(pixels.length));
+        int[] decoded = new int[pixels.length];
+        FrameCodec.decode(IntBuffer.wrap(encoded), IntBuffer.wrap(decoded));
+        assertArrayEquals(pixels, decoded);
+    }
+}
@@ -0,0 +1,130 @@
+package com.humrousz.sequence;
+
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the limits {@link FrameRateLimiter} imposes, and that adaptive mode steps through
+ * {@link FrameRateLimiter#ADAPTIVE_FPS} as the reported decoding load rises and falls.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class FrameRateLimiterTest {
+    /**
+     * As long as the limiter measures utilization over
+     */
+    private static final long WINDOW_MS = 1000;
+    /**
+     * Decoding time reported per window for a busy thread, several windows' worth so a late
+     * clock still measures it as busy
+     */
+    private static final long BUSY_NANOS = 10 * WINDOW_MS * 1000000L;
+
+    private final FrameRateLimiter mLimiter = FrameRateLimiter.getDefault();
+
+    @After
+    public void tearDown() {
+        mLimiter.setAdaptive(false);
+        mLimiter.setPowerSaveMode(false);
+        mLimiter.setMaxFps(0);
+        mLimiter.setDecodeThreadCount(1);
+    }
+
+    @Test
+    public void minFpsTreatsZeroAsNoLimit() throws Exception {
+        assertEquals(0, FrameRateLimiter.minFps(0, 0));
+        assertEquals(15, FrameRateLimiter.minFps(0, 15));
+        assertEquals(15, FrameRateLimiter.minFps(15, 0));
+        assertEquals(15, FrameRateLimiter.minFps(30, 15));
+        assertEquals(15, FrameRateLimiter.minFps(15, 30));
+    }
+
+    @Test
+    public void maxFpsSetsTheInterval() throws Exception {
+        assertEquals(0, mLimiter.getEffectiveFps());
+        assertEquals(0, mLimiter.getMinFrameIntervalMs());
+        mLimiter.setMaxFps(24);
+        assertEquals(41, mLimiter.getMinFrameIntervalMs());
+        assertEquals(24, mLimiter.getEffectiveFps());
+        try {
+            mLimiter.setMaxFps(-1);
+            fail("negative limit accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(24, mLimiter.getMaxFps());
+        // battery saver only counts in adaptive mode
+        mLimiter.setPowerSaveMode(true);
+        assertEquals(24, mLimiter.getEffectiveFps());
+        mLimiter.setAdaptive(true);
+        assertEquals(FrameRateLimiter.POWER_SAVE_FPS, mLimiter.getEffectiveFps());
+    }
+
+    @Test
+    public void adaptiveFollowsLoad() throws Exception {
+        mLimiter.setAdaptive(true);
+        mLimiter.setDecodeThreadCount(1);
+        for (int level = 1; level < FrameRateLimiter.ADAPTIVE_FPS.length; level++) {
+            reportWindow(BUSY_NANOS);
+            assertEquals(FrameRateLimiter.ADAPTIVE_FPS[level], mLimiter.getEffectiveFps());
+        }
+        // already at the lowest rate
+        reportWindow(BUSY_NANOS);
+        assertTrue(mLimiter.getUtilization() > FrameRateLimiter.HIGH_UTILIZATION);
+        assertEquals(FrameRateLimiter.ADAPTIVE_FPS[FrameRateLimiter.ADAPTIVE_FPS.length - 1],
+                mLimiter.getEffectiveFps());
+
+        mLimiter.setMaxFps(12);
+        reportWindow(0);
+        // the adaptive limit is back up at 15, above the maximum
+        assertEquals(12, mLimiter.getEffectiveFps());
+        for (int level = FrameRateLimiter.ADAPTIVE_FPS.length - 3; level >= 0; level--) {
+            reportWindow(0);
+            assertEquals(FrameRateLimiter.minFps(12, FrameRateLimiter.ADAPTIVE_FPS[level]),
+                    mLimiter.getEffectiveFps());
+        }
+        mLimiter.setMaxFps(0);
+        assertEquals(0, mLimiter.getEffectiveFps());
+
+        reportWindow(BUSY_NANOS);
+        mLimiter.setPowerSaveMode(true);
+        assertEquals(FrameRateLimiter.POWER_SAVE_FPS, mLimiter.getEffectiveFps());
+        // leaving adaptive mode drops the load based limit along with battery saver's
+        mLimiter.setAdaptive(false);
+        assertEquals(0, mLimiter.getEffectiveFps());
+    }
+
+    @Test
+    public void busierThreadsShareTheLoad() throws Exception {
+        mLimiter.setAdaptive(true);
+        mLimiter.setDecodeThreadCount(4);
+        // a quarter of a window per thread, under the high mark
+        reportWindow(WINDOW_MS * 1000000L);
+        assertTrue(mLimiter.getUtilization() < FrameRateLimiter.HIGH_UTILIZATION);
+        assertEquals(0, mLimiter.getEffectiveFps());
+    }
+
+    @Test
+    public void recordsNothingUnlessAdaptive() throws Exception {
+        float utilization = mLimiter.getUtilization();
+        reportWindow(BUSY_NANOS);
+        assertEquals(0, mLimiter.getEffectiveFps());
+        assertEquals(utilization, mLimiter.getUtilization(), 0f);
+    }
+
+    /**
+     * Start a window, let it pass and report decodeNanos of decoding in it
+     */
+    private void reportWindow(long decodeNanos) {
+        mLimiter.recordDecode(0);
+        SystemClock.sleep(WINDOW_MS);
+        mLimiter.recordDecode(decodeNanos);
+    }
+}
@@ -0,0 +1,375 @@
+package com.humrousz.sequence;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decodes GIFs written by a small LZW encoder here, drawing frames straight onto an int canvas
+ * with {@link GifSequence#drawFrame(GifSequence.GifFrame, int[])}.
+ */
+public class GifSequenceTest {
+    private static final int BACKGROUND = 0x12345678;
+
+    @Test
+    public void lzwDecodesEveryCodeSize() throws Exception {
+        Random random = new Random(7);
+        for (int colorBits = 1; colorBits <= 8; colorBits++) {
+            int[] palette = palette(colorBits);
+            // large enough for the table to fill up and be cleared
+            int[] indices = image(random, 160, 160, palette.length);
+            Gif gif = new Gif(160, 160, palette);
+            gif.image(0, 0, 160, 160, indices, false);
+            GifSequence sequence = GifSequence.decodeByteArray(gif.toByteArray());
+            assertNotNull(sequence);
+            assertArrayEquals("colors " + palette.length, colors(indices, palette),
+                    draw(sequence, 0));
+        }
+    }
+
+    @Test
+    public void repeatedStringsUseTheCodeBeingDefined() throws Exception {
+        // a single color makes every code after the first refer to the entry it defines
+        int[] palette = palette(2);
+        int[] indices = new int[37 * 11];
+        Arrays.fill(indices, 3);
+        Gif gif = new Gif(37, 11, palette);
+        gif.image(0, 0, 37, 11, indices, false);
+        GifSequence sequence = GifSequence.decodeByteArray(gif.toByteArray());
+        assertArrayEquals(colors(indices, palette), draw(sequence, 0));
+    }
+
+    @Test
+    public void interlacedRowsLandInPlace() throws Exception {
+        Random random = new Random(11);
+        int[] palette = palette(4);
+        for (int height = 1; height <= 17; height++) {
+            int[] indices = image(random, 5, height, palette.length);
+            Gif gif = new Gif(5, height, palette);
+            gif.image(0, 0, 5, height, indices, true);
+            GifSequence sequence = GifSequence.decodeByteArray(gif.toByteArray());
+            assertTrue(sequence.mFrames[0].interlaced);
+            assertArrayEquals("height " + height, colors(indices, palette), draw(sequence, 0));
+        }
+    }
+
+    @Test
+    public void transparentPixelsAndClipping() throws Exception {
+        int[] palette = palette(2);
+        // 6 x 3 at (4, 2) on a 8 x 4 canvas: the right two columns and the last row are cut
+        int[] indices = new int[6 * 3];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i % 4;
+        }
+        Gif gif = new Gif(8, 4, palette);
+        gif.control(0, 0, 2);
+        gif.image(4, 2, 6, 3, indices, false);
+        GifSequence sequence = GifSequence.decodeByteArray(gif.toByteArray());
+        assertFalse(sequence.isOpaque());
+        int[] canvas = draw(sequence, 0);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 8; x++) {
+                int expected = BACKGROUND;
+                if (x >= 4 && y >= 2) {
+                    int index = indices[(y - 2) * 6 + x - 4];
+                    expected = index == 2 ? BACKGROUND : palette[index];
+                }
+                assertEquals(x + "," + y, expected, canvas[y * 8 + x]);
+            }
+        }
+    }
+
+    @Test
+    public void disposalTimingAndLoops() throws Exception {
+        int[] palette = palette(1);
+        int[] full = new int[8 * 8];
+        int[] part = new int[4 * 4];
+        Gif gif = new Gif(8, 8, palette);
+        gif.loop(2);
+        gif.control(2, 5, -1);
+        gif.image(0, 0, 8, 8, full, false);
+        // the previous frame is cleared whole
+        gif.control(0, 1, -1);
+        gif.image(2, 2, 4, 4, part, false);
+        gif.control(3, 0, -1);
+        gif.image(2, 2, 4, 4, part, false);
+        // covers the canvas, but leaves what's below its transparent pixels
+        gif.control(0, 0, 1);
+        gif.image(0, 0, 8, 8, full, false);
+        gif.image(0, 0, 8, 8, full, false);
+        GifSequence sequence = GifSequence.decodeByteArray(gif.toByteArray());
+
+        assertEquals(5, sequence.getFrameCount());
+        assertEquals(3, sequence.getDefaultLoopCount());
+        assertEquals(50, sequence.getFrameDuration(0));
+        assertEquals(10, sequence.getFrameDuration(1));
+        assertEquals(CanvasSequence.DISPOSE_BACKGROUND, sequence.mFrames[0].disposal);
+        assertEquals(CanvasSequence.DISPOSE_NONE, sequence.mFrames[1].disposal);
+        assertEquals(CanvasSequence.DISPOSE_PREVIOUS, sequence.mFrames[2].disposal);
+        assertTrue(sequence.isKeyFrame(0));
+        assertTrue(sequence.isKeyFrame(1));
+        assertFalse(sequence.isKeyFrame(2));
+        assertFalse(sequence.isKeyFrame(3));
+        assertTrue(sequence.isKeyFrame(4));
+
+        Gif once = new Gif(8, 8, palette);
+        once.image(0, 0, 8, 8, full, false);
+        assertEquals(1, GifSequence.decodeByteArray(once.toByteArray()).getDefaultLoopCount());
+        Gif forever = new Gif(8, 8, palette);
+        forever.loop(0);
+        forever.image(0, 0, 8, 8, full, false);
+        assertEquals(0, GifSequence.decodeByteArray(forever.toByteArray()).getDefaultLoopCount());
+    }
+
+    @Test
+    public void truncatedDataLeavesTheRestOfTheFrame() throws Exception {
+        Random random = new Random(3);
+        int[] palette = palette(4);
+        int[] indices = image(random, 20, 20, palette.length);
+        int[] localPalette = palette(4);
+        for (int i = 0; i < localPalette.length; i++) {
+            localPalette[i] ^= 0xffffff;
+        }
+        Gif gif = new Gif(20, 20, palette);
+        gif.image(0, 0, 20, 20, indices, false, localPalette);
+        byte[] data = gif.toByteArray();
+        int[] expected = colors(indices, localPalette);
+        for (int length = 0; length < data.length; length++) {
+            GifSequence sequence = GifSequence.decodeByteArray(Arrays.copyOf(data, length));
+            if (sequence == null) {
+                continue;
+            }
+            // pixels decode in order, so a prefix is right and the rest untouched
+            int[] canvas = draw(sequence, 0);
+            int i = 0;
+            while (i < canvas.length && canvas[i] == expected[i]) {
+                i++;
+            }
+            while (i < canvas.length && canvas[i] == BACKGROUND) {
+                i++;
+            }
+            assertEquals("cut at " + length, canvas.length, i);
+        }
+    }
+
+    private static int[] draw(GifSequence sequence, int frameNr) {
+        int[] canvas = new int[sequence.getWidth() * sequence.getHeight()];
+        Arrays.fill(canvas, BACKGROUND);
+        sequence.drawFrame(sequence.mFrames[frameNr], canvas);
+        return canvas;
+    }
+
+    private static int[] palette(int colorBits) {
+        int[] palette = new int[1 << colorBits];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = 0xff000000 | (i * 0x9e3779b1 & 0xffffff);
+        }
+        return palette;
+    }
+
+    /**
+     * Runs of random length, so strings repeat and the table fills
+     */
+    private static int[] image(Random random, int width, int height, int colorCount) {
+        int[] indices = new int[width * height];
+        int i = 0;
+        while (i < indices.length) {
+            int end = Math.min(indices.length, i + 1 + random.nextInt(6));
+            int index = random.nextInt(colorCount);
+            while (i < end) {
+                indices[i++] = index;
+            }
+        }
+        return indices;
+    }
+
+    private static int[] colors(int[] indices, int[] palette) {
+        int[] colors = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            colors[i] = palette[indices[i]];
+        }
+        return colors;
+    }
+
+    /**
+     * Writes a GIF89a with a global color table, block by block
+     */
+    private static final class Gif {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private final int mColorBits;
+
+        Gif(int width, int height, int[] palette) {
+            mColorBits = Integer.numberOfTrailingZeros(palette.length);
+            ascii("GIF89a");
+            short16(width);
+            short16(height);
+            mOut.write(0x80 | (mColorBits - 1));
+            mOut.write(0);
+            mOut.write(0);
+            colorTable(palette);
+        }
+
+        void loop(int count) {
+            mOut.write(0x21);
+            mOut.write(0xff);
+            mOut.write(11);
+            ascii("NETSCAPE2.0");
+            mOut.write(3);
+            mOut.write(1);
+            short16(count);
+            mOut.write(0);
+        }
+
+        /**
+         * @param transparentIndex the transparent color, or -1 for none
+         */
+        void control(int disposal, int delay, int transparentIndex) {
+            mOut.write(0x21);
+            mOut.write(0xf9);
+            mOut.write(4);
+            mOut.write(disposal << 2 | (transparentIndex >= 0 ? 1 : 0));
+            short16(delay);
+            mOut.write(Math.max(0, transparentIndex));
+            mOut.write(0);
+        }
+
+        /**
+         * @param indices the frame's rows top to bottom, written in interlaced order if asked
+         */
+        void image(int x, int y, int width, int height, int[] indices, boolean interlaced) {
+            image(x, y, width, height, indices, interlaced, null);
+        }
+
+        /**
+         * @param localPalette colors of this frame only, or null for the global ones
+         */
+        void image(int x, int y, int width, int height, int[] indices, boolean interlaced,
+                   int[] localPalette) {
+            mOut.write(0x2c);
+            short16(x);
+            short16(y);
+            short16(width);
+            short16(height);
+            int fields = interlaced ? 0x40 : 0;
+            if (localPalette != null) {
+                fields |= 0x80 | (Integer.numberOfTrailingZeros(localPalette.length) - 1);
+            }
+            mOut.write(fields);
+            if (localPalette != null) {
+                colorTable(localPalette);
+            }
+            int[] ordered = indices;
+            if (interlaced) {
+                ordered = new int[indices.length];
+                int row = 0;
+                int[][] passes = {{0, 8}, {4, 8}, {2, 4}, {1, 2}};
+                for (int[] pass : passes) {
+                    for (int line = pass[0]; line < height; line += pass[1]) {
+                        System.arraycopy(indices, line * width, ordered, row++ * width, width);
+                    }
+                }
+            }
+            // GIF has no 1 bit codes
+            int minCodeSize = Math.max(2, mColorBits);
+            mOut.write(minCodeSize);
+            byte[] data = lzw(ordered, minCodeSize);
+            for (int pos = 0; pos < data.length; pos += 255) {
+                int size = Math.min(255, data.length - pos);
+                mOut.write(size);
+                mOut.write(data, pos, size);
+            }
+            mOut.write(0);
+        }
+
+        byte[] toByteArray() {
+            mOut.write(0x3b);
+            return mOut.toByteArray();
+        }
+
+        private void colorTable(int[] palette) {
+            for (int color : palette) {
+                mOut.write(color >> 16);
+                mOut.write(color >> 8);
+                mOut.write(color);
+            }
+        }
+
+        private void short16(int value) {
+            mOut.write(value);
+            mOut.write(value >> 8);
+        }
+
+        private void ascii(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                mOut.write(s.charAt(i));
+            }
+        }
+    }
+
+    /**
+     * Compress indices as GIF does: variable width codes from minCodeSize + 1 bits up to 12,
+     * least significant bit first, with a clear code first and whenever the table is full
+     */
+    private static byte[] lzw(int[] indices, int minCodeSize) {
+        final int clear = 1 << minCodeSize;
+        BitWriter out = new BitWriter();
+        Map<Integer, Integer> table = new HashMap<Integer, Integer>();
+        int codeSize = minCodeSize + 1;
+        int next = clear + 2;
+        out.write(clear, codeSize);
+        int prefix = indices[0];
+        for (int i = 1; i < indices.length; i++) {
+            int key = prefix << 8 | indices[i];
+            Integer code = table.get(key);
+            if (code != null) {
+                prefix = code;
+                continue;
+            }
+            out.write(prefix, codeSize);
+            if (next < 4096) {
+                table.put(key, next++);
+                if (next > 1 << codeSize && codeSize < 12) {
+                    codeSize++;
+                }
+            } else {
+                out.write(clear, codeSize);
+                table.clear();
+                codeSize = minCodeSize + 1;
+                next = clear + 2;
+            }
+            prefix = indices[i];
+        }
+        out.write(prefix, codeSize);
+        out.write(clear + 1, codeSize);
+        return out.toByteArray();
+    }
+
+    private static final class BitWriter {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private int mBits;
+        private int mCount;
+
+        void write(int code, int size) {
+            mBits |= code << mCount;
+            mCount += size;
+            while (mCount >= 8) {
+                mOut.write(mBits);
+                mBits >>>= 8;
+                mCount -= 8;
+            }
+        }
+
+        byte[] toByteArray() {
+            if (mCount > 0) {
+                mOut.write(mBits);
+            }
+            return mOut.toByteArray();
+        }
+    }
+}
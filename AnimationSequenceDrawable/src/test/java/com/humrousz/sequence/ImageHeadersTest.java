@@ -0,0 +1,169 @@
+package com.humrousz.sequence;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link ImageHeaders#sniffFormat(java.io.InputStream)} on hand made headers, including
+ * cut off ones and chunks larger than it may read past.
+ */
+public class ImageHeadersTest {
+    private static final byte[] PNG_SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    @Test
+    public void gif() throws Exception {
+        assertEquals(ImageHeaders.FORMAT_GIF, sniff(bytes("GIF89a", new byte[7])));
+        assertEquals(ImageHeaders.FORMAT_GIF, sniff(bytes("GIF87a", new byte[7])));
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN, sniff(bytes("GIF88a", new byte[7])));
+    }
+
+    @Test
+    public void webp() throws Exception {
+        assertEquals(ImageHeaders.FORMAT_ANIMATED_WEBP,
+                sniff(webp(webpChunk("VP8X", 10), webpChunk("ANIM", 6), webpChunk("ANMF", 16))));
+        // chunks before ANIM are skipped, odd sizes with their padding byte
+        assertEquals(ImageHeaders.FORMAT_ANIMATED_WEBP,
+                sniff(webp(webpChunk("VP8X", 10), webpChunk("ICCP", 7), webpChunk("ANIM", 6))));
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN,
+                sniff(webp(webpChunk("VP8X", 10), webpChunk("VP8 ", 20))));
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN, sniff(webp(webpChunk("VP8L", 20))));
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN,
+                sniff(webp(webpChunk("VP8X", 10), webpChunk("ALPH", 4), webpChunk("ANIM", 6))));
+    }
+
+    @Test
+    public void png() throws Exception {
+        assertEquals(ImageHeaders.FORMAT_APNG,
+                sniff(png(pngChunk("IHDR", 13), pngChunk("acTL", 8), pngChunk("IDAT", 10))));
+        assertEquals(ImageHeaders.FORMAT_APNG,
+                sniff(png(pngChunk("IHDR", 13), pngChunk("tEXt", 30), pngChunk("acTL", 8))));
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN,
+                sniff(png(pngChunk("IHDR", 13), pngChunk("IDAT", 10), pngChunk("acTL", 8))));
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN,
+                sniff(png(pngChunk("IHDR", 13), pngChunk("IEND", 0))));
+    }
+
+    @Test
+    public void otherFormats() throws Exception {
+        byte[] jpeg = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 16,
+                'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1};
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN, sniff(jpeg));
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN, sniff(new byte[64]));
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN, sniff(bytes("RIFF", new byte[4], "WAVEfmt ")));
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN, sniff(new byte[0]));
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN, sniff(bytes("GIF89")));
+        byte[] webp = webp(webpChunk("VP8X", 10), webpChunk("ANIM", 6));
+        for (int length = 0; length < 12 + 18 + 8; length++) {
+            assertEquals("webp cut at " + length, ImageHeaders.FORMAT_UNKNOWN,
+                    sniff(copyOf(webp, length)));
+        }
+        byte[] png = png(pngChunk("IHDR", 13), pngChunk("acTL", 8));
+        for (int length = 0; length < 8 + 25 + 8; length++) {
+            assertEquals("png cut at " + length, ImageHeaders.FORMAT_UNKNOWN,
+                    sniff(copyOf(png, length)));
+        }
+    }
+
+    @Test
+    public void oversizedChunksStopTheSniff() throws Exception {
+        int tooLarge = ImageHeaders.MAX_SNIFF_BYTES;
+        // an animation declared only past the limit isn't seen, nor is the skipped data read
+        Probe png = new Probe(png(pngChunk("IHDR", 13), pngChunk("zTXt", tooLarge),
+                pngChunk("acTL", 8)));
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN, ImageHeaders.sniffFormat(png));
+        assertTrue(png.consumed() <= ImageHeaders.MAX_SNIFF_BYTES);
+        Probe webp = new Probe(webp(webpChunk("VP8X", 10), webpChunk("ICCP", tooLarge),
+                webpChunk("ANIM", 6)));
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN, ImageHeaders.sniffFormat(webp));
+        assertTrue(webp.consumed() <= ImageHeaders.MAX_SNIFF_BYTES);
+
+        // sizes that don't fit an int, with nothing after them
+        byte[] hugePng = png(pngChunk("IHDR", 13));
+        hugePng = bytes(hugePng, new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xf0},
+                "zTXt");
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN, sniff(hugePng));
+        byte[] hugeWebp = bytes(webp(webpChunk("VP8X", 10)), "ICCP",
+                new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff});
+        assertEquals(ImageHeaders.FORMAT_UNKNOWN, sniff(hugeWebp));
+    }
+
+    private static int sniff(byte[] data) throws IOException {
+        return ImageHeaders.sniffFormat(new ByteArrayInputStream(data));
+    }
+
+    private static byte[] webp(byte[]... chunks) {
+        byte[] body = bytes((Object[]) chunks);
+        int size = 4 + body.length;
+        return bytes("RIFF", new byte[]{(byte) size, (byte) (size >> 8), (byte) (size >> 16),
+                (byte) (size >> 24)}, "WEBP", body);
+    }
+
+    /**
+     * A chunk of size zeros, little endian size and padded to an even length
+     */
+    private static byte[] webpChunk(String type, int size) {
+        return bytes(type, new byte[]{(byte) size, (byte) (size >> 8), (byte) (size >> 16),
+                (byte) (size >> 24)}, new byte[size + (size & 1)]);
+    }
+
+    private static byte[] png(byte[]... chunks) {
+        return bytes(PNG_SIGNATURE, bytes((Object[]) chunks));
+    }
+
+    /**
+     * A chunk of size zeros, big endian size, then a CRC the sniffer doesn't check
+     */
+    private static byte[] pngChunk(String type, int size) {
+        return bytes(new byte[]{(byte) (size >> 24), (byte) (size >> 16), (byte) (size >> 8),
+                (byte) size}, type, new byte[size + 4]);
+    }
+
+    /**
+     * Concatenate byte arrays and ASCII strings
+     */
+    private static byte[] bytes(Object... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Object part : parts) {
+            byte[] data = part instanceof String ? ascii((String) part) : (byte[]) part;
+            out.write(data, 0, data.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] data = new byte[s.length()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) s.charAt(i);
+        }
+        return data;
+    }
+
+    private static byte[] copyOf(byte[] data, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * Tells how far the sniffer read or skipped
+     */
+    private static final class Probe extends ByteArrayInputStream {
+        Probe(byte[] data) {
+            super(data);
+        }
+
+        int consumed() {
+            return pos;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.humrousz.sequence;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the transitions of the swap state {@link AnimationSequenceDrawable} hands frames
+ * between its decoder and draw() with. {@link BufferOwnershipTest} runs the drawable itself
+ * under contention.
+ */
+public class PlaybackStateTest {
+    @Test
+    public void transitionsRequireRunning() throws Exception {
+        PlaybackState state = new PlaybackState();
+        assertFalse(state.isRunning());
+        assertFalse(state.move(PlaybackState.IDLE, PlaybackState.SCHEDULED));
+        assertTrue(state.start(PlaybackState.SCHEDULED));
+        assertTrue(state.isRunning());
+        assertFalse(state.move(PlaybackState.WAITING_TO_SWAP, PlaybackState.READY_TO_SWAP));
+        assertTrue(state.move(PlaybackState.SCHEDULED, PlaybackState.WAITING_TO_SWAP));
+        assertTrue(state.stop());
+        assertFalse(state.stop());
+        assertEquals(PlaybackState.IDLE, state.getState());
+        assertFalse(state.move(PlaybackState.WAITING_TO_SWAP, PlaybackState.READY_TO_SWAP));
+        assertFalse(state.moveIfRunning(PlaybackState.SCHEDULED));
+    }
+
+    @Test
+    public void destroyIsFinal() throws Exception {
+        PlaybackState state = new PlaybackState();
+        state.start(PlaybackState.SCHEDULED);
+        state.setRetired(true);
+        assertTrue(state.destroy());
+        assertFalse(state.destroy());
+        assertTrue(state.isDestroyed());
+        assertFalse(state.isRunning());
+        assertFalse(state.start(PlaybackState.SCHEDULED));
+        assertTrue(state.hasRetired());
+        assertTrue(state.needsLockedDraw());
+        state.setRetired(false);
+        assertFalse(state.needsLockedDraw());
+    }
+
+    @Test
+    public void swapIsClaimedOnce() throws Exception {
+        PlaybackState state = new PlaybackState();
+        state.start(PlaybackState.SCHEDULED);
+        state.move(PlaybackState.SCHEDULED, PlaybackState.WAITING_TO_SWAP);
+        assertTrue(state.move(PlaybackState.WAITING_TO_SWAP, PlaybackState.READY_TO_SWAP));
+        assertFalse(state.move(PlaybackState.WAITING_TO_SWAP, PlaybackState.READY_TO_SWAP));
+        assertTrue(state.needsLockedDraw());
+        assertTrue(state.move(PlaybackState.READY_TO_SWAP, PlaybackState.SWAPPING));
+        assertFalse(state.move(PlaybackState.READY_TO_SWAP, PlaybackState.SWAPPING));
+        assertFalse(state.needsLockedDraw());
+    }
+}
@@ -0,0 +1,44 @@
+package com.humrousz.sequence;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+/**
+ * Runs the JMH benchmarks inside Robolectric's sandbox, so android.graphics is backed by its
+ * shadows. JMH can't fork here, the forked JVM would lack the sandbox, so everything runs in
+ * this process. Skipped unless the build is run with -PrunBenchmarks.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class BenchmarkTest {
+    @Test
+    public void runBenchmarks() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("runBenchmarks"));
+        File results = new File(System.getProperty("jmhResults", "build/reports/jmh/results.json"));
+        results.getParentFile().mkdirs();
+        Options options = new OptionsBuilder()
+                .include(GetFrameBenchmark.class.getSimpleName())
+                .include(PipelineBenchmark.class.getSimpleName())
+                .include(DrawContentionBenchmark.class.getSimpleName())
+                .include(IngestBenchmark.class.getSimpleName())
+                .forks(0)
+                .warmupIterations(3)
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(5)
+                .measurementTime(TimeValue.seconds(1))
+                .resultFormat(ResultFormatType.JSON)
+                .result(results.getPath())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,98 @@
+package com.humrousz.sequence;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whether draw() waits for the decoder: frames take decodeMicros each to decode on a pool
+ * thread while this thread keeps marking them ready and drawing. The decoder only takes the
+ * drawable's lock to claim and publish a slot, never while decoding, so the sampled draw times,
+ * swaps included, shouldn't grow with decodeMicros. Needs a core to spare for the decoder,
+ * otherwise its spinning preempts the drawing thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DrawContentionBenchmark {
+    @Param({"0", "2000"})
+    public int decodeMicros;
+
+    private int mResidentMaxBytes;
+    private ExecutorService mDecodeExecutor;
+    private AnimationSequenceDrawable mDrawable;
+    private Canvas mCanvas;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // every frame is decoded, rather than copied once kept resident
+        mResidentMaxBytes = AnimationSequenceDrawable.getResidentFramesMaxBytes();
+        AnimationSequenceDrawable.setResidentFramesMaxBytes(0);
+        mDecodeExecutor = Executors.newSingleThreadExecutor();
+        AnimationSequenceDrawable.setDecodeExecutor(mDecodeExecutor);
+        mDrawable = new AnimationSequenceDrawable(new SlowSequence(64, 64, 24, decodeMicros));
+        mDrawable.setLoopBehavior(AnimationSequenceDrawable.LOOP_INF);
+        mDrawable.setPrefetchDepth(3);
+        mDrawable.setBounds(0, 0, 64, 64);
+        mCanvas = new Canvas(Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888));
+        mDrawable.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDrawable.stop();
+        mDecodeExecutor.shutdown();
+        try {
+            mDecodeExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mDrawable.destroy();
+        AnimationSequenceDrawable.setDecodeExecutor(null);
+        AnimationSequenceDrawable.setResidentFramesMaxBytes(mResidentMaxBytes);
+    }
+
+    /**
+     * Swaps in whatever the decoder finished meanwhile, or just redraws if it hasn't
+     */
+    @Benchmark
+    public void runAndDraw() {
+        mDrawable.run();
+        mDrawable.draw(mCanvas);
+    }
+
+    /**
+     * Spins for a fixed time per frame, standing in for a codec
+     */
+    private static class SlowSequence extends SyntheticSequence {
+        private final long mDecodeNanos;
+
+        SlowSequence(int width, int height, int frameCount, int decodeMicros) {
+            super(width, height, frameCount, 40);
+            mDecodeNanos = TimeUnit.MICROSECONDS.toNanos(decodeMicros);
+        }
+
+        @Override
+        public long getFrame(int frameNr, Bitmap output, int previousFrameNr) {
+            final long end = System.nanoTime() + mDecodeNanos;
+            while (System.nanoTime() - end < 0) {
+                // busy, as decoding is
+            }
+            return super.getFrame(frameNr, output, previousFrameNr);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.humrousz.sequence;
+
+import android.graphics.Bitmap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * getFrame throughput of {@link FrescoSequence} for GIF and WebP shaped sequences, in order
+ * and with random access, directly and through a {@link CachingSequenceFactory} handle.
+ */
+@State(Scope.Thread)
+public class GetFrameBenchmark {
+    private static final int FRAME_COUNT = 48;
+
+    @Param({SyntheticAnimatedImage.GIF, SyntheticAnimatedImage.WEBP})
+    public String profile;
+
+    @Param({"256"})
+    public int size;
+
+    private BaseAnimationSequence mSequence;
+    private BaseAnimationSequence mShared;
+    private Bitmap mOutput;
+    private int mFrame;
+    private int mRandom = 1;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final SyntheticAnimatedImage image =
+                new SyntheticAnimatedImage(profile, size, size, FRAME_COUNT, 8);
+        mSequence = new FrescoSequence(image);
+        BaseSequenceFactory factory = new BaseSequenceFactory() {
+            @Override
+            public BaseAnimationSequence createSequence(InputStream inputStream) {
+                return new FrescoSequence(image);
+            }
+        };
+        mShared = new CachingSequenceFactory(factory).createSequence(new SequenceSource(profile) {
+            @Override
+            public InputStream openStream() {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+        });
+        mOutput = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+    }
+
+    @Benchmark
+    public long sequential() {
+        int previous = mFrame;
+        mFrame = (mFrame + 1) % FRAME_COUNT;
+        return mSequence.getFrame(mFrame, mOutput, previous);
+    }
+
+    @Benchmark
+    public long sequentialShared() {
+        int previous = mFrame;
+        mFrame = (mFrame + 1) % FRAME_COUNT;
+        return mShared.getFrame(mFrame, mOutput, previous);
+    }
+
+    @Benchmark
+    public long randomAccess() {
+        // xorshift, so the benchmark doesn't measure java.util.Random
+        mRandom ^= mRandom << 13;
+        mRandom ^= mRandom >>> 17;
+        mRandom ^= mRandom << 5;
+        return mSequence.getFrame((mRandom & Integer.MAX_VALUE) % FRAME_COUNT, mOutput, -1);
+    }
+}
@@ -0,0 +1,71 @@
+package com.humrousz.sequence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The Java side of {@link FrescoSequence#decodeStream}: reading the encoded bytes into the
+ * array handed to the native decoder, which itself can't run on the host JVM.
+ */
+@State(Scope.Thread)
+public class IngestBenchmark {
+    @Param({"65536", "2097152"})
+    public int length;
+
+    private byte[] mEncoded;
+    private ByteBuffer mMapped;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mEncoded = new byte[length];
+        for (int i = 0; i < length; i++) {
+            mEncoded[i] = (byte) i;
+        }
+        mMapped = ByteBuffer.allocateDirect(length);
+        mMapped.put(mEncoded);
+    }
+
+    /**
+     * Length known up front, e.g. a file or an asset
+     */
+    @Benchmark
+    public byte[] sizedStream() throws IOException {
+        return FrescoSequence.readFully(new ByteArrayInputStream(mEncoded), length);
+    }
+
+    /**
+     * A stream that can't tell its length, e.g. from the network
+     */
+    @Benchmark
+    public byte[] unsizedStream() throws IOException {
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(mEncoded)) {
+            @Override
+            public int available() {
+                return 0;
+            }
+        };
+        return FrescoSequence.readFully(in, -1);
+    }
+
+    /**
+     * Copying a mapped source out to the heap, as decodeByteBuffer does
+     */
+    @Benchmark
+    public byte[] mappedCopy() {
+        ByteBuffer buffer = mMapped.duplicate();
+        buffer.clear();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,78 @@
+package com.humrousz.sequence;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Cost of the drawable's locking and state machine: the decode executor runs tasks inline and
+ * the sequence only fills the bitmap, so each op is one run(), swap in draw() and decode.
+ */
+@State(Scope.Thread)
+public class PipelineBenchmark {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Param({"1", "3"})
+    public int prefetchDepth;
+
+    private AnimationSequenceDrawable mDrawable;
+    private Canvas mCanvas;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        AnimationSequenceDrawable.setDecodeExecutor(DIRECT);
+        mDrawable = new AnimationSequenceDrawable(new SyntheticSequence(64, 64, 24, 40));
+        mDrawable.setLoopBehavior(AnimationSequenceDrawable.LOOP_INF);
+        mDrawable.setPrefetchDepth(prefetchDepth);
+        mDrawable.setBounds(0, 0, 64, 64);
+        mCanvas = new Canvas(Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888));
+        mDrawable.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mDrawable.destroy();
+        AnimationSequenceDrawable.setDecodeExecutor(null);
+    }
+
+    /**
+     * run() marks the decoded frame ready, draw() swaps it in and decodes the next one
+     */
+    @Benchmark
+    public void swapAndDecode() {
+        mDrawable.run();
+        mDrawable.draw(mCanvas);
+    }
+
+    /**
+     * A redraw between swaps, e.g. from an unrelated invalidate
+     */
+    @Benchmark
+    public void drawWithoutSwap() {
+        mDrawable.draw(mCanvas);
+    }
+
+    @Benchmark
+    public PlaybackMetrics readMetrics(MetricsState state) {
+        return mDrawable.getMetrics(state.metrics);
+    }
+
+    @State(Scope.Thread)
+    public static class MetricsState {
+        final PlaybackMetrics metrics = new PlaybackMetrics();
+    }
+}
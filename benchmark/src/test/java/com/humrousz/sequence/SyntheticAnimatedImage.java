@@ -0,0 +1,150 @@
+package com.humrousz.sequence;
+
+import android.graphics.Bitmap;
+
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo;
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo.BlendOperation;
+import com.facebook.imagepipeline.animated.base.AnimatedDrawableFrameInfo.DisposalMethod;
+import com.facebook.imagepipeline.animated.base.AnimatedImage;
+import com.facebook.imagepipeline.animated.base.AnimatedImageFrame;
+
+import java.util.Arrays;
+
+/**
+ * Stands in for Fresco's native GifImage and WebPImage, whose libraries can't be loaded on the
+ * host JVM. Frames are laid out the way encoders typically emit them for each format, so
+ * {@link FrescoSequence} takes the same compositing paths as with real files.
+ */
+class SyntheticAnimatedImage implements AnimatedImage {
+    static final String GIF = "gif";
+    static final String WEBP = "webp";
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mDurations;
+    private final AnimatedDrawableFrameInfo[] mFrameInfos;
+
+    /**
+     * @param profile GIF: full first frame, then patches blended over the previous frame.
+     *                WEBP: a keyframe every keyFrameInterval frames, patches in between.
+     */
+    SyntheticAnimatedImage(String profile, int width, int height, int frameCount,
+                           int keyFrameInterval) {
+        mWidth = width;
+        mHeight = height;
+        mDurations = new int[frameCount];
+        Arrays.fill(mDurations, 40);
+        mFrameInfos = new AnimatedDrawableFrameInfo[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            boolean full = GIF.equals(profile) ? i == 0 : i % keyFrameInterval == 0;
+            if (full) {
+                mFrameInfos[i] = new AnimatedDrawableFrameInfo(i, 0, 0, width, height,
+                        BlendOperation.NO_BLEND, DisposalMethod.DISPOSE_DO_NOT);
+            } else {
+                // a moving patch covering a quarter of the canvas
+                int x = (i * 7) % (width / 2);
+                int y = (i * 5) % (height / 2);
+                mFrameInfos[i] = new AnimatedDrawableFrameInfo(i, x, y, width / 2, height / 2,
+                        BlendOperation.BLEND_WITH_PREVIOUS, DisposalMethod.DISPOSE_DO_NOT);
+            }
+        }
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public int getFrameCount() {
+        return mFrameInfos.length;
+    }
+
+    @Override
+    public int getDuration() {
+        return mDurations.length * mDurations[0];
+    }
+
+    @Override
+    public int[] getFrameDurations() {
+        return mDurations.clone();
+    }
+
+    @Override
+    public int getLoopCount() {
+        return 0;
+    }
+
+    @Override
+    public AnimatedImageFrame getFrame(int frameNumber) {
+        return new Frame(mFrameInfos[frameNumber], mDurations[frameNumber]);
+    }
+
+    @Override
+    public boolean doesRenderSupportScaling() {
+        return false;
+    }
+
+    @Override
+    public int getSizeInBytes() {
+        return 0;
+    }
+
+    @Override
+    public AnimatedDrawableFrameInfo getFrameInfo(int frameNumber) {
+        return mFrameInfos[frameNumber];
+    }
+
+    private static class Frame implements AnimatedImageFrame {
+        private final AnimatedDrawableFrameInfo mInfo;
+        private final int mDurationMs;
+
+        Frame(AnimatedDrawableFrameInfo info, int durationMs) {
+            mInfo = info;
+            mDurationMs = durationMs;
+        }
+
+        @Override
+        public void dispose() {
+        }
+
+        @Override
+        public void renderFrame(int width, int height, Bitmap bitmap) {
+            bitmap.eraseColor(0xff000000 | mInfo.frameNumber * 0x010101);
+        }
+
+        @Override
+        public int getDurationMs() {
+            return mDurationMs;
+        }
+
+        @Override
+        public int getWidth() {
+            return mInfo.width;
+        }
+
+        @Override
+        public int getHeight() {
+            return mInfo.height;
+        }
+
+        @Override
+        public int getXOffset() {
+            return mInfo.xOffset;
+        }
+
+        @Override
+        public int getYOffset() {
+            return mInfo.yOffset;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.humrousz.sequence;
+
+import android.graphics.Bitmap;
+
+/**
+ * A sequence that fills each frame with a solid color, so the benchmarks measure the drawable's
+ * pipeline rather than a codec.
+ */
+class SyntheticSequence extends BaseAnimationSequence {
+    private final int mDelayMs;
+
+    SyntheticSequence(int width, int height, int frameCount, int delayMs) {
+        super(width, height, frameCount, 0);
+        mDelayMs = delayMs;
+    }
+
+    @Override
+    public long getFrame(int frameNr, Bitmap output, int previousFrameNr) {
+        output.eraseColor(0xff000000 | frameNr * 0x010101);
+        return mDelayMs;
+    }
+
+    @Override
+    public long getFrameDuration(int frameNr) {
+        return mDelayMs;
+    }
+
+    @Override
+    public boolean isOpaque() {
+        return true;
+    }
+}